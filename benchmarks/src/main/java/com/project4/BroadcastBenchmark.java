@@ -0,0 +1,56 @@
+package com.project4;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Fan-out cost of one global chat message at different room sizes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+
+    @Param({ "10", "100", "1000", "5000" })
+    public int roomSize; //connected users, including the sender
+
+    private ClientManager sender;
+
+    @Setup
+    public void setup() {
+        Rooms.silenceConsole();
+        Rooms.fill(roomSize);
+        sender = ClientManager.clients.get(0);
+    }
+
+    @TearDown
+    public void tearDown() {
+        Rooms.clear();
+    }
+
+    /**
+     * Broadcasts one message to the room.
+     *
+     * @throws IOException If writing fails
+     */
+    @Benchmark
+    public void broadcast() throws IOException {
+        sender.broadcastMessage("hello everyone, how is it going?");
+    }
+}
@@ -0,0 +1,71 @@
+package com.project4;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the conference mixer: one clock tick with every sender talking.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConferenceMixerBenchmark {
+
+    @Param({ "2", "8", "32" })
+    public int senders; //number of people talking at once
+
+    private ConferenceMixer mixer;
+    private InetSocketAddress[] addresses; //one address per simulated sender
+    private byte[] packet; //voice packet offered by every sender
+    private byte[] out; //mixed output frame
+
+    /**
+     * Creates the mixer and fills each sender's buffer up to its start depth.
+     */
+    @Setup
+    public void setup() {
+        mixer = new ConferenceMixer(Client.FRAME_BYTES);
+        addresses = new InetSocketAddress[senders];
+        packet = new byte[Client.FRAME_BYTES];
+        out = new byte[Client.FRAME_BYTES];
+        for (int i = 0; i < packet.length; i += 2) { //quiet sawtooth so the mix does not always saturate
+            int sample = (i % 512) - 256;
+            packet[i] = (byte) sample;
+            packet[i + 1] = (byte) (sample >> 8);
+        }
+        for (int i = 0; i < senders; i++) {
+            addresses[i] = new InetSocketAddress("10.0.0." + (i + 1), 5000);
+            for (int f = 0; f < ConferenceMixer.START_FRAMES; f++) {
+                mixer.offer(addresses[i], packet, 0, packet.length);
+            }
+        }
+    }
+
+    /**
+     * Receives one packet from every sender and mixes one output frame.
+     *
+     * @return Number of senders mixed, so the work cannot be optimised away
+     */
+    @Benchmark
+    public int receiveAndMix() {
+        for (InetSocketAddress address : addresses) {
+            mixer.offer(address, packet, 0, packet.length);
+        }
+        return mixer.mixFrame(out);
+    }
+}
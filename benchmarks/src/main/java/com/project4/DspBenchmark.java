@@ -0,0 +1,121 @@
+package com.project4;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Scalar against vector DSP kernels on one client frame of audio (2048
+ * samples, about 43 ms at 48 kHz), and resampling that frame to and from the
+ * narrowband rate. The fork gets the Vector API module so both kernels can be
+ * measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "--add-modules", "jdk.incubator.vector" })
+public class DspBenchmark {
+
+    private static final int SAMPLES = 2048;
+
+    @Param({ "scalar", "vector" })
+    public String kernels;
+
+    private Dsp.Kernels impl;
+    private short[] a;
+    private short[] b;
+    private short[] work;
+    private short[] narrow; //the frame at 8 kHz
+    private short[] out;
+    private Resampler down;
+    private Resampler up;
+
+    /**
+     * Fills the frames with loud noise, so mixing saturates now and then.
+     */
+    @Setup
+    public void setup() {
+        impl = kernels.equals("vector") ? Dsp.VECTOR : Dsp.SCALAR;
+        if (impl == null) {
+            throw new IllegalStateException("The Vector API module is not available");
+        }
+        Random random = new Random(42);
+        a = new short[SAMPLES];
+        b = new short[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) {
+            a[i] = (short) (random.nextGaussian() * 8000);
+            b[i] = (short) (random.nextGaussian() * 8000);
+        }
+        work = new short[SAMPLES];
+        down = new Resampler(48000, 8000, impl);
+        up = new Resampler(8000, 48000, impl);
+        narrow = new short[down.maxOutput(SAMPLES)];
+        down.process(a, SAMPLES, narrow);
+        out = new short[up.maxOutput(narrow.length)];
+    }
+
+    /**
+     * @return The mix, so the work cannot be optimised away
+     */
+    @Benchmark
+    public short[] mix() {
+        System.arraycopy(a, 0, work, 0, SAMPLES);
+        impl.mix(work, b, SAMPLES);
+        return work;
+    }
+
+    /**
+     * @return The scaled frame
+     */
+    @Benchmark
+    public short[] gain() {
+        System.arraycopy(a, 0, work, 0, SAMPLES);
+        impl.gain(work, SAMPLES, 6144); //1.5
+        return work;
+    }
+
+    /**
+     * @return The sum of squares behind the RMS level
+     */
+    @Benchmark
+    public double rms() {
+        return impl.sumSquares(a, SAMPLES);
+    }
+
+    /**
+     * @return The peak level
+     */
+    @Benchmark
+    public int peak() {
+        return impl.peak(a, SAMPLES);
+    }
+
+    /**
+     * @return Samples produced going from 48 to 8 kHz
+     */
+    @Benchmark
+    public int downsample() {
+        return down.process(a, SAMPLES, narrow);
+    }
+
+    /**
+     * @return Samples produced going from 8 to 48 kHz
+     */
+    @Benchmark
+    public int upsample() {
+        return up.process(narrow, SAMPLES / 6, out);
+    }
+}
@@ -0,0 +1,61 @@
+package com.project4;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of looking up a session by username, as done for every whisper, call and voice note.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FindClientBenchmark {
+
+    @Param({ "10", "100", "1000", "10000" })
+    public int users; //connected users
+
+    private String middle; //a user halfway through the list
+    private String last; //the most recently connected user
+
+    @Setup
+    public void setup() {
+        Rooms.fill(users);
+        middle = "user" + (users / 2);
+        last = "user" + (users - 1);
+    }
+
+    @TearDown
+    public void tearDown() {
+        Rooms.clear();
+    }
+
+    @Benchmark
+    public ClientManager findMiddle() {
+        return ClientManager.findClientByUsername(middle);
+    }
+
+    @Benchmark
+    public ClientManager findLast() {
+        return ClientManager.findClientByUsername(last);
+    }
+
+    @Benchmark
+    public ClientManager findMissing() {
+        return ClientManager.findClientByUsername("nobody");
+    }
+}
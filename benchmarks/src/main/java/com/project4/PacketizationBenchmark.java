@@ -0,0 +1,82 @@
+package com.project4;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.sampled.AudioFormat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per-packet cost of the call sending loop in Client.sending: read a frame of PCM and send it over UDP.
+ * The audio comes from memory instead of a real-time device so only the loop itself is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketizationBenchmark {
+
+    private DatagramSocket receiver; //bound but never read; the kernel drops what does not fit
+    private DatagramSocket sender;
+    private AudioSource source;
+    private CallStats stats;
+    private byte[] packet; //reused packet buffer, as in Client.sending
+    private int seq = 0;
+
+    @Setup
+    public void setup() throws IOException {
+        receiver = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        sender = new DatagramSocket();
+        AudioFormat format = new AudioFormat(48000, 16, 1, true, false);
+        byte[] pcm = new byte[Client.FRAME_BYTES];
+        packet = new byte[Client.HEADER_BYTES + Client.FRAME_BYTES];
+        stats = new CallStats("bench", 42.7);
+        source = new AudioSource() { //unpaced source that always has a frame ready
+            @Override
+            public AudioFormat getFormat() {
+                return format;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) {
+                System.arraycopy(pcm, 0, buffer, offset, length);
+                return length;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    @TearDown
+    public void tearDown() {
+        sender.close();
+        receiver.close();
+    }
+
+    /**
+     * Captures and sends one voice packet.
+     *
+     * @throws IOException If capturing fails
+     */
+    @Benchmark
+    public void sendPacket() throws IOException {
+        Client.sendVoicePacket(source, sender, "127.0.0.1", receiver.getLocalPort(), packet, seq++, stats);
+    }
+}
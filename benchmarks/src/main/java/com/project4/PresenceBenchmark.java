@@ -0,0 +1,77 @@
+package com.project4;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of announcing a reconnect storm: every user in the room leaves and
+ * comes back, and the changes go out as one presence delta.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PresenceBenchmark {
+
+    @Param({ "10", "100", "1000" })
+    public int roomSize; //connected users
+
+    private Presence presence;
+
+    @Setup
+    public void setup() {
+        Rooms.silenceConsole();
+        Rooms.fill(roomSize);
+        presence = new Presence(ClientManager::sendToAll);
+        for (int i = 0; i < roomSize; i++) {
+            presence.join("user" + i);
+        }
+        presence.flush();
+    }
+
+    @TearDown
+    public void tearDown() {
+        Rooms.clear();
+    }
+
+    /**
+     * Every user reconnects, then the batch is sent to the room.
+     */
+    @Benchmark
+    public void reconnectStorm() {
+        for (int i = 0; i < roomSize; i++) {
+            presence.leave("user" + i);
+            presence.join("user" + i);
+        }
+        presence.flush();
+    }
+
+    /**
+     * Half the room leaves, then the batch is sent to the rest.
+     */
+    @Benchmark
+    public void leaveAndReturn() {
+        for (int i = 0; i < roomSize / 2; i++) {
+            presence.leave("user" + i);
+        }
+        presence.flush();
+        for (int i = 0; i < roomSize / 2; i++) {
+            presence.join("user" + i);
+        }
+        presence.flush();
+    }
+}
@@ -0,0 +1,87 @@
+package com.project4;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of parsing and dispatching one inbound protocol line, as done by ClientManager.run.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtocolBenchmark {
+
+    @Param({ "chat", "whisper", "calling", "accepted", "declined", "endcall", "unavailable" })
+    public String command; //kind of line received
+
+    static {
+        System.setProperty("voip.limit.enabled", "false"); //measure dispatch, not the throttling path
+    }
+
+    private ClientManager sender; //session receiving the line
+    private String line; //the protocol line
+
+    /**
+     * Connects a caller and a callee and builds the line to dispatch.
+     */
+    @Setup
+    public void setup() {
+        Rooms.silenceConsole();
+        sender = Rooms.join("alice");
+        Rooms.join("bob");
+        switch (command) {
+            case "chat":
+                line = "hello everyone, how is it going?";
+                break;
+            case "whisper":
+                line = "##WHISPER,bob,are you free for a call?";
+                break;
+            case "calling":
+                line = "##CALLING,bob,4001";
+                break;
+            case "accepted":
+                line = "##ACCEPTED,bob,4001";
+                break;
+            case "declined":
+                line = "##DECLINED,bob";
+                break;
+            case "endcall":
+                line = "##ENDCALL,bob";
+                break;
+            default:
+                line = "##UNAVAILABLE,bob";
+                break;
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        Rooms.clear();
+    }
+
+    /**
+     * Dispatches the line.
+     *
+     * @return Whether the session stays open
+     * @throws Exception If the handler fails
+     */
+    @Benchmark
+    public boolean dispatch() throws Exception {
+        return sender.handleMessage(line);
+    }
+}
@@ -0,0 +1,65 @@
+package com.project4;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of the rate limit check done for every inbound message.
+ * Chat is effectively unlimited here so the allowed path is measured; calls
+ * use the default limit, so nearly every check is a rejection.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RateLimiterBenchmark {
+
+    static {
+        System.setProperty("voip.limit.CHAT.rate", "1e12");
+    }
+
+    private final RateLimiter limiter = new RateLimiter();
+
+    /**
+     * One allowed message on one connection.
+     *
+     * @return Nanoseconds to wait, always 0
+     */
+    @Benchmark
+    public long allowed() {
+        return limiter.tryAcquire("CHAT");
+    }
+
+    /**
+     * One rejected message on one connection.
+     *
+     * @return Nanoseconds to wait
+     */
+    @Benchmark
+    public long rejected() {
+        return limiter.tryAcquire("CALLING");
+    }
+
+    /**
+     * Allowed messages from four threads sharing one bucket, the worst case for the compare-and-set.
+     *
+     * @return Nanoseconds to wait, always 0
+     */
+    @Benchmark
+    @Threads(4)
+    public long contended() {
+        return limiter.tryAcquire("CHAT");
+    }
+}
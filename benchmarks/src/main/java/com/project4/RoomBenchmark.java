@@ -0,0 +1,73 @@
+package com.project4;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Fan-out cost of one room message with many users online, against the same
+ * message sent to everyone.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoomBenchmark {
+
+    private static final int ONLINE = 5000; //connected users
+
+    @Param({ "10", "100", "1000" })
+    public int roomSize; //members of the room, including the sender
+
+    private ClientManager sender;
+
+    @Setup
+    public void setup() {
+        Rooms.silenceConsole();
+        Rooms.fill(ONLINE);
+        for (int i = 0; i < roomSize; i++) {
+            Room.join("bench", ClientManager.clients.get(i));
+        }
+        sender = ClientManager.clients.get(0);
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (int i = 0; i < roomSize; i++) {
+            Room.leave("bench", ClientManager.clients.get(i));
+        }
+        Rooms.clear();
+    }
+
+    /**
+     * Sends one message to the room's members.
+     */
+    @Benchmark
+    public void room() {
+        Room.chat("bench", sender.getUsername(), "hello room, how is it going?");
+    }
+
+    /**
+     * Sends one message to everyone online.
+     *
+     * @throws IOException If writing fails
+     */
+    @Benchmark
+    public void global() throws IOException {
+        sender.broadcastMessage("hello everyone, how is it going?");
+    }
+}
@@ -0,0 +1,61 @@
+package com.project4;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Helpers for benchmarks that drive ClientManager in-process.
+ * Sessions write to a discarding stream so only the server's own work is measured.
+ */
+final class Rooms {
+
+    static {
+        if (System.getProperty("voip.chatlog.dir") == null) {
+            System.setProperty("voip.chatlog.dir", "target/chatLog"); //keep benchmark chat history out of the repo
+        }
+    }
+
+    private Rooms() {
+    }
+
+    /**
+     * Registers a connected user that discards everything sent to it.
+     *
+     * @param username The user's name
+     * @return The user's session
+     */
+    static ClientManager join(String username) {
+        ClientManager client = new ClientManager(username, "127.0.0.1",
+                new ByteArrayInputStream(new byte[0]), OutputStream.nullOutputStream());
+        ClientManager.clients.add(client);
+        ClientManager.usernames.add(username);
+        return client;
+    }
+
+    /**
+     * Registers the given number of users named user0, user1, ...
+     *
+     * @param size Number of users
+     */
+    static void fill(int size) {
+        for (int i = 0; i < size; i++) {
+            join("user" + i);
+        }
+    }
+
+    /**
+     * Removes every registered user.
+     */
+    static void clear() {
+        ClientManager.clients.clear();
+        ClientManager.usernames.clear();
+    }
+
+    /**
+     * Silences the server's console logging so the terminal is not what gets measured.
+     */
+    static void silenceConsole() {
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+}
@@ -0,0 +1,70 @@
+package com.project4;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of scheduling a liveness check with 50000 other checks pending, on
+ * the timer wheel against a scheduled executor's priority queue. The
+ * measured checks fire shortly after, so both stay at a steady size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimerWheelBenchmark {
+
+    private static final int PENDING = 50_000; //connections with a check scheduled
+    private static final long PENDING_DELAY = TimeUnit.HOURS.toNanos(1); //the pending checks never fire
+    private static final long DELAY = TimeUnit.MILLISECONDS.toNanos(50); //measured checks fire soon after
+
+    private TimerWheel wheel;
+    private ScheduledThreadPoolExecutor executor;
+    private final Runnable check = () -> {
+    };
+
+    @Setup
+    public void setup() {
+        wheel = new TimerWheel("bench", 100, 1024);
+        executor = new ScheduledThreadPoolExecutor(1);
+        for (int i = 0; i < PENDING; i++) {
+            wheel.schedule(PENDING_DELAY + i, check);
+            executor.schedule(check, PENDING_DELAY + i, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Schedules a check on the wheel.
+     */
+    @Benchmark
+    public void wheel() {
+        wheel.schedule(DELAY, check);
+    }
+
+    /**
+     * Schedules a check on a scheduled executor.
+     */
+    @Benchmark
+    public void executor() {
+        executor.schedule(check, DELAY, TimeUnit.NANOSECONDS);
+    }
+}
@@ -0,0 +1,99 @@
+package com.project4;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Speed of the voice note codec on one second of speech-like audio. The
+ * compression ratio and the signal-to-noise ratio of the round trip are
+ * printed once at setup.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VoiceNoteCodecBenchmark {
+
+    private static final int SAMPLES = 8000; //one second at 8 kHz
+
+    private byte[] pcm; //16-bit little-endian mono audio
+    private byte[] encoded; //the audio as voice note blocks
+    private byte[] decoded; //decoded audio
+
+    /**
+     * Synthesises the audio, encodes it once and reports the ratios.
+     */
+    @Setup
+    public void setup() {
+        pcm = new byte[SAMPLES * 2];
+        Random random = new Random(42);
+        for (int i = 0; i < SAMPLES; i++) { //two formants under a syllable-rate envelope, with some breath noise
+            double t = i / 8000.0;
+            double envelope = 0.5 + 0.5 * Math.sin(2 * Math.PI * 4 * t);
+            double voice = Math.sin(2 * Math.PI * 220 * t) + 0.5 * Math.sin(2 * Math.PI * 1200 * t);
+            int sample = (int) (6000 * envelope * voice + 300 * random.nextGaussian());
+            pcm[2 * i] = (byte) sample;
+            pcm[2 * i + 1] = (byte) (sample >> 8);
+        }
+        encoded = encode();
+        decoded = new byte[encoded.length / VoiceNoteCodec.BLOCK_BYTES * VoiceNoteCodec.SAMPLES_PER_BLOCK * 2];
+        decode();
+        double signal = 0;
+        double noise = 0;
+        for (int i = 0; i < SAMPLES; i++) {
+            int x = (short) ((pcm[2 * i] & 0xff) | (pcm[2 * i + 1] << 8));
+            int y = (short) ((decoded[2 * i] & 0xff) | (decoded[2 * i + 1] << 8));
+            signal += (double) x * x;
+            noise += (double) (x - y) * (x - y);
+        }
+        int stored = VoiceNoteCodec.HEADER_BYTES + encoded.length;
+        System.out.printf("%nvoice note: %d bytes per second, %.1fx smaller than 16-bit mono, %.1fx smaller than 16-bit stereo WAV, SNR %.1f dB%n",
+                stored, pcm.length / (double) stored, (44 + 2 * pcm.length) / (double) stored, 10 * Math.log10(signal / noise));
+    }
+
+    /**
+     * Encodes the second of audio as it is done while recording, 200 ms at a time.
+     *
+     * @return The encoded audio, so the work cannot be optimised away
+     */
+    @Benchmark
+    public byte[] encode() {
+        VoiceNoteCodec.Encoder encoder = new VoiceNoteCodec.Encoder();
+        byte[] out = new byte[SAMPLES / VoiceNoteCodec.SAMPLES_PER_BLOCK * VoiceNoteCodec.BLOCK_BYTES];
+        int written = 0;
+        for (int offset = 0; offset < pcm.length; offset += 3200) {
+            byte[] blocks = encoder.encode(pcm, offset, 3200);
+            System.arraycopy(blocks, 0, out, written, blocks.length);
+            written += blocks.length;
+        }
+        return out;
+    }
+
+    /**
+     * Decodes the second of audio, as done during playback.
+     *
+     * @return The decoded audio, so the work cannot be optimised away
+     */
+    @Benchmark
+    public byte[] decode() {
+        int blocks = encoded.length / VoiceNoteCodec.BLOCK_BYTES;
+        for (int b = 0; b < blocks; b++) {
+            VoiceNoteCodec.decodeBlock(encoded, b * VoiceNoteCodec.BLOCK_BYTES, decoded,
+                    b * VoiceNoteCodec.SAMPLES_PER_BLOCK * 2);
+        }
+        return decoded;
+    }
+}
@@ -0,0 +1,64 @@
+package com.project4;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Server-side relay of a voice note: receive the upload, store it, forward it to the recipient.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VoiceNoteRelayBenchmark {
+
+    @Param({ "16384", "262144", "1048576" })
+    public int noteBytes; //size of the voice note
+
+    private byte[] note; //the uploaded file content
+    private String header; //the ##VOICENOTE line announcing the upload
+
+    @Setup
+    public void setup() {
+        Rooms.silenceConsole();
+        Rooms.join("bob");
+        note = new byte[noteBytes];
+        for (int i = 0; i < note.length; i++) {
+            note[i] = (byte) i;
+        }
+        header = "##VOICENOTE,bob,benchmark_note.wav," + noteBytes;
+    }
+
+    @TearDown
+    public void tearDown() {
+        Rooms.clear();
+    }
+
+    /**
+     * Relays one voice note from a fresh sender to bob.
+     *
+     * @throws Exception If the relay fails
+     */
+    @Benchmark
+    public void relay() throws Exception {
+        ClientManager sender = new ClientManager("alice", "127.0.0.1",
+                new ByteArrayInputStream(note), OutputStream.nullOutputStream());
+        sender.handleVoiceNoteServer(header);
+    }
+}
@@ -0,0 +1,451 @@
+package com.project4;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+import javax.sound.sampled.TargetDataLine;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+/**
+ * Opens the audio sources and sinks used for calls, conferences and voice notes.
+ * The device type is chosen through {@link Config}:
+ * <ul>
+ * <li>{@code voip.audio.source}: {@code javasound} (microphone, default),
+ * {@code tone} or {@code tone:<hz>}, {@code silence} or {@code file:<path>}
+ * (a WAV or raw PCM file played in a loop)</li>
+ * <li>{@code voip.audio.sink}: {@code javasound} (speakers, default),
+ * {@code null} or {@code file:<path>} (raw PCM; a {@code %d} in the path is
+ * replaced by a counter so several sinks can share one setting)</li>
+ * </ul>
+ * Synthetic devices run in real time, like a sound card, so hundreds of
+ * simulated callers can share one JVM without spinning.
+ */
+public class AudioDevices {
+
+	private static final Map<String, byte[]> fileCache = new ConcurrentHashMap<>(); //decoded source files, shared by all callers
+	private static final AtomicInteger sinkCounter = new AtomicInteger(); //numbers file sinks
+
+	private AudioDevices() {
+	}
+
+	/**
+	 * Opens the configured audio source.
+	 *
+	 * @param format The format to capture in
+	 * @return The started source
+	 * @throws IOException If the device cannot be opened
+	 */
+	public static AudioSource openSource(AudioFormat format) throws IOException {
+		return openSource(Config.get("voip.audio.source", "javasound"), format);
+	}
+
+	/**
+	 * Opens an audio source of the given type.
+	 *
+	 * @param type   Source type, in the same form as {@code voip.audio.source}
+	 * @param format The format to capture in
+	 * @return The started source
+	 * @throws IOException If the device cannot be opened
+	 */
+	public static AudioSource openSource(String type, AudioFormat format) throws IOException {
+		if (type.equals("javasound")) {
+			return new JavaSoundSource(format);
+		} else if (type.equals("silence")) {
+			return new ToneSource(format, 0);
+		} else if (type.equals("tone")) {
+			return new ToneSource(format, 440);
+		} else if (type.startsWith("tone:")) {
+			double frequency;
+			try {
+				frequency = Double.parseDouble(type.substring(5));
+			} catch (NumberFormatException e) {
+				throw new IOException("Unknown audio source: " + type);
+			}
+			if (!Double.isFinite(frequency)) {
+				throw new IOException("Unknown audio source: " + type);
+			}
+			return new ToneSource(format, frequency);
+		} else if (type.startsWith("file:")) {
+			return new FileSource(format, type.substring(5));
+		}
+		throw new IOException("Unknown audio source: " + type);
+	}
+
+	/**
+	 * Opens the configured audio sink.
+	 *
+	 * @param format The format to play in
+	 * @return The started sink
+	 * @throws IOException If the device cannot be opened
+	 */
+	public static AudioSink openSink(AudioFormat format) throws IOException {
+		return openSink(Config.get("voip.audio.sink", "javasound"), format);
+	}
+
+	/**
+	 * Opens an audio sink of the given type.
+	 *
+	 * @param type   Sink type, in the same form as {@code voip.audio.sink}
+	 * @param format The format to play in
+	 * @return The started sink
+	 * @throws IOException If the device cannot be opened
+	 */
+	public static AudioSink openSink(String type, AudioFormat format) throws IOException {
+		if (type.equals("javasound")) {
+			return new JavaSoundSink(format);
+		} else if (type.equals("null")) {
+			return new NullSink(format);
+		} else if (type.startsWith("file:")) {
+			String path = type.substring(5).replace("%d", Integer.toString(sinkCounter.incrementAndGet()));
+			return new FileSink(format, path);
+		}
+		throw new IOException("Unknown audio sink: " + type);
+	}
+
+	/**
+	 * Keeps a synthetic device running at the real-time rate of its format.
+	 * Like a sound card buffer, it lets the caller run up to a small amount ahead.
+	 */
+	static class Pacer {
+		private static final long SLACK_NANOS = 200_000_000L; //how far ahead of real time a caller may run
+		private final double nanosPerByte; //duration of one byte of audio
+		private long start = System.nanoTime(); //time the current run of audio started
+		private long bytes = 0; //bytes passed since start
+
+		Pacer(AudioFormat format) {
+			this.nanosPerByte = 1_000_000_000.0 / (format.getFrameRate() * format.getFrameSize());
+		}
+
+		/**
+		 * Accounts for audio passing through the device, waiting if it is ahead of real time.
+		 *
+		 * @param length Number of bytes produced or consumed
+		 */
+		void advance(int length) {
+			long now = System.nanoTime();
+			long due = start + (long) (bytes * nanosPerByte);
+			if (now - due > SLACK_NANOS) { //caller stalled; restart rather than allow a burst
+				start = now;
+				bytes = 0;
+			}
+			bytes += length;
+			long wait = start + (long) (bytes * nanosPerByte) - SLACK_NANOS - now;
+			if (wait > 0) {
+				LockSupport.parkNanos(wait);
+			}
+		}
+
+		/**
+		 * @return Bytes passed ahead of real time, like audio waiting in a device buffer
+		 */
+		int ahead() {
+			long played = (long) ((System.nanoTime() - start) / nanosPerByte);
+			return (int) Math.max(0, bytes - played);
+		}
+	}
+
+	/**
+	 * Captures from the default microphone through Java Sound.
+	 */
+	static class JavaSoundSource implements AudioSource {
+		private final TargetDataLine line; //the microphone line
+		private volatile boolean closed = false;
+
+		JavaSoundSource(AudioFormat format) throws IOException {
+			try {
+				DataLine.Info info = new DataLine.Info(TargetDataLine.class, format); //get audio line information
+				line = (TargetDataLine) AudioSystem.getLine(info);
+				line.open(format);
+				line.start(); //starts receiving audio from input device
+			} catch (LineUnavailableException | IllegalArgumentException e) {
+				throw new IOException("Microphone unavailable: " + e.getMessage(), e);
+			}
+		}
+
+		@Override
+		public AudioFormat getFormat() {
+			return line.getFormat();
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			if (closed) {
+				return -1;
+			}
+			int frameSize = line.getFormat().getFrameSize();
+			int read = line.read(buffer, offset, length - length % frameSize);
+			return read == 0 && closed ? -1 : read;
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+			line.stop();
+			line.close();
+		}
+	}
+
+	/**
+	 * Plays through the default speakers using Java Sound.
+	 */
+	static class JavaSoundSink implements AudioSink {
+		private final SourceDataLine line; //the speaker line
+
+		JavaSoundSink(AudioFormat format) throws IOException {
+			try {
+				DataLine.Info info = new DataLine.Info(SourceDataLine.class, format); //get audio line information
+				line = (SourceDataLine) AudioSystem.getLine(info);
+				line.open(format);
+				line.start(); //begins playing audio data written to the line
+			} catch (LineUnavailableException | IllegalArgumentException e) {
+				throw new IOException("Speakers unavailable: " + e.getMessage(), e);
+			}
+		}
+
+		@Override
+		public AudioFormat getFormat() {
+			return line.getFormat();
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int length) {
+			line.write(buffer, offset, length);
+		}
+
+		@Override
+		public int getQueuedBytes() {
+			return line.getBufferSize() - line.available();
+		}
+
+		@Override
+		public void close() {
+			line.stop();
+			line.close();
+		}
+	}
+
+	/**
+	 * Generates a sine tone, or silence when the frequency is 0.
+	 */
+	static class ToneSource implements AudioSource {
+		private final AudioFormat format;
+		private final Pacer pacer;
+		private final double step; //phase advance per sample
+		private double phase = 0;
+		private volatile boolean closed = false;
+
+		ToneSource(AudioFormat format, double frequency) throws IOException {
+			if (format.getSampleSizeInBits() != 16) {
+				throw new IOException("Tone source only produces 16-bit audio");
+			}
+			this.format = format;
+			this.pacer = new Pacer(format);
+			this.step = 2 * Math.PI * frequency / format.getSampleRate();
+		}
+
+		@Override
+		public AudioFormat getFormat() {
+			return format;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) {
+			if (closed) {
+				return -1;
+			}
+			int channels = format.getChannels();
+			boolean bigEndian = format.isBigEndian();
+			length -= length % format.getFrameSize();
+			for (int i = offset; i < offset + length;) {
+				short sample = (short) (Math.sin(phase) * 8000); //about a quarter of full scale
+				phase += step;
+				for (int c = 0; c < channels; c++, i += 2) {
+					buffer[i] = (byte) (bigEndian ? sample >> 8 : sample);
+					buffer[i + 1] = (byte) (bigEndian ? sample : sample >> 8);
+				}
+			}
+			if (phase > 2 * Math.PI) {
+				phase %= 2 * Math.PI;
+			}
+			pacer.advance(length);
+			return length;
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+		}
+	}
+
+	/**
+	 * Plays a WAV or raw PCM file in a loop.
+	 */
+	static class FileSource implements AudioSource {
+		private final AudioFormat format;
+		private final Pacer pacer;
+		private final byte[] audio; //the whole file in the requested format
+		private int position = 0;
+		private volatile boolean closed = false;
+
+		FileSource(AudioFormat format, String path) throws IOException {
+			this.format = format;
+			this.pacer = new Pacer(format);
+			this.audio = fileCache.computeIfAbsent(path + "|" + format, key -> decode(path, format));
+			if (audio.length < format.getFrameSize()) {
+				fileCache.remove(path + "|" + format); //allow a later retry
+				throw new IOException("Audio file is empty or unreadable: " + path);
+			}
+		}
+
+		/**
+		 * Reads a file into memory, converting WAV files to the requested format.
+		 * Files Java Sound does not recognise are treated as raw PCM in that format.
+		 */
+		private static byte[] decode(String path, AudioFormat format) {
+			File file = new File(path);
+			try (AudioInputStream in = AudioSystem.getAudioInputStream(format, AudioSystem.getAudioInputStream(file))) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				in.transferTo(out);
+				return out.toByteArray();
+			} catch (UnsupportedAudioFileException | IllegalArgumentException e) {
+				try {
+					return Files.readAllBytes(file.toPath());
+				} catch (IOException e1) {
+					return new byte[0];
+				}
+			} catch (IOException e) {
+				return new byte[0];
+			}
+		}
+
+		@Override
+		public AudioFormat getFormat() {
+			return format;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) {
+			if (closed) {
+				return -1;
+			}
+			length -= length % format.getFrameSize();
+			int usable = audio.length - audio.length % format.getFrameSize();
+			for (int copied = 0; copied < length;) {
+				int chunk = Math.min(length - copied, usable - position);
+				System.arraycopy(audio, position, buffer, offset + copied, chunk);
+				copied += chunk;
+				position = (position + chunk) % usable; //loop back to the start
+			}
+			pacer.advance(length);
+			return length;
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+		}
+	}
+
+	/**
+	 * Discards audio at the real-time rate.
+	 */
+	static class NullSink implements AudioSink {
+		private final AudioFormat format;
+		private final Pacer pacer;
+
+		NullSink(AudioFormat format) {
+			this.format = format;
+			this.pacer = new Pacer(format);
+		}
+
+		@Override
+		public AudioFormat getFormat() {
+			return format;
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int length) {
+			pacer.advance(length);
+		}
+
+		@Override
+		public int getQueuedBytes() {
+			return pacer.ahead();
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	/**
+	 * Records played audio to a raw PCM file.
+	 */
+	static class FileSink implements AudioSink {
+		private final AudioFormat format;
+		private final Pacer pacer;
+		private final OutputStream out;
+
+		FileSink(AudioFormat format, String path) throws IOException {
+			this.format = format;
+			this.pacer = new Pacer(format);
+			File file = new File(path);
+			if (file.getParentFile() != null && !file.getParentFile().exists()) {
+				file.getParentFile().mkdirs(); // Ensure directory exists
+			}
+			this.out = new BufferedOutputStream(new FileOutputStream(file));
+		}
+
+		@Override
+		public AudioFormat getFormat() {
+			return format;
+		}
+
+		@Override
+		public synchronized void write(byte[] buffer, int offset, int length) throws IOException {
+			out.write(buffer, offset, length);
+			pacer.advance(length);
+		}
+
+		@Override
+		public synchronized int getQueuedBytes() {
+			return pacer.ahead();
+		}
+
+		@Override
+		public synchronized void close() {
+			try {
+				out.close();
+			} catch (IOException e) {
+				System.out.println("Error closing audio file: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Wraps a source as an AudioInputStream of unknown length.
+	 *
+	 * @param source The source to read from
+	 * @return A stream that ends when the source is closed
+	 */
+	public static AudioInputStream asAudioInputStream(AudioSource source) {
+		InputStream in = source.asInputStream();
+		return new AudioInputStream(in, source.getFormat(), AudioSystem.NOT_SPECIFIED);
+	}
+}
@@ -0,0 +1,38 @@
+package com.project4;
+
+import java.io.IOException;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * A destination for PCM audio, such as the speakers or a file.
+ * Obtain instances through {@link AudioDevices#openSink(AudioFormat)}.
+ */
+public interface AudioSink extends AutoCloseable {
+
+	/**
+	 * @return The format of the audio accepted by this sink
+	 */
+	AudioFormat getFormat();
+
+	/**
+	 * Plays audio, blocking while the device buffer is full.
+	 *
+	 * @param buffer Buffer holding the audio
+	 * @param offset Offset of the first byte
+	 * @param length Number of bytes to play
+	 * @throws IOException If playback fails
+	 */
+	void write(byte[] buffer, int offset, int length) throws IOException;
+
+	/**
+	 * @return Bytes written but not yet played, i.e. the device's playout buffer depth
+	 */
+	int getQueuedBytes();
+
+	/**
+	 * Stops playback and releases the device.
+	 */
+	@Override
+	void close();
+}
@@ -0,0 +1,75 @@
+package com.project4;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * A source of captured PCM audio, such as a microphone or a synthetic generator.
+ * Obtain instances through {@link AudioDevices#openSource(AudioFormat)}.
+ */
+public interface AudioSource extends AutoCloseable {
+
+	/**
+	 * @return The format of the audio produced by this source
+	 */
+	AudioFormat getFormat();
+
+	/**
+	 * Reads captured audio, blocking until the buffer is full or the source is closed.
+	 *
+	 * @param buffer Buffer receiving the audio
+	 * @param offset Offset of the first byte to fill
+	 * @param length Number of bytes wanted
+	 * @return Number of bytes read, or -1 once the source has been closed
+	 * @throws IOException If capturing fails
+	 */
+	int read(byte[] buffer, int offset, int length) throws IOException;
+
+	/**
+	 * Reads exactly the given number of bytes unless the source is closed first.
+	 *
+	 * @param length Number of bytes wanted
+	 * @return The audio read; shorter than requested only if the source was closed
+	 * @throws IOException If capturing fails
+	 */
+	default byte[] readNBytes(int length) throws IOException {
+		byte[] buffer = new byte[length];
+		int total = 0;
+		while (total < length) {
+			int read = read(buffer, total, length - total);
+			if (read < 0) {
+				return java.util.Arrays.copyOf(buffer, total);
+			}
+			total += read;
+		}
+		return buffer;
+	}
+
+	/**
+	 * Wraps this source as an input stream, for use with {@code AudioSystem.write}.
+	 *
+	 * @return A stream that ends when the source is closed
+	 */
+	default InputStream asInputStream() {
+		return new InputStream() {
+			@Override
+			public int read() throws IOException {
+				byte[] one = new byte[1];
+				return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return AudioSource.this.read(b, off, len);
+			}
+		};
+	}
+
+	/**
+	 * Stops capturing and releases the device. Pending reads return -1.
+	 */
+	@Override
+	void close();
+}
@@ -0,0 +1,201 @@
+package com.project4;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Client side of {@link BulkServer}: voice note uploads and downloads, each on
+ * a connection of its own, so the control connection stays free for chat and
+ * call signalling.
+ * <p>
+ * Up to {@code voip.bulk.parallel} downloads (default 2) run at once; more
+ * wait their turn. Each upload has a thread of its own, fed by the recorder.
+ * Uploads share {@code voip.bulk.bytesPerSecond} (default 0, no limit), so a
+ * long upload does not fill the client's uplink.
+ */
+public class BulkClient {
+
+	static final int PARALLEL = Config.getInt("voip.bulk.parallel", 2); //downloads at once
+	private static final int CONNECT_TIMEOUT = 5000;
+	private static final int BUFFER_BYTES = 16 * 1024;
+
+	private final String host;
+	private final int port;
+	private final String token;
+	private final Shaper shaper = new Shaper(BulkServer.RATE);
+	private final ThreadPoolExecutor downloads;
+
+	/**
+	 * @param host  The server's address
+	 * @param port  Port from "##BULK,<port>,<token>"
+	 * @param token Token from the same line
+	 */
+	public BulkClient(String host, int port, String token) {
+		this.host = host;
+		this.port = port;
+		this.token = token;
+		AtomicInteger count = new AtomicInteger();
+		downloads = new ThreadPoolExecutor(PARALLEL, PARALLEL, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+				runnable -> {
+					Thread thread = new Thread(runnable, "bulk-download-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				});
+		downloads.allowCoreThreadTimeOut(true); //no threads while idle
+	}
+
+	/**
+	 * Downloads a voice note the server offered.
+	 *
+	 * @param name Its file name
+	 * @param out  Where the note is written; closed at the end
+	 * @return The note's size once it is downloaded
+	 */
+	public CompletableFuture<Long> download(String name, OutputStream out) {
+		return CompletableFuture.supplyAsync(() -> {
+			try (OutputStream target = out; Socket socket = open("GET", name)) {
+				DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				long size = in.readLong();
+				if (size < 0) {
+					throw new IOException("The server refused " + name);
+				}
+				byte[] buffer = new byte[BUFFER_BYTES];
+				for (long left = size; left > 0;) {
+					int read = in.read(buffer, 0, (int) Math.min(buffer.length, left));
+					if (read < 0) {
+						throw new EOFException("Download of " + name + " cut off");
+					}
+					target.write(buffer, 0, read);
+					left -= read;
+				}
+				return size;
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}, downloads);
+	}
+
+	/**
+	 * Starts uploading a voice note.
+	 *
+	 * @param name Its file name
+	 * @return The upload, to be fed and finished by the caller
+	 */
+	public Upload upload(String name) {
+		Upload upload = new Upload(name);
+		Thread thread = new Thread(upload::run, "bulk-upload");
+		thread.setDaemon(true);
+		thread.start();
+		return upload;
+	}
+
+	/**
+	 * Stops starting downloads; those in progress finish.
+	 */
+	public void close() {
+		downloads.shutdown();
+	}
+
+	private Socket open(String operation, String name) throws IOException {
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			out.writeUTF(operation);
+			out.writeUTF(token);
+			out.writeUTF(name);
+			out.flush();
+			return socket;
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * An upload in progress. Parts are queued and written by the upload's
+	 * thread, so recording never waits for the network.
+	 */
+	public class Upload {
+		private final String name;
+		private final BlockingQueue<Object[]> parts = new LinkedBlockingQueue<>(); //{offset, data}, then {size, recipient}
+		private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+		private Upload(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Queues part of the note.
+		 *
+		 * @param offset Position of the data in the file
+		 * @param data   Buffer holding the data
+		 * @param length Number of bytes from the start of the buffer
+		 */
+		public void write(long offset, byte[] data, int length) {
+			byte[] copy = new byte[length];
+			System.arraycopy(data, 0, copy, 0, length);
+			parts.add(new Object[] { offset, copy });
+		}
+
+		/**
+		 * Ends the upload; the server delivers the note once it has all of it.
+		 *
+		 * @param size      Size of the complete file
+		 * @param recipient User to deliver it to, or empty to discard it
+		 * @return Completes when the server has the note, or fails with the reason it was not sent
+		 */
+		public CompletableFuture<Void> finish(long size, String recipient) {
+			parts.add(new Object[] { size, recipient });
+			return done;
+		}
+
+		private void run() {
+			try (Socket socket = open("PUT", name)) {
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+				while (true) {
+					Object[] part = parts.take();
+					if (part[1] instanceof String) {
+						out.writeLong((long) part[0]);
+						out.writeInt(-1);
+						out.writeUTF((String) part[1]);
+						out.flush();
+						break;
+					}
+					byte[] data = (byte[]) part[1];
+					shaper.acquire(data.length);
+					out.writeLong((long) part[0]);
+					out.writeInt(data.length);
+					out.write(data);
+					if (parts.isEmpty()) {
+						out.flush(); //nothing more to send for now
+					}
+				}
+				String answer = new DataInputStream(socket.getInputStream()).readUTF();
+				if (answer.equals("OK")) {
+					done.complete(null);
+				} else {
+					done.completeExceptionally(new IOException(answer));
+				}
+			} catch (IOException e) {
+				done.completeExceptionally(e);
+			} catch (InterruptedException e) {
+				done.completeExceptionally(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,345 @@
+package com.project4;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Connections for voice note data, separate from the control connection, so
+ * a large transfer does not hold up chat, presence and call signalling.
+ * <p>
+ * A logged-in client asks for a token with "##BULK" and is answered
+ * "##BULK,<port>,<token>". It opens a connection to that port for each
+ * transfer and starts it with the operation, the token and the file name,
+ * each written with {@link DataOutputStream#writeUTF(String)}:
+ * <ul>
+ * <li>PUT uploads a voice note as frames of offset (long), length (int) and
+ * data, each written where it belongs in the file so the header can be
+ * rewritten last. Size (long), -1 (int) and the recipient end the upload, and
+ * the server answers "OK" or why it refused the note. The note is stored under
+ * {@link ClientManager#storedNoteName}, like one uploaded on the control
+ * connection, so it can only replace the sender's own notes.</li>
+ * <li>GET downloads a voice note the server offered with
+ * "##VOICENOTEREADY,<file name>,<size>". The server answers with the size
+ * (long), or -1 if the note is not the client's, then the data.</li>
+ * </ul>
+ * The operation, token and name must arrive within
+ * {@code voip.bulk.headerMillis} (default 5000) of the connection being
+ * accepted, however slowly they are sent, or the connection is closed.
+ * Transfers run in parallel, each on its own connection, on a pool of
+ * {@code voip.bulk.threads} threads (default 16). Downloads share
+ * {@code voip.bulk.bytesPerSecond} (default 0, no limit). A token is valid
+ * while the control connection it was issued on is open, and an offer for
+ * {@code voip.bulk.offerMillis} (default 600000) or until it is downloaded.
+ */
+public class BulkServer {
+
+	private static final boolean ENABLED = Config.getBoolean("voip.bulk.enabled", true);
+	private static final int PORT = Config.getInt("voip.bulk.port", 0); //0 picks a free port
+	private static final int THREADS = Config.getInt("voip.bulk.threads", 16); //transfers handled at once
+	private static final int IDLE_TIMEOUT = Config.getInt("voip.bulk.idleMillis", 30000); //silence before a transfer is dropped
+	private static final long HEADER_TIMEOUT = TimeUnit.MILLISECONDS
+			.toNanos(Config.getLong("voip.bulk.headerMillis", 5000)); //from accept until the token is checked
+	private static final long OFFER_TIMEOUT = TimeUnit.MILLISECONDS.toNanos(Config.getLong("voip.bulk.offerMillis", 600000));
+	static final long RATE = Config.getLong("voip.bulk.bytesPerSecond", 0); //shared by all downloads; 0 is unlimited
+	private static final int BUFFER_BYTES = 16 * 1024;
+
+	private static final SecureRandom random = new SecureRandom();
+	private static final Map<String, Grant> grants = new ConcurrentHashMap<>(); //by token
+	private static final Map<String, String> offers = new ConcurrentHashMap<>(); //file name to recipient
+	private static final Shaper shaper = new Shaper(RATE);
+	private static final TimerWheel offerExpiry = new TimerWheel("bulk_offers", 1000, 1024);
+	private static final TimerWheel headerExpiry = new TimerWheel("bulk_headers", 1000, 256);
+	private static final AtomicInteger active = new AtomicInteger(); //transfers in progress
+	private static final LongAdder uploads = Metrics.counter("voip_bulk_transfers_total{direction=\"up\"}");
+	private static final LongAdder downloads = Metrics.counter("voip_bulk_transfers_total{direction=\"down\"}");
+	private static final LongAdder refused = Metrics.counter("voip_bulk_refused_total");
+	private static final LongAdder headerTimeouts = Metrics.counter("voip_bulk_header_timeouts_total");
+	private static volatile ServerSocket serverSocket; //null when not running
+	private static ThreadPoolExecutor pool;
+
+	static {
+		Metrics.gauge("voip_bulk_transfers_active", () -> active.get());
+		Metrics.gauge("voip_bulk_offers", () -> offers.size());
+	}
+
+	/**
+	 * A token and the connection it was issued on.
+	 */
+	private static class Grant {
+		final ClientManager owner;
+		final String username;
+		final AtomicInteger uploading = new AtomicInteger(); //uploads in progress
+
+		Grant(ClientManager owner) {
+			this.owner = owner;
+			this.username = owner.getUsername();
+		}
+	}
+
+	private BulkServer() {
+	}
+
+	/**
+	 * Starts accepting transfers, unless {@code voip.bulk.enabled} is false.
+	 *
+	 * @throws IOException If the port cannot be opened
+	 */
+	static synchronized void start() throws IOException {
+		if (!ENABLED || serverSocket != null) {
+			return;
+		}
+		AtomicInteger count = new AtomicInteger();
+		pool = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(THREADS * 4),
+				runnable -> {
+					Thread thread = new Thread(runnable, "bulk-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				});
+		pool.allowCoreThreadTimeOut(true);
+		serverSocket = new ServerSocket(PORT);
+		Thread acceptor = new Thread(BulkServer::accept, "bulk-accept");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		System.out.println("Voice note transfers on port " + serverSocket.getLocalPort());
+	}
+
+	/**
+	 * Stops accepting transfers. Transfers in progress finish.
+	 */
+	static synchronized void stop() {
+		ServerSocket socket = serverSocket;
+		serverSocket = null;
+		if (socket != null) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// closed already
+			}
+		}
+	}
+
+	/**
+	 * Issues a token to a logged-in client.
+	 *
+	 * @param owner The client's connection
+	 * @return "##BULK,<port>,<token>" to send the client, or null if transfers are off
+	 */
+	static String issue(ClientManager owner) {
+		ServerSocket socket = serverSocket;
+		if (socket == null) {
+			return null;
+		}
+		byte[] bytes = new byte[16];
+		random.nextBytes(bytes);
+		String token = HexFormat.of().formatHex(bytes);
+		grants.put(token, new Grant(owner));
+		return "##BULK," + socket.getLocalPort() + "," + token;
+	}
+
+	/**
+	 * Withdraws the tokens issued on a connection that closed.
+	 *
+	 * @param owner The connection
+	 */
+	static void revoke(ClientManager owner) {
+		grants.values().removeIf(grant -> grant.owner == owner);
+	}
+
+	/**
+	 * Lets a user download a voice note.
+	 *
+	 * @param name      The note's file name
+	 * @param recipient The user
+	 */
+	static void offer(String name, String recipient) {
+		offers.put(name, recipient);
+		offerExpiry.schedule(OFFER_TIMEOUT, () -> offers.remove(name, recipient));
+	}
+
+	private static void accept() {
+		ServerSocket socket;
+		while ((socket = serverSocket) != null) {
+			try {
+				Socket connection = socket.accept();
+				AtomicBoolean headerRead = new AtomicBoolean();
+				headerExpiry.schedule(HEADER_TIMEOUT, () -> {
+					if (!headerRead.get()) {
+						headerTimeouts.increment();
+						try {
+							connection.close(); //the blocked read fails and the transfer ends
+						} catch (IOException e) {
+							// closed already
+						}
+					}
+				});
+				try {
+					pool.execute(() -> handle(connection, headerRead));
+				} catch (RejectedExecutionException e) {
+					refused.increment(); //too many transfers waiting
+					connection.close();
+				}
+			} catch (IOException e) {
+				if (serverSocket != null) {
+					System.out.println("Voice note transfer not accepted: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Runs one transfer.
+	 *
+	 * @param socket     The transfer's connection
+	 * @param headerRead Set once the operation, token and name are read, so the deadline no longer applies
+	 */
+	private static void handle(Socket socket, AtomicBoolean headerRead) {
+		active.incrementAndGet();
+		try (Socket connection = socket) {
+			connection.setSoTimeout(IDLE_TIMEOUT);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+			String operation = in.readUTF();
+			Grant grant = grants.get(in.readUTF());
+			String name = in.readUTF();
+			headerRead.set(true);
+			if (grant == null || !ClientManager.isValidNoteName(name)) {
+				refused.increment();
+				if (operation.equals("GET")) {
+					out.writeLong(-1);
+				} else {
+					out.writeUTF("not allowed");
+				}
+				out.flush();
+				return;
+			}
+			if (operation.equals("PUT")) {
+				receive(grant, name, in, out);
+			} else if (operation.equals("GET")) {
+				send(grant, name, out);
+			}
+		} catch (IOException e) {
+			System.out.println("Voice note transfer failed: " + e.getMessage());
+		} finally {
+			active.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Receives an upload and delivers the note to its recipient.
+	 */
+	private static void receive(Grant grant, String name, DataInputStream in, DataOutputStream out) throws IOException {
+		if (grant.uploading.incrementAndGet() > ClientManager.MAX_UPLOADS) {
+			grant.uploading.decrementAndGet();
+			refused.increment();
+			out.writeUTF("too many uploads");
+			out.flush();
+			return;
+		}
+		String stored = ClientManager.storedNoteName(grant.username, name);
+		if (stored == null) {
+			grant.uploading.decrementAndGet();
+			refused.increment();
+			out.writeUTF("name too long");
+			out.flush();
+			return;
+		}
+		File file = new File("./voiceNotes/" + stored); //only ever one of the sender's own notes
+		file.getParentFile().mkdirs();
+		boolean complete = false;
+		try (RandomAccessFile target = new RandomAccessFile(file, "rw")) {
+			byte[] buffer = new byte[BUFFER_BYTES];
+			while (true) {
+				long offset = in.readLong();
+				int length = in.readInt();
+				if (length < 0) { //end of the upload
+					target.setLength(Math.min(ClientManager.MAX_NOTE_BYTES, Math.max(0, offset)));
+					break;
+				}
+				if (offset < 0 || offset + length > ClientManager.MAX_NOTE_BYTES) {
+					refused.increment();
+					out.writeUTF("too large or invalid");
+					out.flush();
+					return;
+				}
+				target.seek(offset);
+				for (int left = length; left > 0;) {
+					int read = in.read(buffer, 0, Math.min(buffer.length, left));
+					if (read < 0) {
+						throw new IOException("Upload of " + name + " cut off");
+					}
+					target.write(buffer, 0, read);
+					left -= read;
+				}
+				ClientManager.voiceNoteBytesIn.add(length);
+			}
+			complete = true;
+		} finally {
+			grant.uploading.decrementAndGet();
+			if (!complete) {
+				file.delete();
+			}
+		}
+		String recipient = in.readUTF();
+		out.writeUTF("OK");
+		out.flush();
+		uploads.increment();
+		if (recipient.isEmpty()) {
+			file.delete(); //recorded without anyone to send it to
+			return;
+		}
+		System.out.println(grant.username + " sent voice note " + stored + " to " + recipient + " [" + file.length()
+				+ " bytes]");
+		grant.owner.notifyAndSendFileToClient(file, recipient);
+	}
+
+	/**
+	 * Sends a note offered to the grant's user, paced with the shared budget.
+	 */
+	private static void send(Grant grant, String name, DataOutputStream out) throws IOException {
+		File file = new File("./voiceNotes/" + name);
+		if (!grant.username.equals(offers.get(name)) || !file.isFile()) {
+			refused.increment();
+			out.writeLong(-1);
+			out.flush();
+			return;
+		}
+		long size = file.length();
+		out.writeLong(size);
+		try (InputStream in = new FileInputStream(file)) {
+			byte[] buffer = new byte[BUFFER_BYTES];
+			for (long left = size; left > 0;) {
+				int read = in.read(buffer, 0, (int) Math.min(buffer.length, left));
+				if (read < 0) {
+					throw new IOException("Voice note " + name + " shrank while it was sent");
+				}
+				shaper.acquire(read);
+				out.write(buffer, 0, read);
+				left -= read;
+				ClientManager.voiceNoteBytesOut.add(read);
+			}
+		}
+		out.flush();
+		offers.remove(name, grant.username);
+		downloads.increment();
+	}
+}
@@ -0,0 +1,145 @@
+package com.project4;
+
+import java.util.BitSet;
+
+/**
+ * Quality statistics for one call, updated by the sending and receiving threads.
+ * Every voice packet carries a sequence number and the sender's capture time;
+ * from these the receiver derives loss, reordering and interarrival jitter
+ * (RFC 3550) and estimates the mouth-to-ear latency as
+ * packet accumulation + network transit + playout buffering.
+ * The transit part compares wall clocks of two machines, so it is only as
+ * accurate as their clock synchronisation.
+ */
+public class CallStats {
+
+	private final String participant; //who the call is with
+	private final double frameMillis; //audio carried by one packet, in milliseconds
+	private final long startMillis = System.currentTimeMillis();
+
+	// sending side
+	private long packetsSent = 0;
+	private long bytesSent = 0;
+	private double sendDelayMillis = 0; //smoothed time from end of capture to send
+
+	// receiving side
+	private long packetsReceived = 0;
+	private long highestSeq = -1; //highest sequence number seen
+	private long firstSeq = -1; //first sequence number seen
+	private long reordered = 0; //packets arriving after a later one
+	private long duplicates = 0;
+	private long lastTransit = Long.MIN_VALUE; //transit time of the previous packet
+	private double jitterMillis = 0; //RFC 3550 interarrival jitter
+	private double transitMillis = 0; //smoothed capture-to-arrival time
+	private long underruns = 0; //times the playout buffer ran dry
+	private double playoutMillis = 0; //audio queued for playout at the last packet
+	private final BitSet recent = new BitSet(1024); //received sequence numbers within 1024 of the highest
+
+	/**
+	 * Creates statistics for a call.
+	 *
+	 * @param participant Who the call is with
+	 * @param frameMillis Audio carried by one packet, in milliseconds
+	 */
+	public CallStats(String participant, double frameMillis) {
+		this.participant = participant;
+		this.frameMillis = frameMillis;
+	}
+
+	/**
+	 * Records a sent packet.
+	 *
+	 * @param bytes         Audio bytes in the packet
+	 * @param captureMillis Wall-clock time the audio finished capturing
+	 */
+	public synchronized void packetSent(int bytes, long captureMillis) {
+		packetsSent++;
+		bytesSent += bytes;
+		long delay = System.currentTimeMillis() - captureMillis;
+		sendDelayMillis += (delay - sendDelayMillis) / 16;
+	}
+
+	/**
+	 * Records a received packet.
+	 *
+	 * @param seq           Sequence number of the packet
+	 * @param captureMillis Sender's wall-clock capture time
+	 * @param queuedMillis  Audio queued for playout before this packet was written
+	 */
+	public synchronized void packetReceived(long seq, long captureMillis, double queuedMillis) {
+		long now = System.currentTimeMillis();
+		if (firstSeq < 0) {
+			firstSeq = seq;
+		}
+		if (seq <= highestSeq) {
+			if (seq > highestSeq - 1024 && recent.get((int) (seq % 1024))) {
+				duplicates++;
+				return;
+			}
+			reordered++;
+		} else {
+			for (long s = Math.max(highestSeq + 1, seq - 1024); s < seq; s++) {
+				recent.clear((int) (s % 1024)); //forget old entries as the window moves
+			}
+			highestSeq = seq;
+		}
+		recent.set((int) (seq % 1024));
+		packetsReceived++;
+
+		long transit = now - captureMillis;
+		if (lastTransit != Long.MIN_VALUE) {
+			long d = Math.abs(transit - lastTransit);
+			jitterMillis += (d - jitterMillis) / 16;
+		}
+		lastTransit = transit;
+		transitMillis = packetsReceived == 1 ? transit : transitMillis + (transit - transitMillis) / 16;
+		if (queuedMillis <= 0 && packetsReceived > 1) {
+			underruns++; //the speakers had nothing left to play
+		}
+		playoutMillis = queuedMillis;
+	}
+
+	/**
+	 * @return Packets the sender sent that never arrived
+	 */
+	public synchronized long getLost() {
+		if (firstSeq < 0) {
+			return 0;
+		}
+		long expected = highestSeq - firstSeq + 1;
+		return Math.max(0, expected - packetsReceived);
+	}
+
+	/**
+	 * @return Estimated mouth-to-ear latency in milliseconds
+	 */
+	public synchronized double getEstimatedLatencyMillis() {
+		return frameMillis + Math.max(0, transitMillis) + playoutMillis;
+	}
+
+	/**
+	 * @return A short one-line view for the call area
+	 */
+	public synchronized String liveLine() {
+		long lost = getLost();
+		double lossPercent = packetsReceived + lost == 0 ? 0 : 100.0 * lost / (packetsReceived + lost);
+		return String.format("%s | sent %d recv %d | loss %.1f%% reorder %d | jitter %.1f ms | buffer %.0f ms"
+				+ " underruns %d | latency ~%.0f ms", participant, packetsSent, packetsReceived, lossPercent, reordered,
+				jitterMillis, playoutMillis, underruns, getEstimatedLatencyMillis());
+	}
+
+	/**
+	 * @return A multi-line summary for the end of the call
+	 */
+	public synchronized String summary() {
+		long seconds = (System.currentTimeMillis() - startMillis) / 1000;
+		return "Call with " + participant + " (" + seconds + "s):\n"
+				+ "  sent " + packetsSent + " packets (" + bytesSent + " bytes), send delay "
+				+ String.format("%.1f", sendDelayMillis) + " ms\n"
+				+ "  received " + packetsReceived + ", lost " + getLost() + ", reordered " + reordered
+				+ ", duplicates " + duplicates + "\n"
+				+ "  jitter " + String.format("%.1f", jitterMillis) + " ms, playout buffer "
+				+ String.format("%.0f", playoutMillis) + " ms, underruns " + underruns + "\n"
+				+ "  estimated mouth-to-ear latency " + String.format("%.0f", getEstimatedLatencyMillis()) + " ms";
+	}
+}
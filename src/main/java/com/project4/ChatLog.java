@@ -0,0 +1,349 @@
+package com.project4;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Append-only, segmented log of global chat messages.
+ * <p>
+ * Every message gets the next sequence number and is appended to the newest
+ * segment file ({@code <firstSeq>.log}). Each segment has a memory-mapped index
+ * ({@code <firstSeq>.idx}) with one fixed-size entry per message holding the
+ * message time and its offset in the segment, so a message is found by
+ * sequence number with one index lookup and by time with a binary search,
+ * without scanning the log. Segments roll over when full and the oldest are
+ * deleted once there are more than {@code voip.chatlog.maxSegments}.
+ * <p>
+ * Settings: {@code voip.chatlog.dir} (default "chatLog"),
+ * {@code voip.chatlog.segmentMessages} (default 65536) and
+ * {@code voip.chatlog.maxSegments} (default 64).
+ */
+public class ChatLog {
+
+	private static final int INDEX_ENTRY = 16; //time (long) and offset (long)
+	private static ChatLog instance; //the server's chat log
+
+	private final File dir; //directory holding the segments
+	private final int segmentMessages; //messages per segment
+	private final int maxSegments; //segments kept before the oldest is deleted
+	private final TreeMap<Long, Segment> segments = new TreeMap<>(); //segments by first sequence number
+	private long nextSeq = 1; //sequence number of the next message
+	private long lastTime = 0; //time of the newest message; times never go backwards
+
+	/**
+	 * A message read back from the log.
+	 */
+	public static class Entry {
+		public final long seq;
+		public final long time;
+		public final String sender;
+		public final String text;
+
+		Entry(long seq, long time, String sender, String text) {
+			this.seq = seq;
+			this.time = time;
+			this.sender = sender;
+			this.text = text;
+		}
+	}
+
+	/**
+	 * One log file and its memory-mapped index.
+	 */
+	private class Segment {
+		final long firstSeq;
+		final File logFile;
+		final File indexFile;
+		final FileChannel log;
+		final RandomAccessFile indexRaf;
+		final MappedByteBuffer index;
+		int count = 0; //messages in this segment
+		long size = 0; //bytes in the log file
+
+		Segment(long firstSeq) throws IOException {
+			this.firstSeq = firstSeq;
+			this.logFile = new File(dir, firstSeq + ".log");
+			this.indexFile = new File(dir, firstSeq + ".idx");
+			this.log = new RandomAccessFile(logFile, "rw").getChannel();
+			this.indexRaf = new RandomAccessFile(indexFile, "rw");
+			this.index = indexRaf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+					(long) segmentMessages * INDEX_ENTRY);
+			recover();
+		}
+
+		/**
+		 * Counts the indexed messages, dropping any record that was only partly written.
+		 */
+		private void recover() throws IOException {
+			long logSize = log.size();
+			while (count < segmentMessages) {
+				long time = index.getLong(count * INDEX_ENTRY);
+				long offset = index.getLong(count * INDEX_ENTRY + 8);
+				if (time == 0 || offset >= logSize) {
+					break; //unused entry, or the record never made it to the log
+				}
+				count++;
+			}
+			size = count == 0 ? 0 : recordEnd(count - 1);
+			if (size < logSize) {
+				log.truncate(size);
+			}
+			for (int i = count; i < segmentMessages && index.getLong(i * INDEX_ENTRY) != 0; i++) {
+				index.putLong(i * INDEX_ENTRY, 0); //clear stale entries
+			}
+			if (count > 0) {
+				lastTime = Math.max(lastTime, timeAt(count - 1));
+			}
+		}
+
+		private long recordEnd(int i) throws IOException {
+			long offset = offsetAt(i);
+			ByteBuffer length = ByteBuffer.allocate(4);
+			log.read(length, offset);
+			return offset + 4 + length.getInt(0);
+		}
+
+		long timeAt(int i) {
+			return index.getLong(i * INDEX_ENTRY);
+		}
+
+		long offsetAt(int i) {
+			return index.getLong(i * INDEX_ENTRY + 8);
+		}
+
+		boolean isFull() {
+			return count >= segmentMessages;
+		}
+
+		void append(long time, String sender, String text) throws IOException {
+			byte[] senderBytes = sender.getBytes(StandardCharsets.UTF_8);
+			byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+			ByteBuffer record = ByteBuffer.allocate(4 + 2 + senderBytes.length + textBytes.length);
+			record.putInt(2 + senderBytes.length + textBytes.length);
+			record.putShort((short) senderBytes.length);
+			record.put(senderBytes).put(textBytes).flip();
+			while (record.hasRemaining()) {
+				log.write(record, size + record.position());
+			}
+			index.putLong(count * INDEX_ENTRY + 8, size); //offset first, so a visible time means a complete entry
+			index.putLong(count * INDEX_ENTRY, time);
+			size += record.limit();
+			count++;
+		}
+
+		Entry read(int i) throws IOException {
+			long offset = offsetAt(i);
+			ByteBuffer length = ByteBuffer.allocate(4);
+			log.read(length, offset);
+			ByteBuffer body = ByteBuffer.allocate(length.getInt(0));
+			while (body.hasRemaining() && log.read(body, offset + 4 + body.position()) >= 0) {
+			}
+			body.flip();
+			int senderLength = body.getShort();
+			String sender = new String(body.array(), 2, senderLength, StandardCharsets.UTF_8);
+			String text = new String(body.array(), 2 + senderLength, body.limit() - 2 - senderLength,
+					StandardCharsets.UTF_8);
+			return new Entry(firstSeq + i, timeAt(i), sender, text);
+		}
+
+		void close() {
+			try {
+				index.force();
+				log.close();
+				indexRaf.close();
+			} catch (IOException e) {
+				System.out.println("Error closing chat log segment: " + e.getMessage());
+			}
+		}
+
+		void delete() {
+			close();
+			logFile.delete();
+			indexFile.delete();
+		}
+	}
+
+	/**
+	 * Opens a chat log, recovering any segments already in the directory.
+	 *
+	 * @param dir             Directory holding the segments
+	 * @param segmentMessages Messages per segment
+	 * @param maxSegments     Segments kept before the oldest is deleted
+	 * @throws IOException If the directory cannot be used
+	 */
+	public ChatLog(File dir, int segmentMessages, int maxSegments) throws IOException {
+		this.dir = dir;
+		this.segmentMessages = segmentMessages;
+		this.maxSegments = Math.max(1, maxSegments);
+		if (!dir.exists() && !dir.mkdirs()) {
+			throw new IOException("Failed to create directory: " + dir.getAbsolutePath());
+		}
+		File[] files = dir.listFiles((d, name) -> name.endsWith(".log"));
+		if (files != null) {
+			for (File file : files) {
+				try {
+					long firstSeq = Long.parseLong(file.getName().replace(".log", ""));
+					segments.put(firstSeq, new Segment(firstSeq));
+				} catch (NumberFormatException e) {
+					// not a segment
+				}
+			}
+		}
+		if (!segments.isEmpty()) {
+			Segment last = segments.lastEntry().getValue();
+			nextSeq = last.firstSeq + last.count;
+		}
+	}
+
+	/**
+	 * Gets the server's chat log, opening it on first use.
+	 *
+	 * @return The chat log, or null if it could not be opened
+	 */
+	public static synchronized ChatLog get() {
+		if (instance == null) {
+			try {
+				instance = new ChatLog(new File(Config.get("voip.chatlog.dir", "chatLog")),
+						Config.getInt("voip.chatlog.segmentMessages", 65536),
+						Config.getInt("voip.chatlog.maxSegments", 64));
+			} catch (IOException e) {
+				System.out.println("Chat history disabled: " + e.getMessage());
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * Appends a message.
+	 *
+	 * @param sender Username of the sender
+	 * @param text   The message
+	 * @return The message's sequence number
+	 * @throws IOException If the message could not be written
+	 */
+	public synchronized long append(String sender, String text) throws IOException {
+		Map.Entry<Long, Segment> last = segments.lastEntry();
+		Segment segment = last == null ? null : last.getValue();
+		if (segment == null || segment.isFull()) {
+			segment = new Segment(nextSeq);
+			segments.put(nextSeq, segment);
+			while (segments.size() > maxSegments) {
+				segments.pollFirstEntry().getValue().delete(); //retention
+			}
+		}
+		lastTime = Math.max(lastTime + 1, System.currentTimeMillis());
+		segment.append(lastTime, sender, text);
+		return nextSeq++;
+	}
+
+	/**
+	 * @return Sequence number of the newest message, or 0 if the log is empty
+	 */
+	public synchronized long lastSeq() {
+		return nextSeq - 1;
+	}
+
+	/**
+	 * @return Sequence number of the oldest message still kept
+	 */
+	public synchronized long firstSeq() {
+		return segments.isEmpty() ? nextSeq : segments.firstKey();
+	}
+
+	/**
+	 * Reads the messages with sequence numbers in [from, to).
+	 *
+	 * @param from First sequence number, inclusive
+	 * @param to   Last sequence number, exclusive
+	 * @return The messages still kept in that range, oldest first
+	 * @throws IOException If the log cannot be read
+	 */
+	public synchronized List<Entry> read(long from, long to) throws IOException {
+		List<Entry> entries = new ArrayList<>();
+		from = Math.max(from, firstSeq());
+		to = Math.min(to, nextSeq);
+		while (from < to) {
+			Segment segment = segments.floorEntry(from).getValue();
+			int i = (int) (from - segment.firstSeq);
+			for (; i < segment.count && from < to; i++, from++) {
+				entries.add(segment.read(i));
+			}
+			if (from < to && i >= segment.count) { //the rest of this segment is missing, e.g. after recovery
+				Long next = segments.higherKey(segment.firstSeq);
+				if (next == null) {
+					break;
+				}
+				from = Math.max(from, next);
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * Reads up to count messages sent after the given sequence number.
+	 * If more were sent, the newest count are returned.
+	 *
+	 * @param seq   Last sequence number already seen; 0 for none
+	 * @param count Maximum number of messages
+	 * @return The messages, oldest first
+	 * @throws IOException If the log cannot be read
+	 */
+	public synchronized List<Entry> since(long seq, int count) throws IOException {
+		return read(Math.max(seq + 1, nextSeq - count), nextSeq);
+	}
+
+	/**
+	 * Reads up to count messages sent before the given sequence number, for paging back.
+	 *
+	 * @param seq   Oldest sequence number already shown
+	 * @param count Maximum number of messages
+	 * @return The messages, oldest first
+	 * @throws IOException If the log cannot be read
+	 */
+	public synchronized List<Entry> before(long seq, int count) throws IOException {
+		return read(seq - count, seq);
+	}
+
+	/**
+	 * Finds the first message sent at or after a given time.
+	 *
+	 * @param timeMillis Wall-clock time in milliseconds
+	 * @return Its sequence number, or the next sequence number if there is none
+	 */
+	public synchronized long seqAtTime(long timeMillis) {
+		for (Segment segment : segments.values()) {
+			if (segment.count > 0 && segment.timeAt(segment.count - 1) >= timeMillis) {
+				int lo = 0, hi = segment.count - 1; //binary search on the index
+				while (lo < hi) {
+					int mid = (lo + hi) >>> 1;
+					if (segment.timeAt(mid) < timeMillis) {
+						lo = mid + 1;
+					} else {
+						hi = mid;
+					}
+				}
+				return segment.firstSeq + lo;
+			}
+		}
+		return nextSeq;
+	}
+
+	/**
+	 * Closes all segments.
+	 */
+	public synchronized void close() {
+		for (Segment segment : segments.values()) {
+			segment.close();
+		}
+		segments.clear();
+	}
+}
@@ -2,15 +2,12 @@ package com.project4;
 
 import java.io.*;
 import java.net.*;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.LockSupport;
 
 import javax.sound.sampled.AudioFormat;
-import javax.sound.sampled.AudioInputStream;
-import javax.sound.sampled.AudioSystem;
-import javax.sound.sampled.DataLine;
-import javax.sound.sampled.SourceDataLine;
-import javax.sound.sampled.TargetDataLine;
 
 import javafx.application.Platform;
 import javafx.scene.control.ButtonType;
@@ -21,12 +18,31 @@ import javafx.scene.control.ButtonType;
 public class Client {
 
 	public volatile ArrayList<String> clients = new ArrayList<>(); //list of clients
-	private Socket socket = null; //the client socket
-	private BufferedReader bufRead = null; //buffered read for communication with the server
-	private BufferedWriter bufWrite = null; //buffered write for server communication
+	private volatile Socket socket = null; //the client socket
+	private volatile BufferedReader bufRead = null; //buffered read for communication with the server
+	private volatile ControlWriter writer = null; //coalescing writer for server communication
 	private InteractController interactController; //controls interacts between the user and UI
-	public Boolean checkedUsername = false; //has client username been checked against others
-	public Boolean usernameOK = false; //is the client username valid
+	private volatile boolean usernameOK = false; //logged in; from here on a dropped connection is reconnected
+	private volatile CompletableFuture<Boolean> pendingLogin; //completed with the server's answer to our username
+	private volatile String username; //this client's username
+	private volatile long lastChatSeq = 0; //sequence number of the newest global message seen
+	private volatile long oldestChatSeq = 0; //sequence number of the oldest global message shown
+	private final ArrayList<String> olderMessages = new ArrayList<>(); //page of older messages being received
+	private volatile String currentRoom = null; //room chat is sent to, or null for global chat
+	private volatile String serverHost; //server to reconnect to
+	private volatile int serverPort;
+	private volatile String sessionToken = null; //resumes the session after a reconnect
+	private volatile long lastSeq = 0; //number of the last numbered line received
+	private int unackedLines = 0; //numbered lines received since the last ##ACK
+	private volatile boolean closing = false; //the user disconnected; do not reconnect
+	private volatile boolean abandoned = false; //the login screen gave up on this connection
+	private volatile BulkClient bulk = null; //voice note transfers, once the server has issued a token
+	private final Random random = new Random(); //jitters reconnect delays
+	private static final int ACK_EVERY = 32; //numbered lines per ##ACK
+	private static final long RECONNECT_INITIAL = Config.getLong("voip.reconnect.initialMillis", 500);
+	private static final long RECONNECT_MAX = Config.getLong("voip.reconnect.maxMillis", 30000);
+	private static final long RECONNECT_GIVE_UP = Config.getLong("voip.reconnect.giveUpMillis", 300000);
+	static final long LOGIN_TIMEOUT = Config.getLong("voip.login.timeoutMillis", 10000); //connecting plus the server's answer
 
 	/**
 	 * Client constructor, starts the neccessary streams for communication with the
@@ -38,17 +54,78 @@ public class Client {
 	public Client(Socket socket, InteractController interactController) {
 		try { //initialize instance variables
 			this.socket = socket;
+			this.serverHost = socket.getInetAddress().getHostAddress();
+			this.serverPort = socket.getPort();
+			SocketOptions.apply(socket);
 			this.bufRead = new BufferedReader(new InputStreamReader(
 					socket.getInputStream()));
-			this.bufWrite = new BufferedWriter(new OutputStreamWriter(
-					socket.getOutputStream()));
+			this.writer = new ControlWriter(socket.getOutputStream());
 			this.interactController = interactController;
 		} catch (IOException e) {
-			closeAllSreams(bufRead, bufWrite, socket);
+			closeAllSreams(bufRead, writer, socket);
 		}
 
 	}
 
+	/**
+	 * Connects to a server off the calling thread, so the login screen stays
+	 * responsive, and starts receiving.
+	 *
+	 * @param host               The server's address
+	 * @param port               The server's port
+	 * @param interactController The InteractController to communicate with the GUI
+	 * @return The connected client, or a failure if the server cannot be reached
+	 *         within {@code voip.login.timeoutMillis}
+	 */
+	public static CompletableFuture<Client> connect(String host, int port, InteractController interactController) {
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				Socket socket = new Socket();
+				socket.connect(new InetSocketAddress(host, port), (int) LOGIN_TIMEOUT);
+				Client client = new Client(socket, interactController);
+				client.receiver(); //start client receiving messages from server
+				return client;
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}, task -> {
+			Thread thread = new Thread(task, "connect");
+			thread.setDaemon(true);
+			thread.start();
+		});
+	}
+
+	/**
+	 * Sends the username to the server and returns its answer.
+	 *
+	 * @param username Username chosen by user.
+	 * @return true once logged in, false if the name is taken; fails if the
+	 *         connection closes first
+	 */
+	public CompletableFuture<Boolean> logIn(String username) {
+		CompletableFuture<Boolean> answer = new CompletableFuture<>();
+		pendingLogin = answer;
+		sendUserName(username);
+		return answer;
+	}
+
+	/**
+	 * Gives up on a connection that never logged in, without exiting. The
+	 * receiver closes the streams and ends, and the application carries on.
+	 */
+	public void abandon() {
+		abandoned = true;
+		closing = true;
+		dropConnection();
+	}
+
+	/**
+	 * @return Whether the login screen gave up on this connection
+	 */
+	public boolean isAbandoned() {
+		return abandoned;
+	}
+
 	/**
 	 * Sends the username to the Server.
 	 *
@@ -56,15 +133,21 @@ public class Client {
 	 */
 	public void sendUserName(String username) {
 		try {
-			bufWrite.write(username);
-			bufWrite.newLine();
-			bufWrite.flush(); //actual send to server
-		} catch (Exception e) { //catch write exceptions and close streams 
-
-			closeAllSreams(bufRead, bufWrite, socket);
+			this.username = username;
+			writer.send(loginLine(), true); //actual send to server
+		} catch (Exception e) { //the receiver notices the broken connection and reconnects
+			dropConnection();
 		}
 	}
 
+	/**
+	 * @return The login line: the username, after a reconnect followed by the
+	 *         last global message seen so only the missed ones are sent
+	 */
+	private String loginLine() {
+		return lastChatSeq > 0 ? username + "," + lastChatSeq : username;
+	}
+
 	/**
 	 * Sends the message to the server.
 	 *
@@ -72,11 +155,21 @@ public class Client {
 	 */
 	public void sendMessage(String message) {
 		try {
-			bufWrite.write(message);
-			bufWrite.newLine();
-			bufWrite.flush();
+			writer.send(message); //call signalling is sent at once, chat within the coalescing window
 		} catch (Exception e) {
-			closeAllSreams(bufRead, bufWrite, socket);
+			dropConnection(); //the receiver notices and reconnects; this message is lost
+		}
+	}
+
+	/**
+	 * Closes the connection to the server without disconnecting, so the receiver
+	 * reconnects.
+	 */
+	private void dropConnection() {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// already closed
 		}
 	}
 
@@ -92,101 +185,451 @@ public class Client {
 			@Override
 			public void run() {
 
-				try {
-					// message from server
-					String msg;
-
-					while (socket.isConnected()) {
-						msg = bufRead.readLine();
-						System.out.println(msg);
-						if (msg == null || msg.equals("##DISCONNECT")) { //close streams upon disconnect from server
-							closeAllSreams(bufRead, bufWrite, socket);
-							break;
-						}
-						if (msg.equals("##USERNAMETAKEN")) {
-							checkedUsername = true; //username checked
-							Platform.runLater(() -> interactController
-									.showErrorDialog("Username is taken. Please try a different username.")); //error message if username taken
-						}
-						if (msg.equals("##USERNAMEOK")) { 
-							checkedUsername = true; //username is checked
-							usernameOK = true; //username is not taken
-						}
-						if (msg.startsWith("##WHISPERFROM")) { //handle whisper messages
-							String[] parts = msg.split(",", 3); //split message for further processing
-							String whisperFrom = parts[1];
-							String whisperMsg = parts[2];
-							interactController.addWhisperMessage(whisperFrom, whisperFrom + ": " + whisperMsg); //adds whisper message to list controlled by interact controller
-							String selectedUser = interactController.getSelectedUser();
-							if (selectedUser != null) {
-								if (selectedUser.equals(whisperFrom)) {
-									interactController.appendWhisperMessage(whisperFrom + ": " + whisperMsg); //add message to GUI through interact controller
+				while (true) {
+					try {
+						// message from server
+						String msg;
+
+						while ((msg = bufRead.readLine()) != null) { //null when the connection drops
+							System.out.println(msg);
+							if (msg.equals("##DISCONNECT")) { //close streams upon disconnect from server
+								closeAllSreams(bufRead, writer, socket);
+								break;
+							}
+							if (msg.startsWith("##SEQ,")) { //numbered so it survives a reconnect
+								msg = unwrapNumbered(msg);
+								if (msg == null) {
+									continue; //already received before the reconnect
+								}
+							}
+							if (msg.startsWith("##SESSION,")) { //token to resume this session with
+								sessionToken = msg.substring("##SESSION,".length());
+							}
+							if (msg.startsWith("##RECONNECT")) { //the server is shutting down
+								String[] parts = msg.split(",", 2);
+								interactController.appendMessage("The server is restarting; reconnecting"
+										+ (parts.length > 1 ? " to " + parts[1] : ""));
+								if (parts.length > 1 && parts[1].lastIndexOf(':') > 0) {
+									serverHost = parts[1].substring(0, parts[1].lastIndexOf(':'));
+									serverPort = Integer.parseInt(parts[1].substring(parts[1].lastIndexOf(':') + 1).trim());
+								}
+								sessionToken = null; //sessions end with the server; log in by name
+								sendMessage("##DISCONNECT"); //frees the name for the next server at once
+								break;
+							}
+							if (msg.equals("##PING")) { //the server checking we are still here
+								sendMessage("##PONG");
+								if (unackedLines > 0) {
+									sendMessage("##ACK," + lastSeq);
+									unackedLines = 0;
+								}
+							}
+							if (msg.equals("##USERNAMETAKEN")) {
+								answerLogin(false); //the login screen asks for another name
+							}
+							if (msg.equals("##USERNAMEOK")) { 
+								usernameOK = true; //username is not taken
+								answerLogin(true);
+								sendMessage("##BULK"); //voice notes over connections of their own
+							}
+							if (msg.startsWith("##BULK,")) { //port and token for voice note transfers
+								String[] parts = msg.split(",");
+								bulk = new BulkClient(serverHost, Integer.parseInt(parts[1]), parts[2]);
+							}
+							if (msg.startsWith("##CHAT,") || msg.startsWith("##HISTORY,")) { //live or replayed global message
+								handleChat(msg);
+							}
+							if (msg.startsWith("##HISTORYPAGE")) { //page of older global messages
+								handleHistoryPage(msg);
+							}
+							if (msg.startsWith("##ROOM")) { //room messages, members and errors
+								handleRoom(msg);
+							}
+							if (msg.startsWith("##LEFT,")) {
+								interactController.appendMessage("Left room " + msg.substring("##LEFT,".length()));
+							}
+							if (msg.startsWith("##WHISPERFROM")) { //handle whisper messages
+								String[] parts = msg.split(",", 3); //split message for further processing
+								String whisperFrom = parts[1];
+								String whisperMsg = parts[2];
+								interactController.addWhisperMessage(whisperFrom, whisperFrom + ": " + whisperMsg); //adds whisper message to list controlled by interact controller
+								String selectedUser = interactController.getSelectedUser();
+								if (selectedUser != null) {
+									if (selectedUser.equals(whisperFrom)) {
+										interactController.appendWhisperMessage(whisperFrom + ": " + whisperMsg); //add message to GUI through interact controller
+									} else {
+										interactController.whisperNotification(whisperFrom); //otherwise add notification (*) on client that send the message
+									}
 								} else {
-									interactController.whisperNotification(whisperFrom); //otherwise add notification (*) on client that send the message
+									interactController.whisperNotification(whisperFrom);
 								}
-							} else {
-								interactController.whisperNotification(whisperFrom);
 							}
-						}
-						if (msg.startsWith("##WHISPERTO")) { //handles whisper send
-							String[] parts = msg.split(",", 3);
-							String whisperTo = parts[1];
-							String whisperMsg = parts[2];
-							interactController.addWhisperMessage(whisperTo, "You: " + whisperMsg);
-							interactController.appendWhisperMessage("You: " + whisperMsg); //show send whisper message in whisper area of GUI
-						}
-
-						if (msg.startsWith("##ONLINEUSER")) { 
-							clients.add(msg.substring(12)); //add user to list of clients
-							interactController.updateUserList(clients); //updates list of users
-							interactController.addWhisperee(msg.substring(12)); //add client to whisperee hashmap
-						}
+							if (msg.startsWith("##WHISPERTO")) { //handles whisper send
+								String[] parts = msg.split(",", 3);
+								String whisperTo = parts[1];
+								String whisperMsg = parts[2];
+								interactController.addWhisperMessage(whisperTo, "You: " + whisperMsg);
+								interactController.appendWhisperMessage("You: " + whisperMsg); //show send whisper message in whisper area of GUI
+							}
 
-						if (msg.startsWith("##CLIENTJOIN")) { //handles client joins
-							clients.add(msg.substring(12)); //add client that joined to client list
-							System.out.println(msg.substring(12) + " joined");
-							interactController.appendMessage(msg.substring(12) + " joined"); //convey that client joined via GUI
-							interactController.updateUserList(clients); //update user list view
-							interactController.addWhisperee(msg.substring(12)); //add client to whisperee hashmap
-						}
-						if (msg.startsWith("##CLIENTLEFT")) { //handle clients leaving
-							clients.remove(msg.substring(12)); //remove client from list 
-							System.out.println(msg.substring(12) + " left");
-							interactController.appendMessage(msg.substring(12) + " left");
-							interactController.updateUserList(clients); //update list of users on GUI now that someone left
-							interactController.removeWhisperee(msg.substring(12)); //remove client from whisperee hashmap
-						}
-						if (msg.startsWith("##CALLING")) {
-							handleIncomingCall(msg); //handles incoming call
-						}
-						if (msg.startsWith("##ACCEPTED")) {
-							handleAccept(msg); //handles a call accept
-						}
-						if (msg.startsWith("##DECLINED")) {
-							handleDecline(); //handles a call decline
-						}
-						if (msg.startsWith("##UNAVAILABLE")) {
-							handleUnavailable(); //handle if the client is unavailable to call
-						}
-						if (msg.startsWith("##ENDCALL")) {
-							stopVoIPSending(); //ends call
+							if (msg.startsWith("##PRESENCE,")) { //everyone online when we logged in
+								handlePresence(msg);
+							}
+							if (msg.startsWith("##PRESENCEDELTA,")) { //batch of users joining and leaving
+								handlePresenceDelta(msg);
+							}
+							if (msg.startsWith("##CALLING")) {
+								handleIncomingCall(msg); //handles incoming call
+							}
+							if (msg.startsWith("##ACCEPTED")) {
+								handleAccept(msg); //handles a call accept
+							}
+							if (msg.startsWith("##DECLINED")) {
+								handleDecline(); //handles a call decline
+							}
+							if (msg.startsWith("##UNAVAILABLE")) {
+								handleUnavailable(); //handle if the client is unavailable to call
+							}
+							if (msg.startsWith("##CONF")) { //conference invites, membership and errors
+								handleConference(msg);
+							}
+							if (msg.startsWith("##ENDCALL")) {
+								stopVoIPSending(); //ends call
+							}
+							if (msg.startsWith("##THROTTLED")) { //the server dropped messages sent too quickly
+								String[] parts = msg.split(",");
+								interactController.appendMessage("Slow down: " + parts[1].toLowerCase()
+										+ " messages are being dropped, try again in " + parts[2] + " ms");
+							}
+							if (msg.startsWith("##RECEIVEVOICENOTE")) {
+								handleVoiceNote(msg); //handles voice note when one comes in
+							}
+							if (msg.startsWith("##VOICENOTEREADY,")) { //a voice note to download
+								handleVoiceNoteReady(msg);
+							}
+							if (msg.startsWith("##VOICENOTEERROR,")) { //the server refused a voice note upload
+								String[] parts = msg.split(",", 3);
+								interactController.appendMessage("Voice note " + parts[1] + " not sent: " + parts[2]);
+							}
+							if (msg.charAt(0) != '#') {
+								System.out.println(msg);
+								interactController.appendMessage(msg);
+							}
 						}
-						if (msg.startsWith("##RECEIVEVOICENOTE")) {
-							handleVoiceNote(msg); //handles voice note when one comes in
+					} catch (Exception e) {
+						if (!abandoned) {
+							e.printStackTrace();
 						}
-						if (msg.charAt(0) != '#') {
-							System.out.println(msg);
-							interactController.appendMessage(msg);
+					}
+					if (abandoned) { //even if the server answered after the login screen gave up
+						closeStreams(bufRead, writer, socket);
+						closeBulk();
+						return;
+					}
+					if (!usernameOK) { //never logged in; the login screen reports it
+						CompletableFuture<Boolean> login = pendingLogin;
+						if (login != null) {
+							login.completeExceptionally(new EOFException("Server closed the connection"));
 						}
+						return;
+					}
+					if (closing || !reconnect()) {
+						closeAllSreams(bufRead, writer, socket);
+						return;
 					}
-				} catch (Exception e) {
-					e.printStackTrace();
-					closeAllSreams(bufRead, bufWrite, socket);
 				}
 			}
 		}).start();
 	}
 
+	/**
+	 * Completes the pending login with the server's answer.
+	 *
+	 * @param ok Whether the username was accepted
+	 */
+	private void answerLogin(boolean ok) {
+		CompletableFuture<Boolean> login = pendingLogin;
+		if (login != null) {
+			login.complete(ok);
+		}
+	}
+
+	/**
+	 * Unwraps a numbered line, "##SEQ,<n>,<line>", acknowledging every
+	 * {@value #ACK_EVERY} lines so the server can forget them.
+	 *
+	 * @param message The numbered line
+	 * @return The line, or null if it was received before
+	 */
+	private String unwrapNumbered(String message) {
+		String[] parts = message.split(",", 3);
+		long seq = Long.parseLong(parts[1]);
+		if (seq <= lastSeq) {
+			return null; //replayed, but we had it
+		}
+		lastSeq = seq;
+		if (++unackedLines >= ACK_EVERY) {
+			sendMessage("##ACK," + seq);
+			unackedLines = 0;
+		}
+		return parts[2];
+	}
+
+	/**
+	 * Reconnects after the connection to the server dropped, waiting between
+	 * attempts with exponential backoff and jitter ({@code voip.reconnect.initialMillis},
+	 * default 500, doubling up to {@code voip.reconnect.maxMillis}, default 30000),
+	 * so clients dropped together do not all return at once. The session is
+	 * resumed if the server still has it, otherwise the client logs in by name
+	 * and rejoins its room.
+	 *
+	 * @return Whether the client is connected again; false after
+	 *         {@code voip.reconnect.giveUpMillis} (default 300000)
+	 */
+	private boolean reconnect() {
+		interactController.appendMessage("Connection to the server lost; reconnecting");
+		long giveUpAt = System.currentTimeMillis() + RECONNECT_GIVE_UP;
+		long backoff = RECONNECT_INITIAL;
+		while (!closing && System.currentTimeMillis() < giveUpAt) {
+			try {
+				Thread.sleep(backoff / 2 + (long) (random.nextDouble() * backoff / 2)); //between half and all of the backoff
+			} catch (InterruptedException e) {
+				return false;
+			}
+			backoff = Math.min(RECONNECT_MAX, backoff * 2);
+			try {
+				if (login()) {
+					interactController.appendMessage("Reconnected");
+					return true;
+				}
+			} catch (IOException e) {
+				System.out.println("Reconnect failed: " + e.getMessage());
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Opens a new connection and logs in on it, with the session token if there
+	 * is one. The lines after the server's answer are left for the receiver.
+	 *
+	 * @return Whether the client is logged in; false if the name is still taken
+	 * @throws IOException If connecting fails
+	 */
+	private boolean login() throws IOException {
+		Socket newSocket = new Socket(serverHost, serverPort);
+		SocketOptions.apply(newSocket);
+		newSocket.setSoTimeout(10000); //the server answers a login quickly
+		BufferedReader newReader = new BufferedReader(new InputStreamReader(newSocket.getInputStream()));
+		ControlWriter newWriter = new ControlWriter(newSocket.getOutputStream());
+		try {
+			String token = sessionToken;
+			boolean fresh = token == null; //a new session, in no room or conference
+			newWriter.send(token != null ? "##RESUME," + token + "," + lastSeq + "," + lastChatSeq : loginLine(), true);
+			String answer;
+			while ((answer = newReader.readLine()) != null) {
+				if (answer.equals("##RESUMEFAILED")) { //the session ended; start a new one
+					fresh = true;
+					sessionToken = null;
+					lastSeq = 0;
+					newWriter.send(loginLine(), true);
+				} else if (answer.equals("##USERNAMEOK")) {
+					newSocket.setSoTimeout(0);
+					ControlWriter oldWriter = writer;
+					Socket oldSocket = socket;
+					socket = newSocket;
+					bufRead = newReader;
+					writer = newWriter;
+					oldWriter.close();
+					oldSocket.close();
+					closeBulk(); //its token ended with the old connection
+					sendMessage("##BULK");
+					if (fresh && currentRoom != null) {
+						sendMessage("##JOIN," + currentRoom); //a new session starts outside any room
+					}
+					if (fresh) {
+						leaveConference(); //and outside any conference
+					}
+					return true;
+				} else if (answer.equals("##USERNAMETAKEN")) {
+					break; //our old connection may still hold it; try again later
+				}
+			}
+		} catch (IOException e) {
+			newSocket.close();
+			throw e;
+		}
+		newSocket.close();
+		return false;
+	}
+
+	/**
+	 * Replaces the list of online users with the server's snapshot,
+	 * "##PRESENCE,<version>,<user>,...".
+	 *
+	 * @param message The snapshot from the server.
+	 */
+	private void handlePresence(String message) {
+		String[] parts = message.split(",");
+		clients.clear();
+		for (int i = 2; i < parts.length; i++) {
+			if (!parts[i].equals(username)) {
+				clients.add(parts[i]);
+				interactController.addWhisperee(parts[i]); //add client to whisperee hashmap
+			}
+		}
+		interactController.updateUserList(new ArrayList<>(clients)); //one update for the whole list
+	}
+
+	/**
+	 * Applies a batch of presence changes, "##PRESENCEDELTA,<version>,+<user>,-<user>,...".
+	 *
+	 * @param message The delta from the server.
+	 */
+	private void handlePresenceDelta(String message) {
+		String[] parts = message.split(",");
+		ArrayList<String> joined = new ArrayList<>();
+		ArrayList<String> left = new ArrayList<>();
+		for (int i = 2; i < parts.length; i++) {
+			String user = parts[i].substring(1);
+			if (user.equals(username)) {
+				continue; //we are not in our own list
+			}
+			if (parts[i].charAt(0) == '+') {
+				clients.add(user); //add client that joined to client list
+				joined.add(user);
+				interactController.appendMessage(user + " joined"); //convey that client joined via GUI
+				interactController.addWhisperee(user); //add client to whisperee hashmap
+			} else {
+				clients.remove(user); //remove client from list
+				clients.remove("*" + user); //also when marked as having sent a whisper
+				left.add(user);
+				interactController.appendMessage(user + " left");
+				interactController.removeWhisperee(user); //remove client from whisperee hashmap
+			}
+		}
+		interactController.applyPresenceDelta(joined, left); //only the changed rows are touched
+	}
+
+	/**
+	 * Handles a global message, either live ("##CHAT,<seq>,<sender>,<text>") or
+	 * replayed on join ("##HISTORY,<seq>,<time>,<sender>,<text>").
+	 *
+	 * @param message The message from the server.
+	 */
+	private void handleChat(String message) {
+		boolean replay = message.startsWith("##HISTORY,");
+		String[] parts = message.split(",", replay ? 5 : 4);
+		long seq = Long.parseLong(parts[1]);
+		String sender = parts[replay ? 3 : 2];
+		String text = parts[replay ? 4 : 3];
+		if (seq > 0 && seq <= lastChatSeq) {
+			return; //already shown
+		}
+		if (seq > 0) {
+			lastChatSeq = seq;
+			if (oldestChatSeq == 0) {
+				oldestChatSeq = seq;
+			}
+		}
+		interactController.appendMessage((sender.equals(username) ? "You" : sender) + ": " + text);
+	}
+
+	/**
+	 * Collects a page of older global messages and shows it above the current ones
+	 * once "##HISTORYPAGEEND" arrives.
+	 *
+	 * @param message The message from the server.
+	 */
+	private void handleHistoryPage(String message) {
+		if (message.startsWith("##HISTORYPAGEEND")) {
+			interactController.prependMessages(new ArrayList<>(olderMessages));
+			olderMessages.clear();
+			return;
+		}
+		String[] parts = message.split(",", 5); //##HISTORYPAGE,<seq>,<time>,<sender>,<text>
+		long seq = Long.parseLong(parts[1]);
+		if (oldestChatSeq == 0 || seq < oldestChatSeq) {
+			oldestChatSeq = seq;
+		}
+		olderMessages.add((parts[3].equals(username) ? "You" : parts[3]) + ": " + parts[4]);
+	}
+
+	/**
+	 * Handles a room line: "##ROOMCHAT,<room>,<sender>,<text>", the members on
+	 * joining ("##ROOMPRESENCE,<room>,<version>,<user>,..."), member changes
+	 * ("##ROOMPRESENCEDELTA,<room>,<version>,+<user>,-<user>,...") or
+	 * "##ROOMERROR,<room>,<reason>".
+	 *
+	 * @param message The message from the server.
+	 */
+	private void handleRoom(String message) {
+		if (message.startsWith("##ROOMCHAT,")) {
+			String[] parts = message.split(",", 4);
+			interactController.appendMessage("[" + parts[1] + "] " + (parts[2].equals(username) ? "You" : parts[2])
+					+ ": " + parts[3]);
+		} else if (message.startsWith("##ROOMPRESENCE,")) {
+			String[] parts = message.split(",");
+			currentRoom = parts[1];
+			interactController.appendMessage("Joined room " + parts[1] + " (" + (parts.length - 3)
+					+ " others here); /leave to return to global chat");
+		} else if (message.startsWith("##ROOMPRESENCEDELTA,")) {
+			String[] parts = message.split(",");
+			for (int i = 3; i < parts.length; i++) {
+				String user = parts[i].substring(1);
+				if (!user.equals(username)) {
+					interactController.appendMessage("[" + parts[1] + "] " + user
+							+ (parts[i].charAt(0) == '+' ? " joined" : " left"));
+				}
+			}
+		} else if (message.startsWith("##ROOMERROR,")) {
+			String[] parts = message.split(",", 3);
+			interactController.appendMessage("Room " + parts[1] + ": " + parts[2]);
+		}
+	}
+
+	/**
+	 * Joins a room; later messages go to the room until it is left.
+	 *
+	 * @param room The room's name
+	 */
+	public void joinRoom(String room) {
+		if (currentRoom != null) {
+			leaveRoom();
+		}
+		sendMessage("##JOIN," + room);
+	}
+
+	/**
+	 * Leaves the current room, returning to global chat.
+	 */
+	public void leaveRoom() {
+		String room = currentRoom;
+		currentRoom = null;
+		if (room != null) {
+			sendMessage("##LEAVE," + room);
+		}
+	}
+
+	/**
+	 * Sends a chat message to the current room, or to everyone if not in a room.
+	 *
+	 * @param message The message
+	 */
+	public void sendChat(String message) {
+		String room = currentRoom;
+		sendMessage(room != null ? "##ROOM," + room + "," + message : message);
+	}
+
+	/**
+	 * Asks the server for the global messages sent before the oldest one shown.
+	 */
+	public void requestOlderMessages() {
+		if (oldestChatSeq > 1) {
+			sendMessage("##HISTORYBEFORE," + oldestChatSeq + ",50");
+		}
+	}
+
 	/**
 	 * Handles incoming call requests from other clients.
 	 *
@@ -216,6 +659,7 @@ public class Client {
 	public void handleIncomingCallResponse(ButtonType response) {
 		if (response == ButtonType.YES) {
 			interactController.appendMessage("Accepted call from " + participant);
+			ensureVoip(); //binds the port sent to the caller
 			sendMessage("##ACCEPTED," + participant + "," + port);
 			startVoIPSending(); //call accepted; sends message to server and starts VoIP sends
 		} else {
@@ -258,39 +702,49 @@ public class Client {
 	 * Closes all the streams associated with this client
 	 *
 	 * @param bufRead BufferedReader, reads from the connected socket.
-	 * @param bWriter The BufferedWriter, writes to the connected socket.
+	 * @param bWriter The ControlWriter, writes to the connected socket.
 	 * @param socket  Socket, connects this client to the server.
 	 */
-	public void closeAllSreams(BufferedReader bufRead, BufferedWriter bWriter, Socket socket) {
+	public void closeAllSreams(BufferedReader bufRead, ControlWriter bWriter, Socket socket) {
 		System.out.println("Server disconnected");
+		closeStreams(bufRead, bWriter, socket);
+		System.exit(0);
+	}
+
+	/**
+	 * Closes the streams associated with this client without exiting.
+	 *
+	 * @param bufRead BufferedReader, reads from the connected socket.
+	 * @param bWriter The ControlWriter, writes to the connected socket.
+	 * @param socket  Socket, connects this client to the server.
+	 */
+	private void closeStreams(BufferedReader bufRead, ControlWriter bWriter, Socket socket) {
 		try {
 			if (bufRead != null)
 				bufRead.close();
-			if (bufWrite != null)
-				bufWrite.close();
+			if (bWriter != null)
+				bWriter.close();
 			if (socket != null)
 				socket.close();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
-		;
-		System.exit(0);
 	}
 
 	/**
 	 * Sends a disconnect message to the server and closes all streams
 	 */
 	public void disconnect() {
+		closing = true; //no reconnecting from here on
 		try {
-			if (bufWrite != null) {
-				bufWrite.write("##DISCONNECT");
-				bufWrite.newLine();
-				bufWrite.flush();
+			if (writer != null) {
+				writer.send("##DISCONNECT", true);
 			} //send disconnect message to server
 		} catch (IOException e) {
 			e.printStackTrace();
 		} finally {
-			closeAllSreams(bufRead, bufWrite, socket);
+			closeAllSreams(bufRead, writer, socket);
+			closeBulk();
 			stopVoip(); //stops voice over IP
 		}
 	}
@@ -302,9 +756,24 @@ public class Client {
 
 	DatagramSocket datagramSend; //Datagram socket for sending datagram packets
 	AudioFormat audioFormat = new AudioFormat(48000, 16, 1, true, false); //the format of audio sent: specifies sample rate, size, number of channels, etc
-	volatile TargetDataLine targetDataLine;
-	DatagramSocket datagramReceive; //Datagram socket for receiving datagram packets
-	SourceDataLine sourceDataLine; //SourceDataLine object that handles audio playback and capture
+	volatile AudioSource captureSource; //microphone (or configured source) used during a call
+	volatile DatagramSocket datagramReceive; //Datagram socket for receiving datagram packets, bound on the first call
+	volatile AudioSink playbackSink; //speakers (or configured sink) used during a call
+	static final int FRAME_BYTES = 4096; //bytes of audio carried by each voice packet
+	static final int HEADER_BYTES = 12; //call packet header: sequence number (int) and capture time (long)
+	private volatile CallStats callStats; //quality statistics of the current call
+	private volatile ConferenceCall conference; //conference the client is in, null when none
+	static final int CONFERENCE_HEADER_BYTES = 4; //conference packet header: the sender's member id (int)
+
+	/**
+	 * Starts the VoIP connection the first time it is needed, so logging in does
+	 * not wait for media sockets and a client that never calls never binds them.
+	 */
+	private synchronized void ensureVoip() {
+		if (datagramReceive == null) {
+			startVoip();
+		}
+	}
 
 	/**
 	 * Starts the VoIP connection.
@@ -334,6 +803,7 @@ public class Client {
 			interactController.showErrorDialog("You are already in a call or conference");
 		} else {
 			participant = callee; //the other client
+			ensureVoip(); //binds the port sent to the callee
 			sendMessage("##CALLING," + callee + "," + port); //send calling message to server
 		}
 
@@ -344,15 +814,29 @@ public class Client {
 	 */
 	private void startVoIPSending() {
 		onCall = true;
+		CallStats stats = new CallStats(participant, FRAME_BYTES / 2 * 1000.0 / audioFormat.getSampleRate());
+		callStats = stats;
 		sending();
+		new Thread(() -> { //refreshes the live statistics in the call area
+			while (onCall && callStats == stats) {
+				interactController.updateCallStats(stats.liveLine());
+				try {
+					Thread.sleep(1000);
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+		}).start();
 	}
 
 	/**
 	 * Ends an incoming call
 	 */
 	public void endCall() {
-		if (participant.equals("conference")) { //if on conference call, disconnect client
-			onCall = false;
+		ConferenceCall current = conference;
+		if (current != null) { //if on conference call, leave it
+			sendMessage("##CONFLEAVE," + current.id);
+			leaveConference();
 		} else {
 			sendMessage("##ENDCALL," + participant); //send message to server to destroy call
 			stopVoIPSending();
@@ -364,11 +848,20 @@ public class Client {
 	 */
 	public void stopVoIPSending() {
 		onCall = false;
-		targetDataLine.stop(); 
-		targetDataLine.close(); //close audio input data line
+		if (captureSource != null) {
+			captureSource.close(); //close audio input
+		}
 		datagramSend.close(); //closes datagram sending socket
 		System.out.println("Stopped Sending over voip!");
 		interactController.appendMessage("Call ended with " + participant);
+		CallStats stats = callStats;
+		if (stats != null) { //dump the call quality summary
+			callStats = null;
+			String summary = stats.summary();
+			System.out.println(summary);
+			interactController.appendCallMessage(summary);
+			interactController.updateCallStats("");
+		}
 	}
 
 	/**
@@ -382,25 +875,28 @@ public class Client {
 
 				System.out.println("VoIP receiving started on: " + port);
 				try {
-					byte[] bytes = new byte[4096];
-
-					DataLine.Info info = new DataLine.Info(SourceDataLine.class, audioFormat); //get audio line information
-
-					sourceDataLine = (SourceDataLine) AudioSystem.getLine(info); //use bidirectional audio data line to specifically get audio output.
+					byte[] bytes = new byte[HEADER_BYTES + FRAME_BYTES];
+					ByteBuffer header = ByteBuffer.wrap(bytes);
+					double bytesPerMilli = audioFormat.getFrameRate() * audioFormat.getFrameSize() / 1000;
 
-					sourceDataLine.open(audioFormat); //open data line for receiving audio in the specified format
-					sourceDataLine.start(); //begins playing audio data written to SourceDataLine object
+					playbackSink = AudioDevices.openSink(audioFormat); //open audio output in the specified format
 
 					DatagramPacket packet = new DatagramPacket(bytes, bytes.length);
 
 					while (true) {
 
+						packet.setLength(bytes.length);
 						datagramReceive.receive(packet); //receive packets on client's datagram receiving socket
 						// System.out.println("Received voice");
 
-						if (onCall) {
+						if (onCall && packet.getLength() > HEADER_BYTES) {
 							// System.out.println("To speakers");
-							sourceDataLine.write(packet.getData(), 0, 4096); //write packet data to the data line
+							CallStats stats = callStats;
+							if (stats != null) {
+								stats.packetReceived(header.getInt(0) & 0xffffffffL, header.getLong(4),
+										playbackSink.getQueuedBytes() / bytesPerMilli);
+							}
+							playbackSink.write(bytes, HEADER_BYTES, packet.getLength() - HEADER_BYTES); //write audio to the audio output
 						}
 					}
 				} catch (Exception e) {
@@ -424,23 +920,13 @@ public class Client {
 							"Sending VoIP to " + participant + " " + participantAddress + " " + participantPort);
 					datagramSend = new DatagramSocket(); //init new socket for receiving data
 
-					DataLine.Info datInfo = new DataLine.Info(TargetDataLine.class, audioFormat); //stores information about target data line
-					targetDataLine = (TargetDataLine) AudioSystem.getLine(datInfo); //gets the dataline for audio input
-					targetDataLine.open(); //opens data line for sending audio
-
-					AudioInputStream audioInputStream = new AudioInputStream(targetDataLine);
-					targetDataLine.start(); //starts receiving audio from input device
+					captureSource = AudioDevices.openSource(audioFormat); //opens audio input and starts capturing
 
+					byte[] packet = new byte[HEADER_BYTES + FRAME_BYTES];
+					int seq = 0;
 					while (onCall) { //actual send process
-
-						byte[] byt = audioInputStream.readNBytes(4096); //read 4096 bytes
-						try {
-							DatagramPacket dataPack = new DatagramPacket(byt, byt.length,
-									InetAddress.getByName(participantAddress), participantPort); //create datagram packet of data to send using 4096 bytes previously read; append the participant IP and port
-							datagramSend.send(dataPack); //send packet to other client
-						} catch (Exception e) {
-						}
-
+						sendVoicePacket(captureSource, datagramSend, participantAddress, participantPort, packet, seq++,
+								callStats);
 					}
 
 				} catch (Exception e) {
@@ -451,47 +937,184 @@ public class Client {
 		}).start();
 	}
 
+	/**
+	 * Captures one packet of audio and sends it to the other participant.
+	 * The packet starts with its sequence number and the capture time so the
+	 * receiver can measure loss, jitter and latency.
+	 *
+	 * @param source  The audio input
+	 * @param socket  The socket to send from
+	 * @param address IP address of the other participant
+	 * @param port    Voice port of the other participant
+	 * @param packet  Buffer of HEADER_BYTES + FRAME_BYTES to build the packet in
+	 * @param seq     Sequence number of the packet
+	 * @param stats   Statistics of the call, or null
+	 * @throws IOException If capturing fails
+	 */
+	static void sendVoicePacket(AudioSource source, DatagramSocket socket, String address, int port, byte[] packet,
+			int seq, CallStats stats) throws IOException {
+		int length = HEADER_BYTES;
+		while (length < packet.length) { //read 4096 bytes of audio after the header
+			int read = source.read(packet, length, packet.length - length);
+			if (read < 0) {
+				break;
+			}
+			length += read;
+		}
+		long captureMillis = System.currentTimeMillis();
+		ByteBuffer header = ByteBuffer.wrap(packet);
+		header.putInt(0, seq);
+		header.putLong(4, captureMillis);
+		try {
+			DatagramPacket dataPack = new DatagramPacket(packet, length,
+					InetAddress.getByName(address), port); //create datagram packet of the captured audio; append the participant IP and port
+			socket.send(dataPack); //send packet to other client
+			if (stats != null) {
+				stats.packetSent(length - HEADER_BYTES, captureMillis);
+			}
+		} catch (Exception e) {
+		}
+	}
+
 	/**
 	 * Stops the VoIP connection
 	 */
 	public void stopVoip() {
-		sourceDataLine.stop();
-		sourceDataLine.close(); //closes datagram receiving dataline
-		datagramReceive.close(); //closes datagram receiving socket
+		if (playbackSink != null) {
+			playbackSink.close(); //closes audio output
+		}
+		if (datagramReceive != null) {
+			datagramReceive.close(); //closes datagram receiving socket
+		}
 	}
 
 	/**
-	 * Sends a whisper message to another client.
-	 * @param voiceNoteFile file containing voicenote
-	 * @param recipientUsername username of client receivng the voicenote
+	 * Uploads part of a voice note that is still being recorded,
+	 * "##VOICENOTECHUNK,<file name>,<offset>,<base64 data>".
+	 *
+	 * @param fileName Name of the note
+	 * @param offset   Position of the data in the file
+	 * @param data     Buffer holding the data
+	 * @param length   Number of bytes from the start of the buffer
 	 */
-	public void sendVoiceNoteFile(File voiceNoteFile, String recipientUsername) {
-		// Check if the file exists and is not empty
-		if (!voiceNoteFile.exists() || voiceNoteFile.length() == 0) {
-			System.out.println("Voice note file does not exist or is empty: " + voiceNoteFile.getPath());
-			return;
-		}
+	public void sendVoiceNoteChunk(String fileName, long offset, byte[] data, int length) {
+		String encoded = Base64.getEncoder().encodeToString(length == data.length ? data : Arrays.copyOf(data, length));
+		sendMessage("##VOICENOTECHUNK," + fileName + "," + offset + "," + encoded);
+	}
 
-		try {
-			// Read the file first to ensure it's ready for transmission
-			byte[] fileContent = Files.readAllBytes(voiceNoteFile.toPath());
-			System.out.println("Read voice note file successfully: " + voiceNoteFile.getName() + ", Size: "
-					+ fileContent.length + " bytes");
+	/**
+	 * Finishes an uploaded voice note and has the server deliver it,
+	 * "##VOICENOTEEND,<file name>,<size>,<recipient>".
+	 *
+	 * @param fileName  Name of the note
+	 * @param size      Size of the complete file
+	 * @param recipient User to deliver it to, or empty to discard it
+	 */
+	public void endVoiceNote(String fileName, long size, String recipient) {
+		sendMessage("##VOICENOTEEND," + fileName + "," + size + "," + recipient);
+	}
+
+	/**
+	 * A voice note being uploaded while it is recorded.
+	 */
+	public interface VoiceNoteUpload {
+
+		/**
+		 * Uploads part of the note.
+		 *
+		 * @param offset Position of the data in the file
+		 * @param data   Buffer holding the data
+		 * @param length Number of bytes from the start of the buffer
+		 */
+		void write(long offset, byte[] data, int length);
+
+		/**
+		 * Ends the upload and has the server deliver the note.
+		 *
+		 * @param size      Size of the complete file
+		 * @param recipient User to deliver it to, or empty to discard it
+		 */
+		void finish(long size, String recipient);
+	}
 
-			// Send metadata about the voice note to server
-			sendMessage("##VOICENOTE," + recipientUsername + "," + voiceNoteFile.getName() + "," + fileContent.length);
+	/**
+	 * Starts uploading a voice note: over a connection of its own if the server
+	 * issued a bulk token, otherwise in chunks on the control connection.
+	 *
+	 * @param fileName Name of the note
+	 * @return The upload
+	 */
+	public VoiceNoteUpload uploadVoiceNote(String fileName) {
+		BulkClient transfers = bulk;
+		if (transfers == null) {
+			return new VoiceNoteUpload() {
+				@Override
+				public void write(long offset, byte[] data, int length) {
+					sendVoiceNoteChunk(fileName, offset, data, length);
+				}
 
-			// Now send the actual file content
-			OutputStream out = socket.getOutputStream();
-			out.write(fileContent); //writes file content to socket output stream
-			out.flush(); // Ensure all data is sent
+				@Override
+				public void finish(long size, String recipient) {
+					endVoiceNote(fileName, size, recipient);
+				}
+			};
+		}
+		BulkClient.Upload upload = transfers.upload(fileName);
+		return new VoiceNoteUpload() {
+			@Override
+			public void write(long offset, byte[] data, int length) {
+				upload.write(offset, data, length);
+			}
 
-			System.out.println("Voice note sent successfully to server.");
+			@Override
+			public void finish(long size, String recipient) {
+				upload.finish(size, recipient).exceptionally(e -> {
+					interactController.appendMessage("Voice note " + fileName + " not sent: "
+							+ (e.getCause() != null ? e.getCause().getMessage() : e.getMessage()));
+					return null;
+				});
+			}
+		};
+	}
+
+	/**
+	 * Downloads a voice note the server has for us, "##VOICENOTEREADY,<file name>,<size>",
+	 * and lists it once it is complete.
+	 *
+	 * @param message The message from the server.
+	 */
+	private void handleVoiceNoteReady(String message) {
+		String[] parts = message.split(",", 3);
+		BulkClient transfers = bulk;
+		if (parts.length < 3 || transfers == null) {
+			return;
+		}
+		File file = new File("receivedVoiceNotes/" + new File(parts[1]).getName());
+		file.getParentFile().mkdirs();
+		try {
+			transfers.download(parts[1], new BufferedOutputStream(new FileOutputStream(file))).whenComplete((size, e) -> {
+				if (e == null) {
+					interactController.addVoiceNoteToListView(file);
+				} else {
+					file.delete();
+					interactController.appendMessage("Voice note " + parts[1] + " could not be downloaded");
+				}
+			});
 		} catch (IOException e) {
-			System.err.println("Error during voice note transmission: " + e.getMessage());
+			System.out.println("Cannot save voice note: " + e.getMessage());
 		}
 	}
 
+	/**
+	 * Stops using the bulk token, which ends with the connection it was issued on.
+	 */
+	private void closeBulk() {
+		BulkClient transfers = bulk;
+		bulk = null;
+		if (transfers != null) {
+			transfers.close();
+		}
+	}
 
 	/**
 	 * Handles the received voice note message.
@@ -555,58 +1178,160 @@ public class Client {
 	}
 
 	/**
-	 * Starts conference call connection
+	 * Starts a conference call and invites the selected user to it, or invites
+	 * the selected user to the conference the client is in. The server
+	 * allocates the conference, see {@link ConferenceRoom}.
+	 *
+	 * @param invitee User to invite, or null
 	 */
-	public void conference() {
-		if (onCall) {
+	public void conference(String invitee) {
+		ConferenceCall current = conference;
+		if (current != null) {
+			if (invitee == null) {
+				interactController.showErrorDialog("Select someone to invite to the conference");
+			} else {
+				sendMessage("##CONFINVITE," + current.id + "," + invitee);
+				interactController.appendCallMessage("Invited " + invitee + " to the conference");
+			}
+		} else if (onCall) {
 			interactController.showErrorDialog("You are already in a call or conference!");
 		} else {
-			onCall = true;
-			participant = "conference";
-			receivingConference(); //set up conference call receiving
-			sendingConference(); //set up conference call sending
+			sendMessage(invitee == null ? "##CONFCREATE" : "##CONFCREATE," + invitee);
+		}
+	}
+
+	/**
+	 * Joins a conference the client was invited to, leaving the one it is in.
+	 *
+	 * @param id The conference
+	 */
+	public void joinConference(int id) {
+		if (onCall && conference == null) {
+			interactController.showErrorDialog("You are already in a call!");
+		} else {
+			sendMessage("##CONFJOIN," + id);
+		}
+	}
+
+	/**
+	 * Handles a conference line: "##CONFINVITE,<id>,<inviter>",
+	 * "##CONFJOINED,<id>,<group>,<port>,<member id>",
+	 * "##CONFMEMBERS,<id>,<user>,...", "##CONFLEFT,<id>" or
+	 * "##CONFERROR,<id>,<reason>".
+	 *
+	 * @param message The message from the server.
+	 */
+	private void handleConference(String message) {
+		String[] parts = message.split(",");
+		ConferenceCall current = conference;
+		if (parts[0].equals("##CONFINVITE")) {
+			interactController.appendCallMessage(parts[2] + " invited you to a conference");
+			interactController.showConferenceInvite(parts[2], Integer.parseInt(parts[1]));
+		} else if (parts[0].equals("##CONFJOINED")) {
+			handleConferenceJoined(parts);
+		} else if (parts[0].equals("##CONFMEMBERS")) {
+			if (current != null && current.id == Integer.parseInt(parts[1])) {
+				List<String> others = new ArrayList<>(Arrays.asList(parts).subList(2, parts.length));
+				others.remove(username);
+				interactController.appendCallMessage(others.isEmpty() ? "Nobody else is in the conference"
+						: "In the conference: " + String.join(", ", others));
+			}
+		} else if (parts[0].equals("##CONFLEFT")) {
+			if (current != null && current.id == Integer.parseInt(parts[1])) {
+				leaveConference(); //still on it, e.g. another window of the session left
+			}
+		} else if (parts[0].equals("##CONFERROR")) {
+			interactController.showErrorDialog("Conference: " + message.split(",", 3)[2]);
+		}
+	}
+
+	/**
+	 * Starts sending and receiving on a conference the server has added the client to.
+	 *
+	 * @param parts The "##CONFJOINED" line, split at its commas
+	 */
+	private void handleConferenceJoined(String[] parts) {
+		int id = Integer.parseInt(parts[1]);
+		ConferenceCall current = conference;
+		if (current != null && current.id == id) {
+			return; //sent again after the session was resumed; still on it
+		}
+		if (current == null && onCall) {
+			sendMessage("##CONFLEAVE," + id); //a call started meanwhile
+			return;
+		}
+		ConferenceCall joined;
+		try {
+			joined = new ConferenceCall(id, InetAddress.getByName(parts[2]), Integer.parseInt(parts[3]),
+					Integer.parseInt(parts[4]));
+		} catch (UnknownHostException e) {
+			sendMessage("##CONFLEAVE," + id);
+			return;
+		}
+		onCall = true;
+		conference = joined; //the threads of a previous conference stop
+		receivingConference(joined); //set up conference call receiving
+		sendingConference(joined); //set up conference call sending
+		interactController.appendCallMessage("Joined conference " + id);
+	}
+
+	/**
+	 * Stops sending and receiving conference audio.
+	 */
+	private void leaveConference() {
+		if (conference != null) {
+			conference = null;
+			onCall = false;
+			interactController.appendCallMessage("Left the conference");
 		}
 	}
 
 	/**
 	 * Receives voice data from the other clients in the conference.
+	 * Packets are queued per sender in the conference mixer and a separate
+	 * playout thread mixes them into the speaker line on a fixed clock.
+	 *
+	 * @param call The conference
 	 */
-	private void receivingConference() {
+	private void receivingConference(ConferenceCall call) {
+
+		ConferenceMixer mixer = new ConferenceMixer(FRAME_BYTES);
+		Thread playout = new Thread(() -> playConference(call, mixer)); //plays the mixed conference audio
+		playout.start();
 
 		new Thread(new Runnable() {
 
 			@SuppressWarnings("deprecation")
 			public void run() {
 				try {
-					// Create source data line for audio output
-					DataLine.Info info = new DataLine.Info(SourceDataLine.class, audioFormat);
-					SourceDataLine line = (SourceDataLine) AudioSystem.getLine(info);
-					line.open(audioFormat);
-					line.start();
-
-					// Specify multicast group address and port
-					String groupAddress = "239.1.2.3";
-					int port = 5000; // Use the same port for all senders and receivers
-
-					// Create multicast socket
-					InetAddress group = InetAddress.getByName(groupAddress); //represents multicast IP
-					MulticastSocket multicastSocket = new MulticastSocket(port); 
-					multicastSocket.joinGroup(group); //joins multicast group through the multicast socket
+					// Create multicast socket on the conference's own port
+					MulticastSocket multicastSocket = new MulticastSocket(call.port);
+					multicastSocket.joinGroup(call.group); //joins multicast group through the multicast socket
+					multicastSocket.setSoTimeout(500); //wake up regularly to notice the end of the conference
 
 					// Buffer for incoming data
-					byte[] buffer = new byte[4096];
-
-					// Receive audio from multicast group and play
-					DatagramPacket packet;
-					while (onCall) {
-						packet = new DatagramPacket(buffer, buffer.length);
-						multicastSocket.receive(packet);
-						line.write(packet.getData(), 0, packet.getLength());
-						// System.out.println("received");
+					byte[] buffer = new byte[CONFERENCE_HEADER_BYTES + FRAME_BYTES];
+
+					// Receive audio from multicast group and queue it per sender
+					DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+					while (conference == call) {
+						packet.setLength(buffer.length);
+						try {
+							multicastSocket.receive(packet);
+						} catch (SocketTimeoutException e) {
+							continue;
+						}
+						if (packet.getLength() < CONFERENCE_HEADER_BYTES) {
+							continue;
+						}
+						int sender = ByteBuffer.wrap(buffer, 0, CONFERENCE_HEADER_BYTES).getInt();
+						if (sender == call.memberId) {
+							continue; //our own voice, looped back by the network
+						}
+						mixer.offer(sender, buffer, CONFERENCE_HEADER_BYTES, packet.getLength() - CONFERENCE_HEADER_BYTES);
 					}
+					multicastSocket.leaveGroup(call.group);
 					multicastSocket.close();
-					line.stop();
-					line.close();
 
 				} catch (Exception e) {
 					e.printStackTrace();
@@ -616,42 +1341,68 @@ public class Client {
 	}
 
 	/**
-	 * Sends voice data to the other clients in the conference 
+	 * Plays the conference mix, producing one frame per frame period until the conference ends.
+	 *
+	 * @param call  The conference
+	 * @param mixer The mixer holding the audio of each sender
+	 */
+	private void playConference(ConferenceCall call, ConferenceMixer mixer) {
+		try {
+			// Open audio output
+			AudioSink sink = AudioDevices.openSink(audioFormat);
+
+			byte[] frame = new byte[mixer.getFrameBytes()];
+			long frameNanos = (long) (mixer.getFrameBytes() / 2 * 1_000_000_000L / audioFormat.getSampleRate());
+			long deadline = System.nanoTime();
+			while (conference == call) {
+				if (mixer.mixFrame(frame) > 0) {
+					sink.write(frame, 0, frame.length); //only write when someone is talking
+				}
+				deadline += frameNanos;
+				long wait = deadline - System.nanoTime();
+				if (wait > 0) {
+					LockSupport.parkNanos(wait);
+				} else if (wait < -frameNanos) {
+					deadline = System.nanoTime(); //fell behind; do not try to catch up
+				}
+			}
+			sink.close();
+			mixer.clear();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Sends voice data to the other clients in the conference, each packet
+	 * starting with our member id.
+	 *
+	 * @param call The conference
 	 */
-	private void sendingConference() {
+	private void sendingConference(ConferenceCall call) {
 
 		new Thread(new Runnable() {
 
 			public void run() {
 				try {
 
-					// Create target data line for microphone input
-					DataLine.Info info = new DataLine.Info(TargetDataLine.class, audioFormat);
-					TargetDataLine line = (TargetDataLine) AudioSystem.getLine(info);
-					line.open();
-					AudioInputStream audioInputStream = new AudioInputStream(line);
-					line.start();
-
-					// Specify multicast group address and port
-					String groupAddress = "239.1.2.3";
-					int port = 5000; // Use the same port for all senders and receivers
+					// Open microphone input
+					AudioSource source = AudioDevices.openSource(audioFormat);
 
 					// Create multicast socket
-					InetAddress group = InetAddress.getByName(groupAddress);
 					MulticastSocket multicastSocket = new MulticastSocket();
 
 					// Capture audio from microphone and send to multicast group
-					// byte[] buffer = new byte[4096];
-					DatagramPacket packet;
-					while (onCall) {
-						byte[] audioBytes = audioInputStream.readNBytes(4096);
-						packet = new DatagramPacket(audioBytes, audioBytes.length, group, port); //construct packet using multicast information
-						multicastSocket.send(packet);
-						System.out.println("sending");
+					byte[] packetBytes = new byte[CONFERENCE_HEADER_BYTES + FRAME_BYTES];
+					ByteBuffer.wrap(packetBytes).putInt(call.memberId);
+					while (conference == call) {
+						byte[] audioBytes = source.readNBytes(FRAME_BYTES);
+						System.arraycopy(audioBytes, 0, packetBytes, CONFERENCE_HEADER_BYTES, audioBytes.length);
+						multicastSocket.send(new DatagramPacket(packetBytes, CONFERENCE_HEADER_BYTES + audioBytes.length,
+								call.group, call.port)); //construct packet using multicast information
 					}
 					multicastSocket.close();
-					line.stop();
-					line.close(); //close socket connection when off call
+					source.close(); //close microphone when off call
 
 				} catch (Exception e) {
 					e.printStackTrace();
@@ -660,4 +1411,21 @@ public class Client {
 		}).start();
 	}
 
+	/**
+	 * A conference the client is in, as given by "##CONFJOINED".
+	 */
+	private static class ConferenceCall {
+		final int id;
+		final InetAddress group; //the conference's multicast group
+		final int port; //the conference's port
+		final int memberId; //starts each packet we send; packets carrying it are our own
+
+		ConferenceCall(int id, InetAddress group, int port, int memberId) {
+			this.id = id;
+			this.group = group;
+			this.port = port;
+			this.memberId = memberId;
+		}
+	}
+
 }
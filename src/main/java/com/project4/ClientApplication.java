@@ -1,6 +1,7 @@
 package com.project4;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 
 import javafx.application.Application;
 import javafx.fxml.FXMLLoader;
@@ -25,11 +26,19 @@ public class ClientApplication extends Application {
             primaryStage.setScene(new Scene(root));
             primaryStage.setTitle("Login Screen");
             primaryStage.show();
+            System.out.println("Login window shown " + millisSinceLaunch() + " ms after launch");
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * @return Milliseconds since the JVM started
+     */
+    static long millisSinceLaunch() {
+        return System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+    }
+
     /**
      * Main method to launch the application.
      * 
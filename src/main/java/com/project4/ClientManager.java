@@ -0,0 +1,1514 @@
+package com.project4;
+
+import java.io.*;
+import java.util.*;
+
+import javafx.application.Platform;
+import javafx.scene.control.ListView;
+
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ClientManager class to manage client connections
+ */
+class ClientManager implements Runnable {
+
+	public static final List<ClientManager> clients = new CopyOnWriteArrayList<>(); //list of client managers
+	public static final List<String> usernames = new CopyOnWriteArrayList<>(); //list of client usernames
+	private static final Presence presence = new Presence(ClientManager::sendToAll); //online users, announced in batches
+	private Socket clientSocket; //the current client's socket 
+	private BufferedReader bufRead; //allows for reading messages between client and server
+	private ControlWriter writer; //coalescing writer for messages between server and client
+	private String username; //a username
+	private InteractController interactController; //An interact controller for communication with GUI
+	public volatile ListView<String> logListView; //Server logs as a list to display
+	public volatile ListView<String> userListView; //users as a list to display
+	public volatile OutputStream out; //An output stream
+	private InputStream in; //raw input stream, used for voice note data
+	private String remoteAddress; //IP address of the client
+	private final RateLimiter limiter = new RateLimiter(); //token buckets for this client's commands
+	private int throttledInRow = 0; //messages rejected since the last accepted one
+	private final Set<String> rooms = ConcurrentHashMap.newKeySet(); //rooms this client has joined
+	private volatile long lastRead; //System.nanoTime() of the last message from the client
+	private volatile Session session; //resumable session, null for in-process clients
+	private final Map<String, RandomAccessFile> uploads = new ConcurrentHashMap<>(); //voice notes being uploaded while recorded
+	private final Set<String> refusedUploads = ConcurrentHashMap.newKeySet(); //their remaining chunks are dropped quietly
+	private volatile boolean bulk = false; //the client transfers voice notes over BulkServer connections
+	private static final int MAX_ROOMS = Config.getInt("voip.rooms.maxPerClient", 32); //rooms one client may be in
+
+	private static final String[] COMMANDS = { "DISCONNECT", "WHISPER", "CALLING", "ACCEPTED", "DECLINED",
+			"VOICENOTE", "VOICENOTECHUNK", "VOICENOTEEND", "ENDCALL", "UNAVAILABLE", "HISTORYBEFORE", "HISTORYAT", "JOIN", "LEAVE", "ROOM",
+			"PONG", "ACK", "BULK", "CONFCREATE", "CONFINVITE", "CONFJOIN", "CONFLEAVE", "CHAT", "OTHER" }; //command types counted separately
+	private static final Map<String, LongAdder> messagesByCommand = new HashMap<>(); //received messages per command
+	private static final Map<String, LongAdder> throttledByCommand = new HashMap<>(); //rejected messages per command
+	private static final LongAdder floodDisconnects = Metrics.counter("voip_flood_disconnects_total");
+	private static final int FLOOD_LIMIT = Config.getInt("voip.limit.disconnectAfter", 500); //rejections in a row before disconnecting
+	private static final LatencyHistogram handshakeTime = Metrics.histogram("voip_handshake_seconds");
+	private static final LatencyHistogram acceptToReady = Metrics.histogram("voip_accept_to_ready_seconds");
+	private static final LongAdder handshakeTimeouts = Metrics.counter("voip_handshake_timeouts_total");
+	private static final long HANDSHAKE_TIMEOUT = TimeUnit.MILLISECONDS
+			.toNanos(Config.getLong("voip.handshake.timeoutMillis", 5000)); //from accept until logged in
+	private static final long PING_INTERVAL = TimeUnit.MILLISECONDS
+			.toNanos(Config.getLong("voip.heartbeat.intervalMillis", 15000)); //silence before a ##PING
+	private static final long IDLE_TIMEOUT = TimeUnit.MILLISECONDS
+			.toNanos(Config.getLong("voip.heartbeat.timeoutMillis", 45000)); //silence before disconnecting
+	private static final long WRITE_TIMEOUT = TimeUnit.MILLISECONDS
+			.toNanos(Config.getLong("voip.net.writeTimeoutMillis", 5000)); //blocked write before disconnecting
+	private static final TimerWheel heartbeats = new TimerWheel("heartbeat", 100, 1024); //one liveness check per client
+	private static final LongAdder pingsSent = Metrics.counter("voip_pings_sent_total");
+	private static final LongAdder reapedIdle = Metrics.counter("voip_reaped_total{reason=\"idle\"}");
+	private static final LongAdder reapedWrite = Metrics.counter("voip_reaped_total{reason=\"write\"}");
+	private static final Map<String, List<String>> returning = new ConcurrentHashMap<>(); //users expected back after a restart, with their rooms
+	private static final LongAdder sessionsRestored = Metrics.counter("voip_sessions_restored_total");
+	private static final long RETURN_GRACE = TimeUnit.MILLISECONDS
+			.toNanos(Config.getLong("voip.snapshot.graceMillis", 30000)); //how long users are expected back
+	private static final long LINGER = TimeUnit.MILLISECONDS
+			.toNanos(Config.getLong("voip.session.lingerMillis", 30000)); //how long a dropped session can be resumed
+	private static final LongAdder sessionsResumed = Metrics.counter("voip_sessions_resumed_total");
+	private static final LongAdder sessionsExpired = Metrics.counter("voip_sessions_expired_total");
+	private static final long DRAIN_TIMEOUT = TimeUnit.MILLISECONDS
+			.toNanos(Config.getLong("voip.drain.timeoutMillis", 5000)); //how long a drain waits for clients to leave
+	private static final LongAdder handshakes = Metrics.counter("voip_handshakes_total");
+	private static final LongAdder usernamesTaken = Metrics.counter("voip_usernames_taken_total");
+	private static final LongAdder handshakeFailures = Metrics.counter("voip_handshake_failures_total");
+	private static final LongAdder disconnects = Metrics.counter("voip_disconnects_total");
+	private static final LatencyHistogram broadcastTime = Metrics.histogram("voip_broadcast_fanout_seconds");
+	private static final LongAdder broadcastRecipients = Metrics.counter("voip_broadcast_recipients_total");
+	static final LongAdder voiceNoteBytesIn = Metrics.counter("voip_voice_note_bytes_received_total");
+	static final LongAdder voiceNoteBytesOut = Metrics.counter("voip_voice_note_bytes_sent_total");
+	static final long MAX_NOTE_BYTES = Config.getLong("voip.voicenote.maxBytes", 16 * 1024 * 1024); //largest uploaded voice note
+	static final int MAX_UPLOADS = 4; //voice notes one client may upload at once
+	private static final int MAX_NOTE_NAME = 255; //longest stored voice note name; most file systems allow no more
+	private static final LatencyHistogram noteDeliveryTime = Metrics.histogram("voip_voice_note_end_to_delivery_seconds");
+	private static final LongAdder callsRequested = Metrics.counter("voip_calls_requested_total");
+	private static final LongAdder callsAccepted = Metrics.counter("voip_calls_accepted_total");
+	private static final LatencyHistogram callSetupTime = Metrics.histogram("voip_call_setup_seconds");
+	private static final Map<String, Long> pendingCalls = new ConcurrentHashMap<>(); //"caller,callee" to time of ##CALLING
+	private static final Object historyLock = new Object(); //orders chat log appends, fan-out and join replays
+	private static final int REPLAY_COUNT = Config.getInt("voip.chatlog.replay", 50); //messages replayed on join
+	private static final int MAX_PAGE = 200; //largest history page a client may request
+
+	static {
+		for (String command : COMMANDS) {
+			messagesByCommand.put(command, Metrics.counter("voip_messages_total{command=\"" + command + "\"}"));
+			throttledByCommand.put(command, Metrics.counter("voip_throttled_total{command=\"" + command + "\"}"));
+		}
+		Metrics.gauge("voip_connections_open", () -> clients.size());
+	}
+
+	/**
+	 * Represents a client manager that handles communication with a client.
+	 * The client logs in with {@link #handshake(long)}.
+	 * 
+	 * @param clientSocket The socket associated with the client.
+	 * @param logListView  The ListView to display log messages.
+	 * @param userListView The ListView to display connected users.
+	 */
+	public ClientManager(Socket clientSocket, ListView<String> logListView, ListView<String> userListView) {
+		this.clientSocket = clientSocket;
+		this.logListView = logListView;
+		this.userListView = userListView;
+	}
+
+	/**
+	 * Reads usernames from the client until a free one arrives, then registers
+	 * the client. Instead of a username, a reconnecting client may send
+	 * "##RESUME,<token>,<last seq>,<last chat seq>" to take back its
+	 * {@link Session}; if the session has ended it is told "##RESUMEFAILED" and
+	 * sends its username. The client must be logged in within
+	 * {@code voip.handshake.timeoutMillis} of being accepted, otherwise it is
+	 * disconnected.
+	 * 
+	 * @param acceptedAt {@link System#nanoTime()} when the connection was accepted
+	 * @return Whether the client logged in; if not, the connection is closed
+	 */
+	boolean handshake(long acceptedAt) {
+		long handshakeStart = System.nanoTime();
+		long deadline = acceptedAt + HANDSHAKE_TIMEOUT;
+		String reserved = null; //username reserved by this client
+		List<String> restoredRooms = null; //rooms from before a restart
+		try {
+			SocketOptions.apply(clientSocket);
+			out = clientSocket.getOutputStream(); //the client output stream
+			in = clientSocket.getInputStream();
+			remoteAddress = clientSocket.getInetAddress().getHostAddress();
+			bufRead = new BufferedReader(new InputStreamReader(
+					in)); //buffered reader using client input strean
+			writer = new ControlWriter(out); //coalescing writer using client output stream
+			while (true) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					throw new SocketTimeoutException("Handshake deadline passed");
+				}
+				clientSocket.setSoTimeout((int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)));
+				username = bufRead.readLine(); //read username, optionally followed by ",<last chat seq seen>"
+				if (username == null) {
+					throw new EOFException("Connection closed during handshake");
+				}
+				if (username.startsWith("##RESUME,")) {
+					if (resume(username)) {
+						handshakes.increment();
+						handshakeTime.record(System.nanoTime() - handshakeStart);
+						acceptToReady.record(System.nanoTime() - acceptedAt);
+						return true;
+					}
+					writer.send("##RESUMEFAILED");
+					continue;
+				}
+				long lastSeen = -1;
+				if (username != null && username.indexOf(',') > 0) {
+					try {
+						lastSeen = Long.parseLong(username.substring(username.indexOf(',') + 1).trim());
+					} catch (NumberFormatException e) {
+						// ignore a malformed sequence number
+					}
+					username = username.substring(0, username.indexOf(','));
+				}
+
+				// ensures client connecting has a unique username, reserving it atomically
+				boolean taken;
+				synchronized (usernames) {
+					taken = usernames.contains(username) || Cluster.isTakenElsewhere(username);
+					if (!taken) {
+						usernames.add(username);
+						reserved = username;
+					}
+				}
+				if (!taken && !Cluster.claim(username)) { //another node has, or is giving out, the name
+					usernames.remove(username);
+					reserved = null;
+					taken = true;
+				}
+				if (taken) {
+					writer.send("##USERNAMETAKEN"); //communicates that username taken
+					usernamesTaken.increment();
+				} else {
+					clientSocket.setSoTimeout(0); //logged in; no read deadline from here on
+					session = Session.open(username, this);
+					writer.send("##USERNAMEOK");
+					writer.send("##SESSION," + session.token);
+					System.out.println(username + " connected"); //communicates that username is OK
+
+					if (userListView != null) {
+						Platform.runLater(() -> {
+							userListView.getItems().add(username);
+							logListView.getItems().add(username + " connected");
+						});
+					}
+					synchronized (historyLock) { //no chat message can slip between the replay and going live
+						synchronized (presence) { //nor a presence delta between the snapshot and going live
+							restoredRooms = returning.remove(username); //back after a restart; already announced
+							writer.send(presence.join(username)); //currently online users in one line
+							clients.add(this);
+						}
+						sendHistory(lastSeen);
+						writer.flushAsync(); //snapshot and replay leave together
+					}
+					Cluster.userJoined(username);
+					if (restoredRooms != null) {
+						sessionsRestored.increment();
+						for (String room : restoredRooms) { //back into the rooms it was in before the restart
+							rooms.add(room);
+							Room.join(room, this);
+							Cluster.roomJoined(room, username);
+						}
+					}
+
+					handshakes.increment();
+					handshakeTime.record(System.nanoTime() - handshakeStart);
+					acceptToReady.record(System.nanoTime() - acceptedAt);
+					return true;
+
+				}
+			}
+
+		} catch (SocketTimeoutException e) {
+			handshakeTimeouts.increment();
+			System.out.println("Client did not log in in time");
+		} catch (Exception e) {
+			handshakeFailures.increment();
+			System.out.println("Error initialising client");
+		}
+		if (clients.contains(this)) {
+			closeAllStreamsBroadcast(); //failed after going live; leave like any other client
+			return false;
+		}
+		if (reserved != null) {
+			usernames.remove(reserved); //release the reservation
+		}
+		closeAllStreams();
+		return false;
+	}
+
+	/**
+	 * Takes over a session from "##RESUME,<token>,<last seq>,<last chat seq>".
+	 * The user never went offline, so nobody is told anything; the client gets
+	 * the presence snapshot, the chat and the numbered lines it missed, and its
+	 * previous connection's rooms.
+	 * 
+	 * @param line The resume line
+	 * @return Whether the session was resumed
+	 * @throws IOException If writing fails
+	 */
+	private boolean resume(String line) throws IOException {
+		String[] parts = line.split(",");
+		Session resumed = parts.length == 4 ? Session.find(parts[1]) : null;
+		if (resumed == null) {
+			return false;
+		}
+		long lastSeq;
+		long lastSeen;
+		try {
+			lastSeq = Long.parseLong(parts[2].trim());
+			lastSeen = Long.parseLong(parts[3].trim());
+		} catch (NumberFormatException e) {
+			return false;
+		}
+		username = resumed.username;
+		session = resumed;
+		ClientManager previous;
+		synchronized (historyLock) { //no chat message can slip between the replay and going live
+			synchronized (presence) {
+				previous = resumed.attach(this, lastSeq, "##USERNAMEOK", "##SESSION," + resumed.token);
+				if (previous == null) {
+					session = null; //ended meanwhile
+					return false;
+				}
+				clientSocket.setSoTimeout(0);
+				writer.send(presence.join(username)); //still online, so this announces nothing
+				clients.add(this);
+			}
+			sendHistory(lastSeen);
+			writer.flushAsync();
+		}
+		clients.remove(previous); //if the server had not noticed the old connection drop
+		previous.closeAllStreams();
+		for (String room : previous.rooms) {
+			rooms.add(room);
+			Room.handOver(room, previous, this);
+		}
+		previous.rooms.clear();
+		ConferenceRoom.handOver(previous, this);
+		sessionsResumed.increment();
+		System.out.println(username + " resumed its session");
+		log(username + " resumed its session");
+		return true;
+	}
+
+	/**
+	 * Creates a client manager for an already identified user without a socket
+	 * handshake. Used by tools and benchmarks that drive the protocol in-process.
+	 * 
+	 * @param username      The user's name
+	 * @param remoteAddress The user's IP address
+	 * @param in            Stream the user's messages and voice note data are read from
+	 * @param out           Stream the user's messages are written to
+	 */
+	ClientManager(String username, String remoteAddress, InputStream in, OutputStream out) {
+		this.username = username;
+		this.remoteAddress = remoteAddress;
+		this.in = in;
+		this.out = out;
+		this.bufRead = new BufferedReader(new InputStreamReader(in));
+		this.writer = new ControlWriter(out);
+	}
+
+	/**
+	 * Sets the interact controller
+	 * 
+	 * @param interactController
+	 */
+	public void setInteractController(InteractController interactController) {
+		this.interactController = interactController;
+	}
+
+	/**
+	 * Adds a line to the server log view, if there is one.
+	 * 
+	 * @param message The message to log
+	 */
+	private void log(String message) {
+		if (logListView != null) {
+			Platform.runLater(() -> logListView.getItems().add(message));
+		}
+	}
+
+	/**
+	 * Run method for the client manager
+	 */
+	@Override
+	public void run() {
+		String msg;
+		lastRead = System.nanoTime();
+		heartbeats.schedule(Math.min(PING_INTERVAL, WRITE_TIMEOUT), this::checkLiveness);
+		try {
+			// Continuously read messages from the client
+			while (!clientSocket.isClosed()) {
+				msg = bufRead.readLine();
+				lastRead = System.nanoTime(); //any message shows the client is alive
+				if (!handleMessage(msg)) {
+					break;
+				}
+			}
+		} catch (Exception e) {
+			connectionLost();
+		}
+	}
+
+	/**
+	 * Handles a connection that ended without "##DISCONNECT". The user's
+	 * session is detached: the user stays online, in its rooms and in
+	 * possession of its name, and numbered lines for it are kept, for
+	 * {@code voip.session.lingerMillis}. If the client has not resumed the
+	 * session by then, the user leaves like any other.
+	 */
+	private void connectionLost() {
+		Session current = session;
+		if (current == null || LINGER <= 0) {
+			closeAllStreamsBroadcast();
+			return;
+		}
+		int detachment = current.detach(this);
+		if (detachment < 0) {
+			closeAllStreamsBroadcast(); //taken over by a newer connection, or ended
+			return;
+		}
+		clients.remove(this);
+		closeAllStreams();
+		System.out.println(username + " lost connection; session kept");
+		heartbeats.schedule(LINGER, () -> {
+			if (current.expire(detachment)) {
+				sessionsExpired.increment();
+				System.out.println(username + " disconnected");
+				disconnects.increment();
+				leaveEverywhere();
+			}
+		});
+	}
+
+	/**
+	 * Checks that the client is still there; runs on the heartbeat wheel. A
+	 * client silent for {@code voip.heartbeat.intervalMillis} is sent "##PING",
+	 * which it answers with "##PONG". One silent for
+	 * {@code voip.heartbeat.timeoutMillis}, or whose writes have been blocked for
+	 * {@code voip.net.writeTimeoutMillis}, is disconnected.
+	 */
+	private void checkLiveness() {
+		if (clientSocket.isClosed()) {
+			return; //the session is over; no further checks
+		}
+		long now = System.nanoTime();
+		if (writer.stalledFor(now) >= WRITE_TIMEOUT) {
+			reap("not reading", reapedWrite);
+			return;
+		}
+		long idle = now - lastRead;
+		if (idle >= IDLE_TIMEOUT) {
+			reap("no heartbeat", reapedIdle);
+			return;
+		}
+		long next = PING_INTERVAL - idle;
+		if (idle >= PING_INTERVAL) {
+			send("##PING");
+			pingsSent.increment();
+			next = Math.min(PING_INTERVAL, IDLE_TIMEOUT - idle);
+		}
+		heartbeats.schedule(Math.min(next, WRITE_TIMEOUT), this::checkLiveness);
+	}
+
+	/**
+	 * Disconnects a client that is no longer responding.
+	 * 
+	 * @param reason  Why, for the log
+	 * @param counter Counter for the reason
+	 */
+	private void reap(String reason, LongAdder counter) {
+		System.out.println(username + " timed out (" + reason + ")");
+		log(username + " timed out (" + reason + ")");
+		counter.increment();
+		connectionLost(); //the client may be back shortly, e.g. after a network change
+	}
+
+	/**
+	 * Dispatches one message received from the client.
+	 * 
+	 * @param msg The message, or null if the connection ended
+	 * @return false once the client has disconnected
+	 * @throws Exception If the message could not be handled
+	 */
+	boolean handleMessage(String msg) throws Exception {
+		if (msg != null) {
+			String command = commandOf(msg);
+			countCommand(command);
+			long wait = limiter.tryAcquire(command); //checked before any work is done for the message
+			if (wait > 0) {
+				return throttle(command, wait);
+			}
+			throttledInRow = 0;
+		}
+		// If the client disconnects, close all streams and stop reading
+		if (msg == null) {
+			connectionLost();
+			return false;
+		} else if (msg.equals("##DISCONNECT")) {
+			closeAllStreamsBroadcast();
+			return false;
+			// Answers to heartbeats need no handling
+		} else if (msg.equals("##PONG")) {
+			return true;
+			// Numbered lines the client has received
+		} else if (msg.startsWith("##ACK,")) {
+			handleAck(msg);
+			// Voice notes over separate connections
+		} else if (msg.equals("##BULK")) {
+			handleBulk();
+			// Handle whisper messages
+		} else if (msg != null && msg.startsWith("##WHISPER")) {
+			handleWhisperMessage(msg);
+			// Handle call messages
+		} else if (msg != null && msg.startsWith("##CALLING")) {
+			handleCalling(msg);
+			// Handle call accept messages
+		} else if (msg != null && msg.startsWith("##ACCEPTED")) {
+			handleAccept(msg);
+			// Handle call decline messages
+		} else if (msg != null && msg.startsWith("##DECLINED")) {
+			handleDecline(msg);
+			// Handle voice note messages
+		} else if (msg != null && msg.startsWith("##VOICENOTECHUNK,")) {
+			handleVoiceNoteChunk(msg);
+		} else if (msg != null && msg.startsWith("##VOICENOTEEND,")) {
+			handleVoiceNoteEnd(msg);
+		} else if (msg != null && msg.startsWith("##VOICENOTE")) {
+			handleVoiceNoteServer(msg);
+			// Handle end call messages
+		} else if (msg != null && msg.startsWith("##ENDCALL")) {
+			handleEndCall(msg);
+			// Handle unavailable messages
+		} else if (msg != null && msg.startsWith("##UNAVAILABLE")) {
+			handleUnavailable(msg);
+			// Handle requests for older chat history
+		} else if (msg != null && (msg.startsWith("##HISTORYBEFORE") || msg.startsWith("##HISTORYAT"))) {
+			handleHistoryRequest(msg);
+			// Handle room membership and room messages
+		} else if (msg != null && msg.startsWith("##JOIN,")) {
+			handleJoinRoom(msg);
+		} else if (msg != null && msg.startsWith("##LEAVE,")) {
+			handleLeaveRoom(msg);
+		} else if (msg != null && msg.startsWith("##ROOM,")) {
+			handleRoomMessage(msg);
+			// Handle conference calls
+		} else if (msg != null && msg.startsWith("##CONF")) {
+			handleConference(msg);
+			// Broadcast messages to all clients
+		} else if (msg != null) {
+			broadcastMessage(msg);
+		}
+		return true;
+	}
+
+	/**
+	 * Handles "##ACK,<seq>": the client has every numbered line up to seq, so the
+	 * server need not keep them for a replay.
+	 * 
+	 * @param msg The ack
+	 */
+	private void handleAck(String msg) {
+		Session current = session;
+		if (current == null) {
+			return;
+		}
+		try {
+			current.ack(Long.parseLong(msg.substring("##ACK,".length()).trim()));
+		} catch (NumberFormatException e) {
+			// ignore a malformed ack
+		}
+	}
+
+	/**
+	 * Handles "##BULK": the client transfers voice notes over separate
+	 * connections and is sent a token for them, see {@link BulkServer}. No
+	 * answer means transfers stay on this connection.
+	 */
+	private void handleBulk() {
+		String grant = BulkServer.issue(this);
+		if (grant != null) {
+			bulk = true;
+			send(grant);
+		}
+	}
+
+	/**
+	 * @param msg A received message
+	 * @return Its command, or CHAT for a global message
+	 */
+	private static String commandOf(String msg) {
+		if (!msg.startsWith("##")) {
+			return "CHAT";
+		}
+		int end = msg.indexOf(',');
+		return msg.substring(2, end < 0 ? msg.length() : end);
+	}
+
+	/**
+	 * Counts a received message under its command type.
+	 * 
+	 * @param command The received message's command
+	 */
+	private static void countCommand(String command) {
+		LongAdder counter = messagesByCommand.get(command);
+		(counter != null ? counter : messagesByCommand.get("OTHER")).increment();
+	}
+
+	/**
+	 * Drops a message that is over its rate limit. The client is told once with
+	 * "##THROTTLED,<command>,<retry after millis>", and disconnected if it keeps
+	 * flooding.
+	 * 
+	 * @param command The message's command
+	 * @param wait    Nanoseconds until the message would have been allowed
+	 * @return false once the client has been disconnected
+	 */
+	private boolean throttle(String command, long wait) {
+		LongAdder counter = throttledByCommand.get(command);
+		(counter != null ? counter : throttledByCommand.get("OTHER")).increment();
+		if (FLOOD_LIMIT > 0 && ++throttledInRow >= FLOOD_LIMIT) {
+			System.out.println(username + " disconnected for flooding");
+			log(username + " disconnected for flooding");
+			floodDisconnects.increment();
+			closeAllStreamsBroadcast();
+			return false;
+		}
+		if (limiter.noticeDue(command)) {
+			try {
+				writer.send("##THROTTLED," + command + "," + Math.max(1, wait / 1_000_000), true);
+			} catch (IOException e) {
+				// the connection is closing
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Handles whisper messages
+	 * 
+	 * @param msg
+	 */
+	private void handleWhisperMessage(String msg) {
+		try {
+			String[] parts = msg.split(",", 3);
+
+			String targetUsername = parts[1];
+			String whisperMsg = parts[2]; //message broken up for further processing
+
+			// Sends message back to whisperer to print to output
+			send("##WHISPERTO," + targetUsername + "," + whisperMsg);
+
+			// Sends message to whisperee, on this or another node, to print to output
+			if (deliver(targetUsername, "##WHISPERFROM," + username + "," + whisperMsg)) {
+				log("Whispered from " + username + ": " + whisperMsg);
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			System.err.println("Invalid whisper message: " + msg);
+		}
+	}
+
+	/**
+	 * Broadcasts message to all clients
+	 * 
+	 * @param msg the message to broadcast
+	 * @throws IOException
+	 */
+	void broadcastMessage(String msg) throws IOException {
+
+		long start = System.nanoTime();
+		log(username + " sent message: " + msg);
+		fanOut(username, msg);
+		Cluster.broadcast(username, msg); //each other node fans out to its own clients
+		broadcastTime.record(System.nanoTime() - start);
+	}
+
+	/**
+	 * Stores a global message in this node's chat log and sends it to this node's clients.
+	 * 
+	 * @param sender Username of the sender, who may be on another node
+	 * @param msg    The message
+	 */
+	static void fanOut(String sender, String msg) {
+		synchronized (historyLock) {
+			long seq = appendToHistory(sender, msg);
+			// Sends message to all clients, including the sender, to print to output
+			byte[] line = ControlWriter.encode("##CHAT," + seq + "," + sender + "," + msg); //encoded once for everyone
+			for (ClientManager client_ : clients) {
+				try {
+					client_.writer.sendEncoded(line, false); //coalesced with other lines sent within the window
+				} catch (IOException e) {
+					continue; //the client is leaving; the others still get the message
+				}
+				if (!client_.username.equals(sender)) {
+					broadcastRecipients.increment();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Handles joining a room, "##JOIN,<room>". The client gets the room's members,
+	 * or "##ROOMERROR,<room>,<reason>".
+	 * 
+	 * @param msg The join message
+	 * @throws IOException If writing fails
+	 */
+	private void handleJoinRoom(String msg) throws IOException {
+		String room = msg.substring("##JOIN,".length());
+		if (!Room.isValidName(room)) {
+			writer.send("##ROOMERROR," + room.replace(',', ' ') + ",invalid room name");
+		} else if (!rooms.contains(room) && rooms.size() >= MAX_ROOMS) {
+			writer.send("##ROOMERROR," + room + ",too many rooms");
+		} else {
+			rooms.add(room);
+			Room.join(room, this);
+			Cluster.roomJoined(room, username);
+			log(username + " joined room " + room);
+		}
+	}
+
+	/**
+	 * Handles leaving a room, "##LEAVE,<room>", answered with "##LEFT,<room>".
+	 * 
+	 * @param msg The leave message
+	 * @throws IOException If writing fails
+	 */
+	private void handleLeaveRoom(String msg) throws IOException {
+		String room = msg.substring("##LEAVE,".length());
+		if (rooms.remove(room) && Room.leave(room, this)) {
+			Cluster.roomLeft(room, username);
+			log(username + " left room " + room);
+		}
+		writer.send("##LEFT," + room);
+	}
+
+	/**
+	 * Sends a message to a room's members on every node, "##ROOM,<room>,<text>".
+	 * Only members may send to a room.
+	 * 
+	 * @param msg The room message
+	 * @throws IOException If writing fails
+	 */
+	private void handleRoomMessage(String msg) throws IOException {
+		String[] parts = msg.split(",", 3);
+		if (parts.length < 3 || !Room.isMember(parts[1], this)) {
+			writer.send("##ROOMERROR," + (parts.length > 1 ? parts[1] : "") + ",not a member");
+			return;
+		}
+		Room.chat(parts[1], username, parts[2]);
+		Cluster.roomChat(parts[1], username, parts[2]); //only to nodes with members in the room
+	}
+
+	/**
+	 * Handles the conference commands "##CONFCREATE[,<user>,...]",
+	 * "##CONFINVITE,<id>,<user>", "##CONFJOIN,<id>" and "##CONFLEAVE,<id>"; see
+	 * {@link ConferenceRoom}.
+	 * 
+	 * @param msg The conference message
+	 */
+	private void handleConference(String msg) {
+		String[] parts = msg.split(",");
+		try {
+			if (parts[0].equals("##CONFCREATE")) {
+				ConferenceRoom.create(this, Arrays.asList(parts).subList(1, parts.length));
+				log(username + " started a conference");
+			} else if (parts[0].equals("##CONFINVITE")) {
+				ConferenceRoom.invite(Integer.parseInt(parts[1].trim()), this, parts[2]);
+			} else if (parts[0].equals("##CONFJOIN")) {
+				ConferenceRoom.join(Integer.parseInt(parts[1].trim()), this);
+			} else if (parts[0].equals("##CONFLEAVE")) {
+				int id = Integer.parseInt(parts[1].trim());
+				if (ConferenceRoom.leave(id, this)) {
+					send("##CONFLEFT," + id);
+				} else {
+					send("##CONFERROR," + id + ",not a member");
+				}
+			} else {
+				broadcastMessage(msg); //just a chat message starting with ##CONF
+			}
+		} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			System.out.println("Invalid conference message: " + msg);
+		} catch (IOException e) {
+			// the connection is closing
+		}
+	}
+
+	/**
+	 * Stores a global message in the chat log.
+	 * 
+	 * @param sender Username of the sender
+	 * @param msg    The message
+	 * @return Its sequence number, or 0 if the chat log is unavailable
+	 */
+	private static long appendToHistory(String sender, String msg) {
+		ChatLog chatLog = ChatLog.get();
+		if (chatLog == null) {
+			return 0;
+		}
+		try {
+			return chatLog.append(sender, msg);
+		} catch (IOException e) {
+			System.out.println("Error writing chat log: " + e.getMessage());
+			return 0;
+		}
+	}
+
+	/**
+	 * Queues recent chat history for a client that just joined.
+	 * 
+	 * @param lastSeen Last sequence number the client saw, or -1 to send the latest messages
+	 * @throws IOException If writing fails
+	 */
+	private void sendHistory(long lastSeen) throws IOException {
+		ChatLog chatLog = ChatLog.get();
+		if (chatLog == null) {
+			return;
+		}
+		List<ChatLog.Entry> entries = chatLog.since(Math.max(0, lastSeen), lastSeen < 0 ? REPLAY_COUNT : MAX_PAGE);
+		sendEntries("##HISTORY,", entries);
+	}
+
+	/**
+	 * Sends a page of older chat history: "##HISTORYBEFORE,<seq>,<count>" pages back
+	 * from a sequence number and "##HISTORYAT,<timeMillis>,<count>" starts at a time.
+	 * The page is sent as ##HISTORYPAGE lines followed by "##HISTORYPAGEEND,<count>".
+	 * 
+	 * @param msg The request
+	 */
+	private void handleHistoryRequest(String msg) {
+		ChatLog chatLog = ChatLog.get();
+		try {
+			String[] parts = msg.split(",");
+			long position = Long.parseLong(parts[1].trim());
+			int count = Math.min(MAX_PAGE, Integer.parseInt(parts[2].trim()));
+			List<ChatLog.Entry> entries = new ArrayList<>();
+			if (chatLog != null && count > 0) {
+				if (msg.startsWith("##HISTORYBEFORE")) {
+					entries = chatLog.before(position, count);
+				} else {
+					long from = chatLog.seqAtTime(position); //found through the time index
+					entries = chatLog.read(from, from + count);
+				}
+			}
+			sendEntries("##HISTORYPAGE,", entries);
+			writer.send("##HISTORYPAGEEND," + entries.size(), true); //the page is complete, send it now
+		} catch (IOException e) {
+			System.out.println("Error reading chat log: " + e.getMessage());
+		} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			System.out.println("Invalid history request: " + msg);
+		}
+	}
+
+	/**
+	 * Queues chat log entries as protocol lines "<prefix><seq>,<time>,<sender>,<text>".
+	 * 
+	 * @param prefix  The line prefix
+	 * @param entries The entries
+	 * @throws IOException If the connection is closed
+	 */
+	private void sendEntries(String prefix, List<ChatLog.Entry> entries) throws IOException {
+		for (ChatLog.Entry entry : entries) {
+			writer.send(prefix + entry.seq + ',' + entry.time + ',' + entry.sender + ',' + entry.text, false);
+		}
+	}
+
+	/**
+	 * Handles calling.
+	 * 
+	 * @param msg Calling message containing callee, its port and its address
+	 */
+	private void handleCalling(String msg) {
+
+		String[] parts = msg.split(","); //breaks up received message for further processing
+		String callee = parts[1];
+		String callerPort = parts[2];
+		String callerAddress = remoteAddress; //address of caller from socket
+
+		// Send message to callee that caller is calling
+		try {
+			if (isReachable(callee)) { //notify callee
+				callsRequested.increment();
+				pendingCalls.put(username + "," + callee, System.nanoTime());
+				deliver(callee, "##CALLING," + username + "," + callerPort + "," + callerAddress);
+
+				log(username + " is calling " + callee); //log in server ListView
+			}
+		} catch (Exception e) {
+
+		}
+
+	}
+
+	/**
+	 * Handles accepting calls
+	 * 
+	 * @param msg Accept message
+	 */
+	private void handleAccept(String msg) {
+		String[] parts = msg.split(","); //break message into caller string and callee port
+		String caller = parts[1];
+		String calleePort = parts[2];
+		String calleeAddress = remoteAddress; //callee address from socket
+
+		// Send message to caller that callee has accepted the call
+		try {
+			if (isReachable(caller)) { //notify caller that call accepted
+				callsAccepted.increment();
+				Long callStart = pendingCalls.remove(caller + "," + username);
+				if (callStart != null) {
+					callSetupTime.record(System.nanoTime() - callStart);
+				}
+				deliver(caller, "##ACCEPTED," + username + "," + calleePort + "," + calleeAddress);
+
+				log(username + " accepted call from " + caller);
+			}
+		} catch (Exception e) {
+
+		}
+	}
+
+	/**
+	 * Handles declining calls
+	 * 
+	 * @param msg The decline call message
+	 */
+	private void handleDecline(String msg) {
+		String[] parts = msg.split(",");
+		String caller = parts[1];
+
+		// Send message to caller that callee is unavailable
+		try {
+			if (isReachable(caller)) { //notify caller of decline
+				pendingCalls.remove(caller + "," + username);
+				deliver(caller, "##DECLINED," + username);
+
+				log(username + " declined call from " + caller);
+			}
+		} catch (Exception e) {
+
+		}
+	}
+
+	/**
+	 * Handles ending calls
+	 * 
+	 * @param message The end call message
+	 */
+	private void handleEndCall(String message) {
+		String[] parts = message.split(",");
+		String participant = parts[1];
+
+		// Notify the other participant that the call has ended
+		try {
+			if (isReachable(participant)) { //notifies participant that call is ended
+				deliver(participant, "##ENDCALL," + username);
+
+				log(username + " ended call with " + participant);
+			}
+		} catch (Exception e) {
+
+		}
+	}
+
+	/**
+	 * Handles unavailable calls.
+	 * 
+	 * @param message The unavailable call message
+	 */
+	private void handleUnavailable(String message) {
+		String[] parts = message.split(",");
+		String callee = parts[1];
+
+		// Send message to caller that callee is unavailable
+		try {
+			if (isReachable(callee)) {  //notify caller
+				pendingCalls.remove(callee + "," + username);
+				deliver(callee, "##UNAVAILABLE," + username);
+
+				log(username + " is unavailable to take call from " + callee);
+			}
+		} catch (Exception e) {
+
+		}
+	}
+
+	/**
+	 * Finds client by username.
+	 * 
+	 * @param username The client to find
+	 * @return client's ClientManager if found in list of connected clients, otherwise return null 
+	 */
+	static ClientManager findClientByUsername(String username) {
+		for (ClientManager client : clients) { //iterate through clients
+			if (client.username.equals(username)) {
+				return client; //if found, return client
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param username A username
+	 * @return Whether the user is online on this or another node
+	 */
+	static boolean isReachable(String username) {
+		return findClientByUsername(username) != null || Cluster.isRemote(username);
+	}
+
+	/**
+	 * Sends a line to a user, forwarding it to the user's node if they are not on this one.
+	 * 
+	 * @param username The recipient
+	 * @param line     The line
+	 * @return Whether the user was found
+	 */
+	static boolean deliver(String username, String line) {
+		return deliverLocal(username, line) || Cluster.deliver(username, line);
+	}
+
+	/**
+	 * Sends a line to a user on this node.
+	 * 
+	 * @param username The recipient
+	 * @param line     The line
+	 * @return Whether the user is on this node
+	 */
+	static boolean deliverLocal(String username, String line) {
+		ClientManager targetClient = findClientByUsername(username);
+		if (targetClient != null) {
+			targetClient.send(line);
+			return true;
+		}
+		Session away = Session.detachedFor(username); //dropped and may be back shortly
+		return away != null && Session.isReplayable(line) && away.send(line, ControlWriter.encode(line));
+	}
+
+	/**
+	 * Announces a user of another node joining or leaving to this node's clients.
+	 * 
+	 * @param username The user
+	 * @param joined   Whether the user joined rather than left
+	 */
+	static void remoteUserChanged(String username, boolean joined) {
+		if (joined) {
+			presence.join(username);
+		} else {
+			presence.leave(username);
+		}
+	}
+
+	/**
+	 * Queues a line for this client. Lines that must survive a reconnect are
+	 * numbered through the client's {@link Session}.
+	 * 
+	 * @param line The line
+	 * @return false if the connection is closed
+	 */
+	boolean send(String line) {
+		byte[] encoded = ControlWriter.encode(line);
+		if (session != null && Session.isReplayable(line)) {
+			return sendReplayable(line, encoded);
+		}
+		return sendEncoded(encoded, ControlWriter.isUrgent(line));
+	}
+
+	/**
+	 * Queues a line that must survive a reconnect, numbered as "##SEQ,<n>,<line>".
+	 * 
+	 * @param line    The line
+	 * @param encoded The line encoded with {@link ControlWriter#encode(String)}
+	 * @return false if neither the connection nor the session is open
+	 */
+	boolean sendReplayable(String line, byte[] encoded) {
+		Session current = session;
+		if (current == null) {
+			return sendEncoded(encoded, false);
+		}
+		return current.send(line, encoded);
+	}
+
+	/**
+	 * Queues a line encoded with {@link ControlWriter#encode(String)} for this client.
+	 * 
+	 * @param line   The encoded line
+	 * @param urgent Flush now instead of within the coalescing window
+	 * @return false if the connection is closed
+	 */
+	boolean sendEncoded(byte[] line, boolean urgent) {
+		return sendEncoded(null, line, urgent);
+	}
+
+	/**
+	 * Queues a line encoded with {@link ControlWriter#encode(String)} behind a
+	 * prefix for this client.
+	 * 
+	 * @param prefix Bytes written directly before the line, or null
+	 * @param line   The encoded line
+	 * @param urgent Flush now instead of within the coalescing window
+	 * @return false if the connection is closed
+	 */
+	boolean sendEncoded(byte[] prefix, byte[] line, boolean urgent) {
+		try {
+			writer.sendEncoded(prefix, line, urgent);
+			return true;
+		} catch (IOException e) {
+			return false; //the client's own thread notices the broken connection
+		}
+	}
+
+	/**
+	 * @return The client's username
+	 */
+	String getUsername() {
+		return username;
+	}
+
+	/**
+	 * Handles voice note server
+	 * 
+	 * @param message Voice note message containing recipient's username, the voicenote file name and the file size
+	 * @throws InterruptedException
+	 */
+	void handleVoiceNoteServer(String message) throws InterruptedException {
+		try {
+			// Parse and validate the incoming message format
+			String[] parts = message.split(",", 4);
+			if (parts.length != 4) {
+				System.out.println("Invalid voice note message format.");
+				return;
+			}
+
+			// Extract message details
+			String recipientUsername = parts[1];
+			String voiceNoteFileName = parts[2];
+			long fileSize = Long.parseLong(parts[3]);
+			if (fileSize < 0 || fileSize > MAX_NOTE_BYTES) {
+				// The data cannot be skipped safely, so the connection is closed after the refusal
+				System.out.println("Refused voice note of " + fileSize + " bytes from " + username);
+				send("##VOICENOTEERROR," + voiceNoteFileName.replace(',', ' ') + ",too large");
+				writer.flush();
+				clientSocket.close();
+				return;
+			}
+
+			// Logging receipt
+			System.out.println(
+					username + " sending voice note to " + recipientUsername + " [" + voiceNoteFileName + ", Size: "
+							+ fileSize + " bytes]");
+
+			// Stored under the sender's own prefix; a name that cannot be stored is read and dropped
+			String stored = isValidNoteName(voiceNoteFileName) ? storedNoteName(username, voiceNoteFileName) : null;
+			File file = new File("./voiceNotes/" + stored);
+			File parentDirectory = file.getParentFile();
+			if (!parentDirectory.exists() && !parentDirectory.mkdirs()) {
+				System.out.println("Failed to create directory: " + parentDirectory.getAbsolutePath());
+				return;
+			}
+
+			// Open file output stream outside of try-with-resources to control when it
+			// closes
+			OutputStream fos = stored != null ? new FileOutputStream(file) : OutputStream.nullOutputStream();
+			BufferedOutputStream bos = new BufferedOutputStream(fos);
+
+			// Keep the input stream and socket open for continued use
+			byte[] buffer = new byte[4096];
+			int bytesRead;
+			long totalRead = 0;
+
+			System.out.println("Receiving voice note data... " + fileSize + " bytes expected.");
+
+			// Read the data stream
+			while (totalRead < fileSize && (bytesRead = in.read(buffer)) != -1) {
+				bos.write(buffer, 0, bytesRead);
+				totalRead += bytesRead;
+				voiceNoteBytesIn.add(bytesRead);
+				System.out.println(
+						"Received " + totalRead + " bytes of voice note data of total " + fileSize + " bytes.");
+			}
+
+			bos.flush();
+			bos.close();
+			fos.close(); // Explicitly close file streams after done writing
+
+			// Check completeness and handle accordingly
+			if (stored == null) {
+				System.out.println("Dropped voice note with an invalid name from " + username);
+				send("##VOICENOTEERROR," + voiceNoteFileName.replace(',', ' ') + ",invalid name");
+			} else if (totalRead == fileSize) {
+				System.out.println("Voice note received successfully for " + recipientUsername);
+				notifyAndSendFileToClient(file, recipientUsername);
+			} else {
+				System.out.println(
+						"Incomplete file received. Expected " + fileSize + " bytes, got " + totalRead + " bytes.");
+			}
+		} catch (IOException e) { //catch errors
+			System.out.println("Failed to receive voice note: " + e.getMessage());
+			e.printStackTrace();
+		} catch (NumberFormatException e) {
+			System.out.println("Invalid file size received in voice note message.");
+		}
+	}
+
+	/**
+	 * Handles part of a voice note uploaded while it is being recorded,
+	 * "##VOICENOTECHUNK,<file name>,<offset>,<base64 data>". Parts are written
+	 * where they belong in the file, so the client can rewrite the header last.
+	 * The file is stored under {@link #storedNoteName}, so a client only ever
+	 * writes its own notes. A refused part is answered with
+	 * "##VOICENOTEERROR,<file name>,<reason>".
+	 * 
+	 * @param message The chunk
+	 */
+	private void handleVoiceNoteChunk(String message) {
+		String[] parts = message.split(",", 4);
+		try {
+			String name = parts[1];
+			long offset = Long.parseLong(parts[2]);
+			if (refusedUploads.contains(name)) {
+				return;
+			}
+			byte[] data = Base64.getDecoder().decode(parts[3]);
+			if (!isValidNoteName(name) || offset < 0 || offset + data.length > MAX_NOTE_BYTES) {
+				refuseUpload(name, "too large or invalid");
+				return;
+			}
+			RandomAccessFile file = uploads.get(name);
+			if (file == null) {
+				if (uploads.size() >= MAX_UPLOADS) {
+					refuseUpload(name, "too many uploads");
+					return;
+				}
+				String stored = storedNoteName(username, name);
+				if (stored == null) {
+					refuseUpload(name, "name too long");
+					return;
+				}
+				File target = new File("./voiceNotes/" + stored);
+				target.getParentFile().mkdirs();
+				file = new RandomAccessFile(target, "rw");
+				uploads.put(name, file);
+			}
+			file.seek(offset);
+			file.write(data);
+			voiceNoteBytesIn.add(data.length);
+		} catch (IOException e) {
+			System.out.println("Failed to store voice note chunk: " + e.getMessage());
+		} catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+			System.out.println("Invalid voice note chunk from " + username);
+		}
+	}
+
+	/**
+	 * Completes an uploaded voice note and delivers it,
+	 * "##VOICENOTEEND,<file name>,<size>,<recipient>". With no recipient the
+	 * note is discarded.
+	 * 
+	 * @param message The end message
+	 */
+	private void handleVoiceNoteEnd(String message) {
+		long start = System.nanoTime();
+		String[] parts = message.split(",", 4);
+		if (parts.length < 4) {
+			System.out.println("Invalid voice note end from " + username);
+			return;
+		}
+		RandomAccessFile upload = uploads.remove(parts[1]);
+		if (upload == null) {
+			refusedUploads.remove(parts[1]);
+			return; //refused earlier
+		}
+		File file = new File("./voiceNotes/" + storedNoteName(username, parts[1])); //opened, so the name fits
+		try (RandomAccessFile out = upload) {
+			out.setLength(Math.min(MAX_NOTE_BYTES, Long.parseLong(parts[2].trim())));
+		} catch (IOException | NumberFormatException e) {
+			System.out.println("Failed to complete voice note: " + e.getMessage());
+			file.delete();
+			return;
+		}
+		String recipientUsername = parts[3];
+		if (recipientUsername.isEmpty()) {
+			file.delete(); //recorded without anyone to send it to
+			return;
+		}
+		System.out.println(username + " sent voice note " + parts[1] + " to " + recipientUsername + " ["
+				+ file.length() + " bytes]");
+		notifyAndSendFileToClient(file, recipientUsername);
+		noteDeliveryTime.record(System.nanoTime() - start);
+	}
+
+	/**
+	 * @param name A voice note file name sent by a client or another node
+	 * @return Whether it names a file directly in the voice note directory
+	 */
+	static boolean isValidNoteName(String name) {
+		return !name.isEmpty() && name.length() <= MAX_NOTE_NAME && name.matches("[A-Za-z0-9_.-]+")
+				&& !name.startsWith(".");
+	}
+
+	/**
+	 * Name a voice note is stored and offered under: the uploader's username,
+	 * with everything but letters and digits escaped as "-" and two hex digits,
+	 * then "_" and the client's name for the note. Each user has a prefix no
+	 * other user can produce, so an upload can only write its sender's own
+	 * notes, and a username with spaces or other characters still gives a
+	 * valid file name.
+	 *
+	 * @param uploader Username of the sender
+	 * @param name     The client's name for the note, already checked with {@link #isValidNoteName}
+	 * @return The stored name, or null if it would be too long
+	 */
+	static String storedNoteName(String uploader, String name) {
+		StringBuilder stored = new StringBuilder();
+		for (byte b : uploader.getBytes(StandardCharsets.UTF_8)) {
+			if (b >= 'a' && b <= 'z' || b >= 'A' && b <= 'Z' || b >= '0' && b <= '9') {
+				stored.append((char) b);
+			} else {
+				stored.append('-').append(HexFormat.of().toHexDigits(b));
+			}
+		}
+		stored.append('_').append(name);
+		return stored.length() <= MAX_NOTE_NAME ? stored.toString() : null;
+	}
+
+	/**
+	 * Abandons an upload and tells the client.
+	 * 
+	 * @param name   The voice note's file name
+	 * @param reason Why
+	 */
+	private void refuseUpload(String name, String reason) {
+		closeUpload(name, true);
+		if (refusedUploads.size() < MAX_UPLOADS) {
+			refusedUploads.add(name);
+		}
+		send("##VOICENOTEERROR," + name.replace(',', ' ') + "," + reason);
+	}
+
+	/**
+	 * Closes an upload in progress.
+	 * 
+	 * @param name   The voice note's file name
+	 * @param delete Whether to delete what was received
+	 */
+	private void closeUpload(String name, boolean delete) {
+		RandomAccessFile upload = uploads.remove(name);
+		if (upload == null) {
+			return;
+		}
+		try {
+			upload.close();
+		} catch (IOException e) {
+			// nothing more to write
+		}
+		if (delete) {
+			new File("./voiceNotes/" + storedNoteName(username, name)).delete();
+		}
+	}
+
+	/**
+	 * Notifies and sends file to client.
+	 * 
+	 * @param voiceNoteFile The voice note file to send
+	 * @param recipientUsername The recipient's username
+	 */
+	public void notifyAndSendFileToClient(File voiceNoteFile, String recipientUsername) {
+		if (deliverVoiceNote(voiceNoteFile, recipientUsername)) {
+			log("Voice note sent to " + recipientUsername); //log voice note send
+		}
+	}
+
+	/**
+	 * Sends a voice note to a user, forwarding it to the user's node if they are not on this one.
+	 * 
+	 * @param voiceNoteFile The voice note file to send
+	 * @param recipientUsername The recipient's username
+	 * @return Whether the voice note was sent
+	 */
+	static boolean deliverVoiceNote(File voiceNoteFile, String recipientUsername) {
+		ClientManager targetClient = findClientByUsername(recipientUsername);
+		try {
+			if (targetClient == null) {
+				return Cluster.sendVoiceNote(recipientUsername, voiceNoteFile);
+			}
+
+			if (targetClient.bulk) { //the client fetches it over a connection of its own
+				BulkServer.offer(voiceNoteFile.getName(), recipientUsername);
+				targetClient.send("##VOICENOTEREADY," + voiceNoteFile.getName() + "," + voiceNoteFile.length());
+				return true;
+			}
+
+			byte[] fileContent = Files.readAllBytes(voiceNoteFile.toPath());
+			// Notify the target client and write the file right behind the header, with nothing in between
+			targetClient.writer.sendRaw("##RECEIVEVOICENOTE," + recipientUsername + "," + voiceNoteFile.getName() + ","
+					+ fileContent.length, fileContent, 0, fileContent.length);
+			voiceNoteBytesOut.add(fileContent.length);
+
+			System.out.println("Voice note sent successfully to " + targetClient.username);
+			return true;
+
+		} catch (IOException e) {
+			System.out.println("Error sending voice note to client: " + e.getMessage());
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Closes all streams broadcast
+	 */
+	public void closeAllStreamsBroadcast() {
+		Session current = session;
+		if (current != null && !current.isOwner(this)) { //replaced by a resumed connection; the user is still here
+			clients.remove(this);
+			closeAllStreams();
+			return;
+		}
+		if (!clients.remove(this)) { //remove this client
+			closeAllStreams(); //already removed
+			return;
+		}
+		if (current != null) {
+			current.close();
+		}
+		System.out.println(username + " disconnected");
+		disconnects.increment();
+		leaveEverywhere();
+		closeAllStreams();
+	}
+
+	/**
+	 * Removes the user from the name list, presence, its rooms and the cluster.
+	 */
+	private void leaveEverywhere() {
+		usernames.remove(username);
+		presence.leave(username); //other clients hear about it with the next presence delta
+		for (String room : rooms) {
+			if (Room.leave(room, this)) {
+				Cluster.roomLeft(room, username);
+			}
+		}
+		rooms.clear();
+		ConferenceRoom.leave(this);
+		Cluster.userLeft(username);
+
+		if (logListView != null) {
+			Platform.runLater(() -> {
+				logListView.getItems().add(username + " disconnected");
+				userListView.getItems().remove(username);
+			});
+		}
+	}
+
+	/**
+	 * Loads the users online at the last shutdown. They count as online, so
+	 * their return causes no presence changes; those not back within
+	 * {@code voip.snapshot.graceMillis} are announced as gone.
+	 */
+	static void restoreSnapshot() {
+		Map<String, List<String>> sessions = SessionSnapshot.take();
+		if (sessions.isEmpty()) {
+			return;
+		}
+		returning.putAll(sessions);
+		presence.preload(sessions.keySet());
+		System.out.println("Expecting " + sessions.size() + " users back from the last run");
+		heartbeats.schedule(RETURN_GRACE, () -> {
+			for (String user : returning.keySet()) {
+				synchronized (presence) { //not while the user is logging in
+					if (returning.remove(user) != null) {
+						presence.leave(user);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Saves who is online, tells every client "##RECONNECT" (followed by
+	 * {@code voip.drain.redirect} if set) and waits up to
+	 * {@code voip.drain.timeoutMillis} for them to leave. Whoever is left has
+	 * its queued messages flushed and is disconnected.
+	 */
+	static void drainAll() {
+		Map<String, List<String>> sessions = new LinkedHashMap<>();
+		for (ClientManager client : clients) {
+			sessions.put(client.username, new ArrayList<>(client.rooms));
+		}
+		try {
+			SessionSnapshot.write(sessions);
+		} catch (IOException e) {
+			System.out.println("Could not save session snapshot: " + e.getMessage());
+		}
+		String redirect = Config.get("voip.drain.redirect", "");
+		sendToAll(redirect.isEmpty() ? "##RECONNECT" : "##RECONNECT," + redirect);
+		long deadline = System.nanoTime() + DRAIN_TIMEOUT;
+		while (!clients.isEmpty() && System.nanoTime() < deadline) {
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+		for (ClientManager client : clients) {
+			try {
+				client.writer.flush(); //deliver what is queued before closing
+			} catch (IOException e) {
+				// already gone
+			}
+			client.closeAllStreamsBroadcast();
+		}
+		System.out.println("Drained; " + sessions.size() + " sessions saved");
+	}
+
+	/**
+	 * Writes a line to every connected client.
+	 * 
+	 * @param line The line
+	 */
+	static void sendToAll(String line) {
+		byte[] encoded = ControlWriter.encode(line);
+		for (ClientManager client : clients) {
+			try {
+				client.writer.sendEncoded(encoded, ControlWriter.isUrgent(line));
+			} catch (IOException e) {
+				// the client's own thread notices the broken connection
+			}
+		}
+	}
+
+	/**
+	 * Closes all streams
+	 */
+	public void closeAllStreams() {
+		for (String name : uploads.keySet()) {
+			closeUpload(name, true); //unfinished voice notes
+		}
+		if (bulk) {
+			BulkServer.revoke(this);
+		}
+		try {
+
+			if (clientSocket != null)
+				clientSocket.close(); //first, so a read blocked on another thread ends instead of holding the reader
+			if (writer != null)
+				writer.close();
+			if (bufRead != null)
+				bufRead.close(); //close all streams
+		} catch (IOException e) {
+			// e.printStackTrace();
+		}
+	}
+}
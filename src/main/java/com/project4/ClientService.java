@@ -33,11 +33,11 @@ public class ClientService {
      * @param controller The controller instance to set
      */
     public static synchronized void setCurrentController(InteractController controller) {
-        if (controller.globalArea != null) {
+        if (controller.globalListView != null) {
             currentController = controller; //set client's controller
-            System.out.println("CurrentController set with globalArea initialized.");
+            System.out.println("CurrentController set with globalListView initialized.");
         } else {
-            System.out.println("Attempted to set CurrentController without globalArea being initialized.");
+            System.out.println("Attempted to set CurrentController without globalListView being initialized.");
         }
     }
 
@@ -0,0 +1,700 @@
+package com.project4;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Links several servers into one chat network.
+ * <p>
+ * Every node listens on {@code voip.cluster.port} (0, the default, runs the
+ * server on its own) and connects to the nodes in {@code voip.cluster.peers}
+ * ({@code host:port} of their cluster ports, comma separated). Nodes tell each
+ * other about every peer they know, so listing one existing node is enough to
+ * join; links form a full mesh and are re-established when a node comes back.
+ * <p>
+ * Over the links the nodes:
+ * <ul>
+ * <li>keep usernames unique: a login is only accepted once every reachable
+ * node agrees ({@code CLAIM}); concurrent claims for the same name are won by
+ * the node with the smaller id</li>
+ * <li>gossip presence ({@code USERS} when a link forms, then {@code JOIN} and
+ * {@code LEAVE}), so clients see users on every node</li>
+ * <li>gossip room membership ({@code RJOIN} and {@code RLEAVE}) and forward
+ * room messages only to nodes with members in the room ({@code ROOMCHAT})</li>
+ * <li>forward global messages once per node ({@code CHAT}), protocol lines for
+ * a user on another node ({@code DELIVER}) and voice notes ({@code NOTE}
+ * followed by the file)</li>
+ * </ul>
+ * Each node keeps its own chat log, so history sequence numbers are per node.
+ * <p>
+ * Links are only used once both ends have proven they know
+ * {@code voip.cluster.secret}: each {@code HELLO} carries a random challenge,
+ * answered with an HMAC-SHA256 of it ({@code AUTH}). Clustering does not start
+ * without a secret. The listener binds to {@code voip.cluster.bind} (default
+ * 127.0.0.1), so nodes on other machines need it set to an address they can
+ * reach.
+ * <p>
+ * A login waits on its handshake thread for every node to answer its claim,
+ * for at most {@code voip.cluster.claimMillis} (default 1000). A node that does
+ * not answer in time makes the claim fail, so the client is told the name is
+ * taken and may try again, rather than risk two users with one name.
+ * Other settings: {@code voip.cluster.nodeId} (default
+ * {@code node-<server port>}) and {@code voip.cluster.advertise} (address other
+ * nodes use to reach this one, default {@code localhost:<cluster port>}).
+ */
+public class Cluster {
+
+	private static final Charset CHARSET = Charset.defaultCharset(); //same encoding as the client protocol
+	private static final long CLAIM_MILLIS = Config.getLong("voip.cluster.claimMillis", 1000);
+	private static final long RECONNECT_MILLIS = 2000;
+	private static final long HANDSHAKE_NANOS = TimeUnit.SECONDS.toNanos(5); //from connecting until both ends are authenticated
+	private static final int MAX_LINE = 1024 * 1024; //longest line read from a link
+
+	private static volatile boolean enabled = false;
+	private static String nodeId;
+	private static String advertise; //this node's cluster address
+	private static SecretKeySpec secret; //shared by every node, proves a link comes from one
+	private static final SecureRandom random = new SecureRandom();
+	private static TimerWheel handshakeExpiry; //closes links that are not authenticated in time
+	private static final Map<String, Link> links = new ConcurrentHashMap<>(); //links by node id
+	private static final Set<String> peerAddresses = ConcurrentHashMap.newKeySet(); //every cluster address heard of
+	private static final Map<String, String> remoteUsers = new ConcurrentHashMap<>(); //username to node id
+	private static final Map<String, Long> granted = new ConcurrentHashMap<>(); //names granted to other nodes, to expiry
+	private static final Map<String, Long> ownClaims = new ConcurrentHashMap<>(); //names this node is claiming
+	private static final Map<Long, Claim> pendingClaims = new ConcurrentHashMap<>(); //claims awaiting replies
+	private static final AtomicLong nextClaim = new AtomicLong();
+	private static final Object membershipLock = new Object(); //orders USERS snapshots and JOIN/LEAVE gossip
+	private static final LongAdder messagesSent = Metrics.counter("voip_cluster_messages_sent_total");
+	private static final LongAdder messagesReceived = Metrics.counter("voip_cluster_messages_received_total");
+	private static final LongAdder authFailures = Metrics.counter("voip_cluster_auth_failures_total");
+	private static final LongAdder claimTimeouts = Metrics.counter("voip_cluster_claim_timeouts_total");
+
+	private Cluster() {
+	}
+
+	/**
+	 * A login waiting for the other nodes to agree on its username.
+	 */
+	private static class Claim {
+		final CountDownLatch replies;
+		volatile boolean taken = false;
+
+		Claim(int nodes) {
+			replies = new CountDownLatch(nodes);
+		}
+	}
+
+	/**
+	 * A connection to another node.
+	 */
+	private static class Link {
+		final Socket socket;
+		final InputStream in;
+		final ControlWriter writer;
+		final boolean initiator; //this node opened the connection
+		final String challenge = newChallenge(); //sent in HELLO; the peer must answer it with the secret
+		volatile String peerId;
+		volatile String peerAddress;
+		volatile boolean authenticated = false;
+
+		Link(Socket socket, boolean initiator) throws IOException {
+			this.socket = socket;
+			this.initiator = initiator;
+			SocketOptions.apply(socket);
+			this.in = new BufferedInputStream(socket.getInputStream());
+			this.writer = new ControlWriter(socket.getOutputStream());
+		}
+
+		/**
+		 * @return Id of the node that opened the connection; duplicate links keep the one opened by the smaller id
+		 */
+		String initiatorId() {
+			return initiator ? nodeId : peerId;
+		}
+
+		void send(String line, boolean urgent) {
+			try {
+				writer.send(line, urgent);
+				messagesSent.increment();
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+		/**
+		 * Reads one line straight from the byte stream, so file data can follow it.
+		 */
+		String readLine() throws IOException {
+			ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+			int b;
+			while ((b = in.read()) != -1) {
+				if (b == '\n') {
+					return line.toString(CHARSET).replace("\r", "");
+				}
+				if (line.size() >= MAX_LINE) {
+					throw new IOException("Line too long");
+				}
+				line.write(b);
+			}
+			return null;
+		}
+
+		void run() {
+			try {
+				handshakeExpiry.schedule(HANDSHAKE_NANOS, () -> {
+					if (!authenticated) {
+						close(); //however slowly the peer sends, it gets no longer than this
+					}
+				});
+				send("HELLO," + nodeId + "," + advertise + "," + challenge, true);
+				String line;
+				while ((line = readLine()) != null) {
+					messagesReceived.increment();
+					handle(this, line);
+				}
+			} catch (Exception e) {
+				// the link is gone
+			}
+			close();
+		}
+
+		void close() {
+			writer.close();
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// already closed
+			}
+			if (peerId != null && links.remove(peerId, this)) {
+				System.out.println("Cluster link to " + peerId + " lost");
+				remoteUsers.forEach((user, node) -> {
+					if (node.equals(peerId) && remoteUsers.remove(user, node)) {
+						ClientManager.remoteUserChanged(user, false); //the node's users are gone with it
+					}
+				});
+				Room.nodeLost(peerId);
+			}
+		}
+	}
+
+	/**
+	 * Starts clustering if {@code voip.cluster.port} is set. Does nothing otherwise or if already started.
+	 *
+	 * @param serverPort The port clients connect to, used for the default node id
+	 */
+	public static synchronized void start(int serverPort) {
+		int port = Config.getInt("voip.cluster.port", 0);
+		if (enabled || port <= 0) {
+			return;
+		}
+		nodeId = Config.get("voip.cluster.nodeId", "node-" + serverPort);
+		advertise = Config.get("voip.cluster.advertise", "localhost:" + port);
+		for (String peer : Config.get("voip.cluster.peers", "").split(",")) {
+			if (!peer.isBlank()) {
+				peerAddresses.add(peer.trim());
+			}
+		}
+		String key = Config.get("voip.cluster.secret", "");
+		if (key.isEmpty()) {
+			System.out.println("Clustering needs voip.cluster.secret; running on its own");
+			return;
+		}
+		secret = new SecretKeySpec(key.getBytes(StandardCharsets.UTF_8), "HmacSHA256");
+		handshakeExpiry = new TimerWheel("cluster_handshakes", 1000, 64);
+		String bind = Config.get("voip.cluster.bind", "127.0.0.1");
+		ServerSocket listener;
+		try {
+			listener = new ServerSocket();
+			listener.bind(new InetSocketAddress(bind, port));
+		} catch (IOException e) {
+			System.out.println("Could not start cluster link on port " + port + ": " + e.getMessage());
+			return;
+		}
+		enabled = true;
+		Metrics.gauge("voip_cluster_links", () -> links.size());
+		Metrics.gauge("voip_cluster_remote_users", () -> remoteUsers.size());
+		daemon("cluster-accept", () -> {
+			while (!listener.isClosed()) {
+				try {
+					Link link = new Link(listener.accept(), false);
+					daemon("cluster-link", link::run);
+				} catch (IOException e) {
+					// keep accepting
+				}
+			}
+		});
+		daemon("cluster-connect", () -> {
+			while (true) {
+				for (String address : peerAddresses) {
+					if (!address.equals(advertise) && !isLinked(address)) {
+						connect(address);
+					}
+				}
+				try {
+					Thread.sleep(RECONNECT_MILLIS);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		});
+		System.out.println("Cluster node " + nodeId + " listening on " + bind + ":" + port);
+	}
+
+	private static boolean isLinked(String address) {
+		for (Link link : links.values()) {
+			if (address.equals(link.peerAddress)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static void connect(String address) {
+		int colon = address.lastIndexOf(':');
+		try {
+			Socket socket = new Socket();
+			socket.connect(new InetSocketAddress(address.substring(0, colon),
+					Integer.parseInt(address.substring(colon + 1))), (int) RECONNECT_MILLIS);
+			Link link = new Link(socket, true);
+			link.peerAddress = address;
+			daemon("cluster-link", link::run);
+		} catch (IOException | RuntimeException e) {
+			// the node is not up (yet); retried on the next round
+		}
+	}
+
+	private static String newChallenge() {
+		byte[] bytes = new byte[16];
+		random.nextBytes(bytes);
+		return HexFormat.of().formatHex(bytes);
+	}
+
+	/**
+	 * @param challenge A challenge sent in HELLO
+	 * @param node      Id of the node answering it, so an answer cannot be reflected back
+	 * @return The answer only a node with the secret can give
+	 */
+	private static byte[] answer(String challenge, String node) {
+		try {
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(secret);
+			return mac.doFinal((challenge + "," + node).getBytes(StandardCharsets.UTF_8));
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("HmacSHA256 unavailable", e);
+		}
+	}
+
+	private static void daemon(String name, Runnable task) {
+		Thread thread = new Thread(task, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Handles one line from another node.
+	 */
+	private static void handle(Link link, String line) throws IOException {
+		String[] parts = line.split(",", 2);
+		String rest = parts.length > 1 ? parts[1] : "";
+		if (!link.authenticated && !parts[0].equals("HELLO") && !parts[0].equals("AUTH")) {
+			throw new IOException("Cluster link not authenticated");
+		}
+		switch (parts[0]) {
+			case "HELLO": {
+				String[] hello = rest.split(",", 3); //node id, address, challenge
+				if (link.peerId != null || hello.length < 3) {
+					throw new IOException("Unexpected HELLO");
+				}
+				if (hello[0].equals(nodeId)) { //a seed address that points back at this node
+					if (link.initiator) {
+						peerAddresses.remove(link.peerAddress);
+					}
+					link.close();
+					break;
+				}
+				link.peerId = hello[0];
+				link.peerAddress = hello[1];
+				link.send("AUTH," + HexFormat.of().formatHex(answer(hello[2], nodeId)), true);
+				break;
+			}
+			case "AUTH": {
+				if (link.peerId == null || link.authenticated) {
+					throw new IOException("Unexpected AUTH");
+				}
+				byte[] expected = answer(link.challenge, link.peerId);
+				byte[] given;
+				try {
+					given = HexFormat.of().parseHex(rest);
+				} catch (IllegalArgumentException e) {
+					given = new byte[0];
+				}
+				if (!MessageDigest.isEqual(expected, given)) {
+					authFailures.increment();
+					System.out.println("Cluster link from " + link.socket.getInetAddress().getHostAddress()
+							+ " failed authentication");
+					link.peerId = null; //never registered, so nothing to clean up
+					link.close();
+					break;
+				}
+				link.authenticated = true;
+				register(link);
+				break;
+			}
+			case "PEERS":
+				for (String address : rest.split(",")) {
+					if (!address.isEmpty()) {
+						peerAddresses.add(address); //connected to on the next round
+					}
+				}
+				break;
+			case "USERS":
+				for (String user : rest.split(",")) {
+					if (!user.isEmpty()) {
+						remoteJoined(link.peerId, user);
+					}
+				}
+				break;
+			case "JOIN":
+				remoteJoined(link.peerId, rest);
+				break;
+			case "LEAVE":
+				if (remoteUsers.remove(rest, link.peerId)) {
+					ClientManager.remoteUserChanged(rest, false);
+				}
+				break;
+			case "RJOIN": {
+				String[] member = rest.split(",", 2); //room, user
+				Room.remoteJoined(member[0], link.peerId, member[1]);
+				break;
+			}
+			case "RLEAVE": {
+				String[] member = rest.split(",", 2);
+				Room.remoteLeft(member[0], link.peerId, member[1]);
+				break;
+			}
+			case "ROOMCHAT": {
+				String[] chat = rest.split(",", 3); //room, sender, text
+				Room.chat(chat[0], chat[1], chat[2]);
+				break;
+			}
+			case "CLAIM": {
+				String[] claim = rest.split(",", 2);
+				link.send("CLAIMED," + claim[0] + "," + (grant(link.peerId, claim[1]) ? "ok" : "taken"), true);
+				break;
+			}
+			case "CLAIMED": {
+				String[] reply = rest.split(",", 2);
+				Claim claim = pendingClaims.get(Long.parseLong(reply[0]));
+				if (claim != null) {
+					if (reply[1].equals("taken")) {
+						claim.taken = true;
+					}
+					claim.replies.countDown();
+				}
+				break;
+			}
+			case "CHAT": {
+				String[] chat = rest.split(",", 2);
+				ClientManager.fanOut(chat[0], chat[1]);
+				break;
+			}
+			case "DELIVER": {
+				String[] deliver = rest.split(",", 2);
+				ClientManager.deliverLocal(deliver[0], deliver[1]);
+				break;
+			}
+			case "NOTE": {
+				String[] note = rest.split(",", 3); //recipient, file name, size
+				long size = Long.parseLong(note[2]);
+				if (size < 0 || size > Math.min(ClientManager.MAX_NOTE_BYTES, Integer.MAX_VALUE)) {
+					throw new IOException("Voice note too large: " + size); //the file cannot be skipped safely
+				}
+				byte[] data = link.in.readNBytes((int) size);
+				if (data.length < size) {
+					throw new IOException("Link closed during a voice note");
+				}
+				if (!ClientManager.isValidNoteName(note[1])) {
+					System.out.println("Dropped voice note with an invalid name from " + link.peerId);
+					break;
+				}
+				File file = new File("./voiceNotes/" + new File(note[1]).getName());
+				file.getParentFile().mkdirs();
+				Files.write(file.toPath(), data);
+				ClientManager.deliverVoiceNote(file, note[0]);
+				break;
+			}
+			default:
+				System.out.println("Unknown cluster message: " + parts[0]);
+		}
+	}
+
+	/**
+	 * Makes a link the one used for its node and sends it this node's view.
+	 */
+	private static void register(Link link) {
+		synchronized (membershipLock) {
+			Link existing = links.get(link.peerId);
+			if (existing != null && existing.initiatorId().compareTo(link.initiatorId()) <= 0) {
+				link.peerId = null; //both nodes keep the same one of two simultaneous links
+				link.close();
+				return;
+			}
+			links.put(link.peerId, link);
+			if (existing != null) {
+				existing.close();
+			}
+			System.out.println("Cluster link to " + link.peerId + " (" + link.peerAddress + ") up");
+			peerAddresses.add(link.peerAddress);
+			StringBuilder users = new StringBuilder("USERS");
+			for (ClientManager client : ClientManager.clients) {
+				users.append(',').append(client.getUsername());
+			}
+			link.send(users.toString(), false);
+			Room.forEachLocalMember((room, user) -> link.send("RJOIN," + room + "," + user, false));
+			link.send("PEERS," + String.join(",", peerAddresses), false);
+		}
+	}
+
+	private static void remoteJoined(String node, String user) {
+		granted.remove(user);
+		if (remoteUsers.put(user, node) == null) {
+			ClientManager.remoteUserChanged(user, true);
+		}
+	}
+
+	/**
+	 * Answers another node's claim for a username.
+	 *
+	 * @return Whether the other node may have the name
+	 */
+	private static boolean grant(String node, String user) {
+		Long ownClaim = ownClaims.get(user);
+		if (ownClaim != null) {
+			if (nodeId.compareTo(node) < 0) {
+				return false; //both are claiming it; the smaller node id wins
+			}
+		} else if (ClientManager.usernames.contains(user) || remoteUsers.containsKey(user) || isGranted(user)) {
+			return false;
+		}
+		granted.put(user, System.currentTimeMillis() + 2 * CLAIM_MILLIS); //until the JOIN arrives
+		return true;
+	}
+
+	private static boolean isGranted(String user) {
+		Long expiry = granted.get(user);
+		if (expiry != null && expiry < System.currentTimeMillis()) {
+			granted.remove(user, expiry);
+			return false;
+		}
+		return expiry != null;
+	}
+
+	/**
+	 * @return Whether clustering is running
+	 */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @param username A username
+	 * @return Whether the name is in use, or being taken, on another node
+	 */
+	public static boolean isTakenElsewhere(String username) {
+		return enabled && (remoteUsers.containsKey(username) || isGranted(username));
+	}
+
+	/**
+	 * Asks every reachable node whether a username is free, waiting up to
+	 * {@code voip.cluster.claimMillis} for the answers. A node that does not
+	 * answer in time counts as objecting, as it may have given the name out.
+	 *
+	 * @param username A username already reserved on this node
+	 * @return Whether every other node agreed
+	 */
+	public static boolean claim(String username) {
+		List<Link> peers = List.copyOf(links.values());
+		if (!enabled || peers.isEmpty()) {
+			return true;
+		}
+		long id = nextClaim.incrementAndGet();
+		Claim claim = new Claim(peers.size());
+		pendingClaims.put(id, claim);
+		ownClaims.put(username, id);
+		try {
+			for (Link link : peers) {
+				link.send("CLAIM," + id + "," + username, true);
+			}
+			if (!claim.replies.await(CLAIM_MILLIS, TimeUnit.MILLISECONDS)) {
+				claimTimeouts.increment();
+				return false;
+			}
+			return !claim.taken;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			pendingClaims.remove(id);
+			ownClaims.remove(username, id);
+		}
+	}
+
+	/**
+	 * @param username A username
+	 * @return Whether the user is online on another node
+	 */
+	public static boolean isRemote(String username) {
+		return enabled && remoteUsers.containsKey(username);
+	}
+
+	/**
+	 * Tells the other nodes that a user logged in here.
+	 *
+	 * @param username The user
+	 */
+	public static void userJoined(String username) {
+		gossip("JOIN," + username);
+	}
+
+	/**
+	 * Tells the other nodes that a user of this node left.
+	 *
+	 * @param username The user
+	 */
+	public static void userLeft(String username) {
+		gossip("LEAVE," + username);
+	}
+
+	/**
+	 * Tells the other nodes that a user of this node joined a room.
+	 *
+	 * @param room     The room
+	 * @param username The user
+	 */
+	public static void roomJoined(String room, String username) {
+		gossip("RJOIN," + room + "," + username);
+	}
+
+	/**
+	 * Tells the other nodes that a user of this node left a room.
+	 *
+	 * @param room     The room
+	 * @param username The user
+	 */
+	public static void roomLeft(String room, String username) {
+		gossip("RLEAVE," + room + "," + username);
+	}
+
+	/**
+	 * Sends a room message to the nodes with members in the room.
+	 *
+	 * @param room   The room
+	 * @param sender Username of the sender
+	 * @param text   The message
+	 */
+	public static void roomChat(String room, String sender, String text) {
+		if (!enabled) {
+			return;
+		}
+		for (String node : Room.remoteNodes(room)) {
+			Link link = links.get(node);
+			if (link != null) {
+				link.send("ROOMCHAT," + room + "," + sender + "," + text, false);
+			}
+		}
+	}
+
+	private static void gossip(String line) {
+		if (!enabled) {
+			return;
+		}
+		synchronized (membershipLock) {
+			for (Link link : links.values()) {
+				link.send(line, false);
+			}
+		}
+	}
+
+	/**
+	 * Sends a global message to the other nodes, once per node.
+	 *
+	 * @param sender Username of the sender
+	 * @param text   The message
+	 */
+	public static void broadcast(String sender, String text) {
+		if (!enabled) {
+			return;
+		}
+		for (Link link : links.values()) {
+			link.send("CHAT," + sender + "," + text, false);
+		}
+	}
+
+	/**
+	 * Sends a protocol line to a user on another node.
+	 *
+	 * @param username The recipient
+	 * @param line     The line the recipient's client should receive
+	 * @return Whether the user is on a reachable node
+	 */
+	public static boolean deliver(String username, String line) {
+		Link link = linkFor(username);
+		if (link == null) {
+			return false;
+		}
+		link.send("DELIVER," + username + "," + line, ControlWriter.isUrgent(line));
+		return true;
+	}
+
+	/**
+	 * Sends a voice note to a user on another node.
+	 *
+	 * @param username The recipient
+	 * @param file     The voice note
+	 * @return Whether the user is on a reachable node
+	 * @throws IOException If the file cannot be read or sent
+	 */
+	public static boolean sendVoiceNote(String username, File file) throws IOException {
+		Link link = linkFor(username);
+		if (link == null) {
+			return false;
+		}
+		byte[] data = Files.readAllBytes(file.toPath());
+		link.writer.sendRaw("NOTE," + username + "," + file.getName() + "," + data.length, data, 0,
+				data.length); //nothing other threads gossip can come between the header and the file
+		messagesSent.increment();
+		return true;
+	}
+
+	private static Link linkFor(String username) {
+		if (!enabled) {
+			return null;
+		}
+		String node = remoteUsers.get(username);
+		return node == null ? null : links.get(node);
+	}
+}
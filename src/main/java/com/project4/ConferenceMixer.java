@@ -0,0 +1,103 @@
+package com.project4;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Mixes the audio of several conference senders into a single output stream.
+ * Each remote sender gets its own playout buffer; on every clock tick one frame
+ * is taken from each buffer that has audio, the frames are summed and the
+ * result is clamped to the 16-bit range.
+ */
+public class ConferenceMixer {
+
+	public static final int START_FRAMES = 2; //frames buffered per sender before playback starts
+	public static final int MAX_FRAMES = 4; //frames buffered per sender before old audio is dropped
+	private static final long SENDER_TIMEOUT_NANOS = 5_000_000_000L; //senders silent this long are forgotten
+
+	private final Map<Object, PlayoutBuffer> senders = new ConcurrentHashMap<>(); //playout buffer for each sender
+	private final int frameBytes; //size of one output frame in bytes
+	private final int[] mix; //accumulator reused for every frame
+
+	/**
+	 * Creates a mixer producing frames of the given size.
+	 *
+	 * @param frameBytes Size of one 16-bit mono output frame in bytes
+	 */
+	public ConferenceMixer(int frameBytes) {
+		this.frameBytes = frameBytes;
+		this.mix = new int[frameBytes / 2];
+	}
+
+	/**
+	 * Queues audio received from a sender.
+	 *
+	 * @param sender Key identifying the sender, such as its socket address
+	 * @param data   Buffer holding the audio
+	 * @param offset Offset of the first byte
+	 * @param length Number of bytes received
+	 */
+	public void offer(Object sender, byte[] data, int offset, int length) {
+		PlayoutBuffer buffer = senders.get(sender);
+		if (buffer == null) {
+			buffer = senders.computeIfAbsent(sender, key -> new PlayoutBuffer(frameBytes, START_FRAMES, MAX_FRAMES));
+		}
+		buffer.write(data, offset, length);
+	}
+
+	/**
+	 * Mixes one frame from every sender that has audio ready.
+	 * Must only be called from the playout thread.
+	 *
+	 * @param out Buffer receiving the mixed 16-bit little-endian frame
+	 * @return Number of senders mixed into the frame; 0 means the frame is silence
+	 */
+	public int mixFrame(byte[] out) {
+		Arrays.fill(mix, 0);
+		int active = 0;
+		long now = System.nanoTime();
+		Iterator<PlayoutBuffer> it = senders.values().iterator();
+		while (it.hasNext()) {
+			PlayoutBuffer buffer = it.next();
+			if (buffer.mixInto(mix)) {
+				active++;
+			} else if (now - buffer.getLastHeard() > SENDER_TIMEOUT_NANOS) {
+				it.remove(); //sender left the conference
+			}
+		}
+		for (int i = 0, j = 0; i < mix.length; i++, j += 2) {
+			int sample = mix[i];
+			if (sample > Short.MAX_VALUE) { //saturate instead of wrapping around
+				sample = Short.MAX_VALUE;
+			} else if (sample < Short.MIN_VALUE) {
+				sample = Short.MIN_VALUE;
+			}
+			out[j] = (byte) sample;
+			out[j + 1] = (byte) (sample >> 8);
+		}
+		return active;
+	}
+
+	/**
+	 * @return The playout buffers of the current senders
+	 */
+	public Map<Object, PlayoutBuffer> getSenders() {
+		return senders;
+	}
+
+	/**
+	 * @return Size of one output frame in bytes
+	 */
+	public int getFrameBytes() {
+		return frameBytes;
+	}
+
+	/**
+	 * Forgets all senders.
+	 */
+	public void clear() {
+		senders.clear();
+	}
+}
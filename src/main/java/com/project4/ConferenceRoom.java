@@ -0,0 +1,290 @@
+package com.project4;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A conference call: a multicast group and port of its own, allocated by the
+ * server on demand, and the users who may talk on it.
+ * <p>
+ * {@code ##CONFCREATE[,<user>,...]} allocates a conference, makes the sender
+ * its first member and invites the users listed. Members invite others with
+ * {@code ##CONFINVITE,<id>,<user>}; the user is sent
+ * {@code ##CONFINVITE,<id>,<inviter>} and may join with
+ * {@code ##CONFJOIN,<id>} for {@code voip.conference.inviteMillis}. A member
+ * that joins is sent {@code ##CONFJOINED,<id>,<group>,<port>,<member id>},
+ * and every member {@code ##CONFMEMBERS,<id>,<user>,...} when the members
+ * change. {@code ##CONFLEAVE,<id>} is answered with {@code ##CONFLEFT,<id>}
+ * if the sender was a member, and a request that cannot be carried out with
+ * {@code ##CONFERROR,<id>,<reason>}.
+ * <p>
+ * Members start every audio packet with their member id, so receivers mix
+ * each sender separately and drop their own packets when the network loops
+ * them back. A user is in one conference at a time; joining another leaves
+ * the first. The group and port are free again once the last member leaves,
+ * but ids are never reused, so an old invite cannot lead into a later
+ * conference. Conferences belong to one server node, as multicast only
+ * reaches the local network: invites go to users on the same node.
+ */
+public class ConferenceRoom {
+
+	private static final int MAX_ROOMS = Config.getInt("voip.conference.maxRooms", 256); //conferences at once
+	private static final int MAX_MEMBERS = Config.getInt("voip.conference.maxMembers", 32);
+	private static final int FIRST_GROUP = parseGroup(Config.get("voip.conference.group", "239.1.2.1"));
+	private static final int FIRST_PORT = Config.getInt("voip.conference.port", 5000);
+	private static final long INVITE_TIMEOUT = TimeUnit.MILLISECONDS
+			.toNanos(Config.getLong("voip.conference.inviteMillis", 60000)); //how long an invite can be taken up
+
+	private static final Object lock = new Object(); //guards all conferences; they change at human speed
+	private static final Map<Integer, ConferenceRoom> rooms = new HashMap<>(); //by id
+	private static final Map<ClientManager, ConferenceRoom> memberships = new HashMap<>(); //each member's conference
+	private static final ConferenceRoom[] slots = new ConferenceRoom[MAX_ROOMS]; //conference using each group and port
+	private static final TimerWheel inviteExpiry = new TimerWheel("conference_invites", 1000, 256);
+	private static final LongAdder created = Metrics.counter("voip_conferences_created_total");
+	private static final LongAdder invites = Metrics.counter("voip_conference_invites_total");
+	private static final LongAdder refused = Metrics.counter("voip_conference_refused_total");
+	private static int lastId = 0; //guarded by lock
+
+	static {
+		Metrics.gauge("voip_conferences", () -> {
+			synchronized (lock) {
+				return rooms.size();
+			}
+		});
+		Metrics.gauge("voip_conference_members", () -> {
+			synchronized (lock) {
+				return memberships.size();
+			}
+		});
+	}
+
+	private final int id;
+	private final int slot;
+	private final String group; //multicast address, dotted
+	private final int port;
+	private final Map<ClientManager, Integer> members = new LinkedHashMap<>(); //member ids, in order of joining
+	private final Map<String, Long> invited = new HashMap<>(); //username to System.nanoTime() the invite expires
+	private int lastMemberId = 0;
+
+	private ConferenceRoom(int id, int slot) {
+		this.id = id;
+		this.slot = slot;
+		this.group = formatGroup(FIRST_GROUP + slot);
+		this.port = FIRST_PORT + slot;
+	}
+
+	private static int parseGroup(String address) {
+		try {
+			InetAddress group = InetAddress.getByName(address);
+			byte[] bytes = group.getAddress();
+			if (!group.isMulticastAddress() || bytes.length != 4) {
+				throw new IllegalArgumentException("voip.conference.group must be an IPv4 multicast address: " + address);
+			}
+			return (bytes[0] & 0xff) << 24 | (bytes[1] & 0xff) << 16 | (bytes[2] & 0xff) << 8 | (bytes[3] & 0xff);
+		} catch (UnknownHostException e) {
+			throw new IllegalArgumentException("Invalid voip.conference.group: " + address, e);
+		}
+	}
+
+	private static String formatGroup(int address) {
+		return (address >>> 24) + "." + (address >> 16 & 0xff) + "." + (address >> 8 & 0xff) + "." + (address & 0xff);
+	}
+
+	/**
+	 * Allocates a conference with the client as its first member, leaving the
+	 * one it is in, and invites users to it.
+	 *
+	 * @param owner    The client
+	 * @param invitees Users to invite
+	 */
+	static void create(ClientManager owner, List<String> invitees) {
+		ConferenceRoom room;
+		synchronized (lock) {
+			int slot = 0;
+			while (slot < MAX_ROOMS && slots[slot] != null) {
+				slot++;
+			}
+			if (slot == MAX_ROOMS) {
+				refused.increment();
+				owner.send("##CONFERROR,0,no conference free");
+				return;
+			}
+			room = new ConferenceRoom(++lastId, slot);
+			slots[slot] = room;
+			rooms.put(room.id, room);
+			created.increment();
+			room.add(owner);
+		}
+		for (String user : invitees) {
+			invite(room.id, owner, user);
+		}
+	}
+
+	/**
+	 * Invites a user on this node to a conference. Only members may invite.
+	 *
+	 * @param id   The conference
+	 * @param from The inviting client
+	 * @param user The user invited
+	 */
+	static void invite(int id, ClientManager from, String user) {
+		synchronized (lock) {
+			ConferenceRoom room = rooms.get(id);
+			if (room == null || !room.members.containsKey(from)) {
+				refused.increment();
+				from.send("##CONFERROR," + id + ",not a member");
+				return;
+			}
+			ClientManager target = ClientManager.findClientByUsername(user);
+			if (target == null) {
+				refused.increment();
+				from.send("##CONFERROR," + id + "," + user.replace(',', ' ') + " is not on this server");
+				return;
+			}
+			if (room.members.containsKey(target)) {
+				return;
+			}
+			long expires = System.nanoTime() + INVITE_TIMEOUT;
+			room.invited.put(user, expires);
+			inviteExpiry.schedule(INVITE_TIMEOUT, () -> {
+				synchronized (lock) {
+					room.invited.remove(user, expires); //unless invited again since
+				}
+			});
+			invites.increment();
+			target.send("##CONFINVITE," + id + "," + from.getUsername());
+		}
+	}
+
+	/**
+	 * Adds an invited client to a conference, leaving the one it is in.
+	 * Joining a conference twice just resends its details.
+	 *
+	 * @param id     The conference
+	 * @param client The client
+	 */
+	static void join(int id, ClientManager client) {
+		synchronized (lock) {
+			ConferenceRoom room = rooms.get(id);
+			if (room != null && room.members.containsKey(client)) {
+				client.send(room.joinedLine(client));
+				return;
+			}
+			String reason = null;
+			Long expires = room != null ? room.invited.remove(client.getUsername()) : null;
+			if (room == null) {
+				reason = "the conference has ended";
+			} else if (expires == null || expires - System.nanoTime() < 0) {
+				reason = "not invited";
+			} else if (room.members.size() >= MAX_MEMBERS) {
+				reason = "the conference is full";
+			}
+			if (reason != null) {
+				refused.increment();
+				client.send("##CONFERROR," + id + "," + reason);
+				return;
+			}
+			room.add(client);
+		}
+	}
+
+	/**
+	 * Removes a client from a conference.
+	 *
+	 * @param id     The conference
+	 * @param client The client
+	 * @return Whether the client was a member
+	 */
+	static boolean leave(int id, ClientManager client) {
+		synchronized (lock) {
+			ConferenceRoom room = memberships.get(client);
+			if (room == null || room.id != id) {
+				return false;
+			}
+			room.remove(client);
+			return true;
+		}
+	}
+
+	/**
+	 * Removes a client that is going offline from its conference.
+	 *
+	 * @param client The client
+	 */
+	static void leave(ClientManager client) {
+		synchronized (lock) {
+			ConferenceRoom room = memberships.get(client);
+			if (room != null) {
+				room.remove(client);
+			}
+		}
+	}
+
+	/**
+	 * Moves a membership from a client's old connection to the connection that
+	 * resumed its session. The member id stays the same, so the audio the
+	 * client sends keeps being mixed as the same sender.
+	 *
+	 * @param from The old connection
+	 * @param to   The new connection
+	 */
+	static void handOver(ClientManager from, ClientManager to) {
+		synchronized (lock) {
+			ConferenceRoom room = memberships.remove(from);
+			if (room == null) {
+				return;
+			}
+			Integer memberId = room.members.remove(from);
+			room.members.put(to, memberId);
+			memberships.put(to, room);
+			to.send(room.joinedLine(to));
+		}
+	}
+
+	/**
+	 * @param client A member
+	 * @return The line telling it where to send and receive, with its member id
+	 */
+	private String joinedLine(ClientManager client) {
+		return "##CONFJOINED," + id + "," + group + "," + port + "," + members.get(client);
+	}
+
+	private void add(ClientManager client) {
+		ConferenceRoom previous = memberships.get(client);
+		if (previous != null) {
+			previous.remove(client);
+		}
+		members.put(client, ++lastMemberId);
+		memberships.put(client, this);
+		client.send(joinedLine(client));
+		announceMembers();
+	}
+
+	private void remove(ClientManager client) {
+		members.remove(client);
+		memberships.remove(client);
+		if (members.isEmpty()) {
+			rooms.remove(id);
+			slots[slot] = null; //the group and port can be handed out again
+		} else {
+			announceMembers();
+		}
+	}
+
+	private void announceMembers() {
+		StringBuilder line = new StringBuilder("##CONFMEMBERS,").append(id);
+		for (ClientManager member : members.keySet()) {
+			line.append(',').append(member.getUsername());
+		}
+		byte[] encoded = ControlWriter.encode(line.toString()); //encoded once for every member
+		for (ClientManager member : members.keySet()) {
+			member.sendEncoded(encoded, false);
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package com.project4;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Runtime configuration shared by the client and the server.
+ * Values are read from system properties (-Dkey=value) first and then from an
+ * optional voip.properties file in the working directory.
+ */
+public class Config {
+
+	public static final String FILE_NAME = "voip.properties"; //optional configuration file
+	private static final Properties fileProperties = load(); //properties read from the configuration file
+
+	private Config() {
+	}
+
+	/**
+	 * Loads the configuration file if it exists.
+	 *
+	 * @return The properties in the file, or an empty set
+	 */
+	private static Properties load() {
+		Properties properties = new Properties();
+		String path = System.getProperty("voip.config", FILE_NAME); //allows pointing at another file
+		try (InputStream in = new FileInputStream(path)) {
+			properties.load(in);
+		} catch (IOException e) {
+			// no configuration file; defaults apply
+		}
+		return properties;
+	}
+
+	/**
+	 * Gets a string setting.
+	 *
+	 * @param key          The setting name
+	 * @param defaultValue Value used if the setting is absent
+	 * @return The configured value
+	 */
+	public static String get(String key, String defaultValue) {
+		String value = System.getProperty(key);
+		if (value == null) {
+			value = fileProperties.getProperty(key);
+		}
+		return value == null ? defaultValue : value.trim();
+	}
+
+	/**
+	 * Gets an integer setting.
+	 *
+	 * @param key          The setting name
+	 * @param defaultValue Value used if the setting is absent or invalid
+	 * @return The configured value
+	 */
+	public static int getInt(String key, int defaultValue) {
+		try {
+			return Integer.parseInt(get(key, Integer.toString(defaultValue)));
+		} catch (NumberFormatException e) {
+			System.out.println("Invalid value for " + key + ", using " + defaultValue);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Gets a long setting.
+	 *
+	 * @param key          The setting name
+	 * @param defaultValue Value used if the setting is absent or invalid
+	 * @return The configured value
+	 */
+	public static long getLong(String key, long defaultValue) {
+		try {
+			return Long.parseLong(get(key, Long.toString(defaultValue)));
+		} catch (NumberFormatException e) {
+			System.out.println("Invalid value for " + key + ", using " + defaultValue);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Gets a decimal setting.
+	 *
+	 * @param key          The setting name
+	 * @param defaultValue Value used if the setting is absent or invalid
+	 * @return The configured value
+	 */
+	public static double getDouble(String key, double defaultValue) {
+		try {
+			return Double.parseDouble(get(key, Double.toString(defaultValue)));
+		} catch (NumberFormatException e) {
+			System.out.println("Invalid value for " + key + ", using " + defaultValue);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Gets a boolean setting.
+	 *
+	 * @param key          The setting name
+	 * @param defaultValue Value used if the setting is absent
+	 * @return The configured value
+	 */
+	public static boolean getBoolean(String key, boolean defaultValue) {
+		return Boolean.parseBoolean(get(key, Boolean.toString(defaultValue)));
+	}
+}
@@ -0,0 +1,344 @@
+package com.project4;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Coalescing writer for the line-based control channel.
+ * <p>
+ * Lines are buffered and flushed together about {@code voip.net.coalesceMillis}
+ * (default 2) after the first unsent line, or sooner once
+ * {@code voip.net.coalesceBytes} (default 8192) are waiting. A burst of chat
+ * or presence lines therefore leaves as one TCP segment instead of one per line.
+ * Lines whose command is listed in {@code voip.net.urgent} (call signalling and
+ * login replies by default) are flushed immediately together with anything
+ * queued before them, so ordering is never changed.
+ * <p>
+ * Appending never waits for the network. Queued lines are written by a
+ * pooled thread while the connection has output waiting, and the shared
+ * flusher only hands writers to that pool, so a peer that stops reading holds
+ * up its own thread and buffer and nobody else's. Queued output shows in the
+ * {@code voip_outbound_queued_bytes} gauge; a connection with more than
+ * {@code voip.net.maxQueuedBytes} (default 1048576) waiting is closed.
+ * Safe for use by several threads.
+ */
+public class ControlWriter {
+
+	private static final long COALESCE_NANOS = TimeUnit.MILLISECONDS
+			.toNanos(Config.getLong("voip.net.coalesceMillis", 2));
+	private static final int COALESCE_BYTES = Config.getInt("voip.net.coalesceBytes", 8192);
+	private static final int MAX_QUEUED = Config.getInt("voip.net.maxQueuedBytes", 1024 * 1024); //per connection
+	private static final Set<String> URGENT = new HashSet<>(); //commands flushed immediately
+	private static final Charset CHARSET = Charset.defaultCharset(); //matches the readers on both ends
+	private static final AtomicLong queuedBytes = new AtomicLong(); //bytes waiting in all writers
+	private static final LongAdder flushes = Metrics.counter("voip_outbound_flushes_total");
+	private static final LongAdder linesWritten = Metrics.counter("voip_outbound_lines_total");
+	private static final LongAdder overflows = Metrics.counter("voip_outbound_overflows_total");
+	private static final ThreadPoolExecutor writers = startWriters(); //one thread per connection with output waiting
+	private static final Queue<ControlWriter> dirty = new ConcurrentLinkedQueue<>(); //writers waiting for a flush
+	private static final Thread flusher = startFlusher(); //hands the dirty writers to the pool once per window
+
+	private final OutputStream out;
+	private final Object writeLock = new Object(); //orders writes to the stream
+	private ByteArrayOutputStream pending = new ByteArrayOutputStream(); //lines not yet written, guarded by this
+	private boolean flushScheduled = false; //guarded by this
+	private boolean draining = false; //a pool thread is writing this connection's output, guarded by this
+	private volatile boolean closed = false;
+	private volatile long writingSince = 0; //System.nanoTime() when the current write began, 0 if none
+
+	static {
+		for (String command : Config.get("voip.net.urgent",
+				"CALLING,ACCEPTED,DECLINED,ENDCALL,UNAVAILABLE,CONFINVITE,CONFJOINED,USERNAMEOK,USERNAMETAKEN,DISCONNECT,RECONNECT").split(",")) {
+			URGENT.add(command.trim());
+		}
+		Metrics.gauge("voip_outbound_queued_bytes", queuedBytes::get);
+	}
+
+	/**
+	 * Creates a writer.
+	 *
+	 * @param out The connection's output stream
+	 */
+	public ControlWriter(OutputStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * Queues a line, flushing immediately if its command is urgent.
+	 *
+	 * @param line The line, without a line separator
+	 * @throws IOException If the connection is closed or its queue is full
+	 */
+	public void send(String line) throws IOException {
+		send(line, isUrgent(line));
+	}
+
+	/**
+	 * Queues a line.
+	 *
+	 * @param line   The line, without a line separator
+	 * @param urgent Flush now instead of within the coalescing window
+	 * @throws IOException If the connection is closed or its queue is full
+	 */
+	public void send(String line, boolean urgent) throws IOException {
+		sendEncoded(encode(line), urgent);
+	}
+
+	/**
+	 * Queues a line encoded with {@link #encode(String)}, so a line sent to many
+	 * connections is only encoded once.
+	 *
+	 * @param line   The encoded line, including the line separator
+	 * @param urgent Flush now instead of within the coalescing window
+	 * @throws IOException If the connection is closed or its queue is full
+	 */
+	public void sendEncoded(byte[] line, boolean urgent) throws IOException {
+		sendEncoded(null, line, urgent);
+	}
+
+	/**
+	 * Queues a line encoded with {@link #encode(String)} behind a prefix of its
+	 * own, such as a per-connection sequence number, so the shared line is still
+	 * only encoded once.
+	 *
+	 * @param prefix Bytes written directly before the line, or null
+	 * @param line   The encoded line, including the line separator
+	 * @param urgent Flush now instead of within the coalescing window
+	 * @throws IOException If the connection is closed or its queue is full
+	 */
+	public void sendEncoded(byte[] prefix, byte[] line, boolean urgent) throws IOException {
+		if (closed) {
+			throw new IOException("Connection closed");
+		}
+		int length = line.length + (prefix != null ? prefix.length : 0);
+		boolean overflow;
+		boolean flushNow = false;
+		boolean schedule = false;
+		synchronized (this) {
+			overflow = pending.size() + length > MAX_QUEUED;
+			if (!overflow) {
+				if (prefix != null) {
+					pending.write(prefix);
+				}
+				pending.write(line);
+				queuedBytes.addAndGet(length);
+				flushNow = urgent || pending.size() >= COALESCE_BYTES;
+				if (!flushNow && !flushScheduled) {
+					flushScheduled = true;
+					schedule = true;
+				}
+			}
+		}
+		if (overflow) {
+			overflows.increment();
+			close(); //the peer stopped reading; its reader notices and cleans up
+			throw new IOException("Send queue full");
+		}
+		linesWritten.increment();
+		if (schedule) {
+			dirty.add(this);
+			LockSupport.unpark(flusher);
+		}
+		if (flushNow) {
+			startDrain();
+		}
+	}
+
+	/**
+	 * @param line A line, without a line separator
+	 * @return The bytes sent for it
+	 */
+	public static byte[] encode(String line) {
+		return (line + System.lineSeparator()).getBytes(CHARSET);
+	}
+
+	/**
+	 * Writes a header line and the raw bytes it announces, such as a file,
+	 * after every line queued so far. Nothing queued meanwhile by other threads
+	 * can come between the header and the data, so the peer can read exactly
+	 * the announced number of bytes after the line. Unlike the line methods
+	 * this waits for the network, so it must not be called while holding a
+	 * lock other senders need.
+	 *
+	 * @param header The header line, without a line separator
+	 * @param data   The bytes
+	 * @param offset Offset of the first byte
+	 * @param length Number of bytes
+	 * @throws IOException If the connection is closed or writing fails
+	 */
+	public void sendRaw(String header, byte[] data, int offset, int length) throws IOException {
+		if (closed) {
+			throw new IOException("Connection closed");
+		}
+		byte[] line = encode(header);
+		synchronized (writeLock) {
+			writingSince = System.nanoTime();
+			try {
+				writePending();
+				out.write(line);
+				out.write(data, offset, length);
+				out.flush();
+				linesWritten.increment();
+			} finally {
+				writingSince = 0;
+			}
+		}
+	}
+
+	/**
+	 * Starts writing every queued line without waiting for the coalescing
+	 * window. Returns at once; the lines are written by a pooled thread.
+	 */
+	public void flushAsync() {
+		startDrain();
+	}
+
+	/**
+	 * Writes every queued line now, waiting for the network. Only for callers
+	 * that hold no locks, such as a server shutting down.
+	 *
+	 * @throws IOException If writing fails
+	 */
+	public void flush() throws IOException {
+		synchronized (writeLock) {
+			writingSince = System.nanoTime();
+			try {
+				writePending();
+				out.flush();
+			} finally {
+				writingSince = 0;
+			}
+		}
+	}
+
+	/**
+	 * A write blocks while the peer's receive window is full, so a peer that
+	 * stopped reading shows up as a write that never finishes.
+	 *
+	 * @param now {@link System#nanoTime()}
+	 * @return Nanoseconds the current write has been blocked, or 0 if none is in progress
+	 */
+	public long stalledFor(long now) {
+		long since = writingSince;
+		return since == 0 ? 0 : now - since;
+	}
+
+	private void writePending() throws IOException {
+		ByteArrayOutputStream batch;
+		synchronized (this) {
+			if (pending.size() == 0) {
+				return;
+			}
+			batch = pending;
+			pending = new ByteArrayOutputStream();
+			queuedBytes.addAndGet(-batch.size());
+		}
+		batch.writeTo(out); //outside the buffer lock, so senders never wait for the network
+		flushes.increment();
+	}
+
+	/**
+	 * Hands the writer to a pool thread unless one is already writing for it.
+	 */
+	private void startDrain() {
+		synchronized (this) {
+			flushScheduled = false;
+			if (draining || closed || pending.size() == 0) {
+				return;
+			}
+			draining = true;
+		}
+		writers.execute(this::drain);
+	}
+
+	/**
+	 * Writes until nothing is queued. Lines queued meanwhile go out in the next
+	 * round, so one thread per connection is enough.
+	 */
+	private void drain() {
+		try {
+			while (true) {
+				flush();
+				synchronized (this) {
+					if (pending.size() == 0 || closed) {
+						draining = false;
+						return;
+					}
+				}
+			}
+		} catch (IOException e) {
+			close(); // the connection's reader notices and cleans up
+			synchronized (this) {
+				draining = false;
+			}
+		}
+	}
+
+	/**
+	 * Discards anything queued and closes the stream.
+	 */
+	public void close() {
+		closed = true;
+		synchronized (this) {
+			queuedBytes.addAndGet(-pending.size());
+			pending = new ByteArrayOutputStream();
+		}
+		try {
+			out.close();
+		} catch (IOException e) {
+			// already closed
+		}
+	}
+
+	/**
+	 * @param line A protocol line
+	 * @return Whether the line's command must be sent without waiting
+	 */
+	static boolean isUrgent(String line) {
+		if (!line.startsWith("##")) {
+			return false;
+		}
+		int end = line.indexOf(',');
+		return URGENT.contains(end < 0 ? line.substring(2) : line.substring(2, end));
+	}
+
+	private static ThreadPoolExecutor startWriters() {
+		AtomicInteger count = new AtomicInteger();
+		return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 30, TimeUnit.SECONDS, new SynchronousQueue<>(), task -> {
+			Thread thread = new Thread(task, "control-write-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	private static Thread startFlusher() {
+		Thread thread = new Thread(() -> {
+			while (true) {
+				if (dirty.isEmpty()) {
+					LockSupport.park(); //woken by the first line queued after a quiet period
+					continue;
+				}
+				LockSupport.parkNanos(COALESCE_NANOS); //let the window fill
+				for (ControlWriter writer = dirty.poll(); writer != null; writer = dirty.poll()) {
+					writer.startDrain(); //never writes itself, so one slow peer cannot hold up the rest
+				}
+			}
+		}, "control-flush");
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+}
@@ -0,0 +1,210 @@
+package com.project4;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Signal processing on 16-bit PCM: mixing with saturation, gain and level
+ * metering, for stages that run on every frame of every stream.
+ * <p>
+ * The kernels come in two implementations with the same results: a scalar
+ * one, and one using the Vector API, which processes as many samples per
+ * instruction as the CPU's vector registers hold. The Vector API is an
+ * incubator module in Java 17, so the vector kernels are used only when the
+ * JVM is started with {@code --add-modules jdk.incubator.vector}; otherwise,
+ * or with {@code voip.dsp.vector=false}, the scalar ones are. Level sums may
+ * differ in the last bits, as floating point sums depend on their order.
+ * <p>
+ * Samples are {@code short[]}; {@link #toSamples(ByteBuffer, short[], int)}
+ * and {@link #toPcm(short[], int, ByteBuffer)} convert from and to the
+ * little-endian byte layout of the audio lines and packets.
+ */
+public class Dsp {
+
+	static final int GAIN_BITS = 12; //fraction bits of the fixed-point gain
+	static final float MAX_GAIN = 65535f / (1 << GAIN_BITS); //just under 16
+
+	/**
+	 * The operations with a scalar and a vector implementation.
+	 */
+	interface Kernels {
+
+		/** Adds src to dst, saturating at the 16-bit limits. */
+		void mix(short[] dst, short[] src, int count);
+
+		/** Scales samples by gain / 4096, rounding and saturating. */
+		void gain(short[] samples, int count, int gain);
+
+		/** @return The sum of the squared samples */
+		double sumSquares(short[] samples, int count);
+
+		/** @return The largest magnitude of the samples */
+		int peak(short[] samples, int count);
+
+		/** @return The dot product of count floats of a and b */
+		float dot(float[] a, int aOffset, float[] b, int bOffset, int count);
+	}
+
+	static final Kernels SCALAR = new ScalarKernels();
+	static final Kernels VECTOR = loadVectorKernels(); //null when the Vector API is not available
+	static final Kernels KERNELS = VECTOR != null && Config.getBoolean("voip.dsp.vector", true) ? VECTOR : SCALAR;
+
+	private Dsp() {
+	}
+
+	/**
+	 * @return The vector kernels, or null unless the JVM has the Vector API module
+	 */
+	private static Kernels loadVectorKernels() {
+		if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+			return null;
+		}
+		try {
+			return (Kernels) Class.forName("com.project4.VectorKernels").getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return Whether the vector kernels are in use
+	 */
+	public static boolean isVectorized() {
+		return KERNELS == VECTOR;
+	}
+
+	/**
+	 * Mixes one stream into another, saturating instead of wrapping around.
+	 *
+	 * @param dst   Samples mixed into, and the result
+	 * @param src   Samples to add
+	 * @param count Number of samples
+	 */
+	public static void mix(short[] dst, short[] src, int count) {
+		KERNELS.mix(dst, src, count);
+	}
+
+	/**
+	 * Changes the volume of samples, saturating instead of wrapping around.
+	 *
+	 * @param samples Samples, changed in place
+	 * @param count   Number of samples
+	 * @param gain    Factor from 0 to just under 16, in steps of 1/4096
+	 */
+	public static void gain(short[] samples, int count, float gain) {
+		KERNELS.gain(samples, count, Math.round(Math.max(0, Math.min(MAX_GAIN, gain)) * (1 << GAIN_BITS)));
+	}
+
+	/**
+	 * @param samples Samples
+	 * @param count   Number of samples
+	 * @return Root mean square level, from 0 to 32768
+	 */
+	public static double rms(short[] samples, int count) {
+		return count == 0 ? 0 : Math.sqrt(KERNELS.sumSquares(samples, count) / count);
+	}
+
+	/**
+	 * @param samples Samples
+	 * @param count   Number of samples
+	 * @return Largest magnitude, from 0 to 32768
+	 */
+	public static int peak(short[] samples, int count) {
+		return KERNELS.peak(samples, count);
+	}
+
+	/**
+	 * Reads 16-bit little-endian samples from the buffer's position.
+	 *
+	 * @param pcm     Audio bytes; its position advances past the samples read
+	 * @param samples Array receiving the samples
+	 * @param count   Number of samples
+	 */
+	public static void toSamples(ByteBuffer pcm, short[] samples, int count) {
+		pcm.slice().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(samples, 0, count);
+		pcm.position(pcm.position() + 2 * count);
+	}
+
+	/**
+	 * Writes samples as 16-bit little-endian PCM at the buffer's position.
+	 *
+	 * @param samples Samples
+	 * @param count   Number of samples
+	 * @param pcm     Buffer receiving the bytes; its position advances past them
+	 */
+	public static void toPcm(short[] samples, int count, ByteBuffer pcm) {
+		pcm.slice().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().put(samples, 0, count);
+		pcm.position(pcm.position() + 2 * count);
+	}
+
+	/**
+	 * @param value A value
+	 * @return The value limited to the 16-bit range
+	 */
+	static int saturate(int value) {
+		return value > Short.MAX_VALUE ? Short.MAX_VALUE : value < Short.MIN_VALUE ? Short.MIN_VALUE : value;
+	}
+
+	/**
+	 * One sample at a time; also finishes the samples left over by the vector kernels.
+	 */
+	static class ScalarKernels implements Kernels {
+
+		@Override
+		public void mix(short[] dst, short[] src, int count) {
+			mix(dst, src, 0, count);
+		}
+
+		static void mix(short[] dst, short[] src, int from, int to) {
+			for (int i = from; i < to; i++) {
+				dst[i] = (short) saturate(dst[i] + src[i]);
+			}
+		}
+
+		@Override
+		public void gain(short[] samples, int count, int gain) {
+			gain(samples, gain, 0, count);
+		}
+
+		static void gain(short[] samples, int gain, int from, int to) {
+			for (int i = from; i < to; i++) {
+				samples[i] = (short) saturate((samples[i] * gain + (1 << (GAIN_BITS - 1))) >> GAIN_BITS);
+			}
+		}
+
+		@Override
+		public double sumSquares(short[] samples, int count) {
+			return sumSquares(samples, 0, count);
+		}
+
+		static long sumSquares(short[] samples, int from, int to) {
+			long sum = 0;
+			for (int i = from; i < to; i++) {
+				sum += samples[i] * samples[i];
+			}
+			return sum;
+		}
+
+		@Override
+		public int peak(short[] samples, int count) {
+			return peak(samples, 0, count);
+		}
+
+		static int peak(short[] samples, int from, int to) {
+			int peak = 0;
+			for (int i = from; i < to; i++) {
+				peak = Math.max(peak, Math.abs(samples[i]));
+			}
+			return peak;
+		}
+
+		@Override
+		public float dot(float[] a, int aOffset, float[] b, int bOffset, int count) {
+			float sum = 0;
+			for (int i = 0; i < count; i++) {
+				sum += a[aOffset + i] * b[bOffset + i];
+			}
+			return sum;
+		}
+	}
+}
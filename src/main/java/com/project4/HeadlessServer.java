@@ -0,0 +1,26 @@
+package com.project4;
+
+import java.io.IOException;
+
+/**
+ * Runs the server without a GUI, logging to the console.
+ * Used for load tests and machines without a display.
+ */
+public class HeadlessServer {
+
+	/**
+	 * Starts the server and serves clients until the process is stopped.
+	 * 
+	 * @param args Optionally the port; otherwise voip.server.port (default 5000) is used
+	 */
+	public static void main(String[] args) {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : Config.getInt("voip.server.port", 5000);
+		try {
+			Server server = new Server(SocketOptions.bind(port), null);
+			Runtime.getRuntime().addShutdownHook(new Thread(Server::drain)); //drain clients and save sessions on Ctrl+C
+			server.startServerSocket(null, null);
+		} catch (IOException e) {
+			System.out.println("Could not start server: " + e.getMessage());
+		}
+	}
+}
@@ -1,17 +1,20 @@
 package com.project4;
 
+import javafx.animation.AnimationTimer;
 import javafx.application.Platform;
 import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
+import javafx.geometry.Orientation;
 import javafx.scene.Node;
 import javafx.scene.Scene;
 import javafx.scene.control.Alert;
 import javafx.scene.control.Button;
 import javafx.scene.control.ButtonType;
+import javafx.scene.control.Label;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ScrollBar;
 import javafx.scene.input.MouseEvent;
-import javafx.scene.media.Media;
-import javafx.scene.media.MediaPlayer;
 import javafx.scene.control.ListView;
 import javafx.scene.control.SingleSelectionModel;
 import javafx.scene.control.Tab;
@@ -23,19 +26,18 @@ import javafx.stage.Stage;
 
 import java.io.File;
 import java.io.IOException;
-import java.net.Socket;
 import java.nio.file.Files;
 import java.util.ArrayList;
-import java.util.Hashtable;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
-import javax.sound.sampled.AudioFileFormat;
 import javax.sound.sampled.AudioFormat;
-import javax.sound.sampled.AudioInputStream;
-import javax.sound.sampled.AudioSystem;
-import javax.sound.sampled.DataLine;
-import javax.sound.sampled.LineUnavailableException;
-import javax.sound.sampled.TargetDataLine;
 
 /**
  * The interaction controller: handles interactions between the client and GUI.
@@ -52,10 +54,10 @@ public class InteractController {
     public volatile ListView<String> userListView; //A list of current online user strings
 
     @FXML
-    public TextArea globalArea; //represents the global text area
+    public ListView<String> globalListView; //shows the global messages
 
     @FXML
-    public volatile TextArea textWhisper; //represents whisper text area
+    public volatile ListView<String> whisperListView; //shows the selected whisper conversation
 
     @FXML
     private volatile TabPane tabPane; //Represents a tab area in the GUI
@@ -78,118 +80,183 @@ public class InteractController {
     @FXML
     private TextArea textCall; //area for appending call messages
 
+    @FXML
+    private Label callStatsLabel; //live quality statistics of the current call
+
     @FXML
     private Button recordButton; //interactable button for recording voice notes
 
     @FXML
     private ListView<String> vnListView; //List of voice notes
 
-    private List<String> messageQueue = new ArrayList<>(); //message queue for if global message area is null
+    private final Queue<String> messageQueue = new ConcurrentLinkedQueue<>(); //global messages waiting for the next pulse
+    private final MessageRing globalMessages = new MessageRing(Config.getInt("voip.chat.viewMessages", 1000)); //lines shown in the global view
+    private AnimationTimer messagePump; //applies queued global messages once per frame pulse
 
     private String username; //The client's username
 
     private volatile Client client = null; //The client for this interaction controller
 
     private volatile Boolean onWhisper = false; //boolean representing if the client is currently viewing the "whisper" tab
-    private Hashtable<String, ArrayList<String>> whisperMessages = new Hashtable<>(); //Hashtable of whisper messages
+    private final WhisperHistory whisperHistory = new WhisperHistory(); //whisper conversations by username
+    private String shownWhisperee; //username whose conversation is shown, accessed on the FX thread
+    private long shownFirst = 0; //number of the first message shown
+    private boolean whisperScrollWatched = false; //is the whisper scroll bar being watched
 
     private volatile boolean bRecord = false; //boolean representing if voice note recording is currently happening
     private volatile File audioFile; // Reference to the audio file
-    private volatile TargetDataLine line; //dataline containing audio input
+    private volatile AudioSource line; //audio input used for recording
+    private volatile VoiceNoteRecorder recorder; //records and uploads the current voice note
+    private final Map<String, File> voiceNotes = new HashMap<>(); //voice note files by list entry, accessed on the FX thread
+    private final VoiceNotePlayer voiceNotePlayer = new VoiceNotePlayer(); //plays voice notes, keeping recent ones ready
 
     /**
      * Displays the whisper messages for the selected user.
      * 
      * This gets triggered when the user clicks on an online user in the listview
      * of online users.
-     * It then retrieves the selected user, and appends its whisper messages to the whisper area
+     * It then retrieves the selected user, and shows the newest whisper messages held
+     * in memory; older ones are loaded a page at a time when scrolling to the top.
      * 
      * @param event The mouse event that triggered the method.
      */
     @FXML
     void displayWhisperMessages(MouseEvent event) {
-        // System.out.println("This is happening");
         String whisperee = getSelectedUser();
+        if (whisperee == null) {
+            return;
+        }
         if (whisperee.startsWith("*")) {
             whisperNotification(whisperee);
             whisperee = whisperee.substring(1);
         }
-        ArrayList<String> messages = whisperMessages.get(whisperee);
-        textWhisper.clear();
-        for (String message : messages) {
-            // System.out.println("//" + message);
-            appendWhisperMessage(message);
+        List<String> messages = whisperHistory.latest(whisperee);
+        shownWhisperee = whisperee;
+        shownFirst = whisperHistory.size(whisperee) - messages.size();
+        whisperListView.getItems().setAll(messages); //one update for the whole window
+        whisperListView.scrollTo(messages.size() - 1);
+        watchWhisperScroll();
+    }
+
+    /**
+     * Loads the previous page of the shown conversation once the whisper view is
+     * scrolled to the top.
+     */
+    private void watchWhisperScroll() {
+        if (whisperScrollWatched || whisperListView == null) {
+            return;
         }
+        for (Node node : whisperListView.lookupAll(".scroll-bar")) {
+            if (node instanceof ScrollBar && ((ScrollBar) node).getOrientation() == Orientation.VERTICAL) {
+                ScrollBar scrollBar = (ScrollBar) node;
+                scrollBar.valueProperty().addListener((observable, oldValue, value) -> {
+                    if (value.doubleValue() <= scrollBar.getMin() && oldValue.doubleValue() > value.doubleValue()) {
+                        loadOlderWhispers();
+                    }
+                });
+                whisperScrollWatched = true;
+            }
+        }
+    }
 
+    /**
+     * Shows the page of whisper messages before the first one shown.
+     */
+    private void loadOlderWhispers() {
+        if (shownWhisperee == null || shownFirst <= 0) {
+            return;
+        }
+        List<String> older = whisperHistory.read(shownWhisperee, shownFirst - WhisperHistory.PAGE, shownFirst);
+        shownFirst -= older.size();
+        whisperListView.getItems().addAll(0, older);
+        whisperListView.scrollTo(older.size()); //keep the message that was at the top in view
     }
 
     /**
      * Handles the sign in process.
      * 
      * This method handles the sign in process. It retrieves the username, server
-     * address, and server port from the text fields on the UI. It then initializes
-     * the client connection to the server and sends the username to the server.
+     * address, and server port from the text fields on the UI. It then connects
+     * to the server, sends the username and opens the main window once the server
+     * accepts it. Each step runs off the JavaFX thread, so the window stays
+     * responsive, and the whole login must finish within
+     * {@code voip.login.timeoutMillis}.
      * 
      * @param event The action event that triggered the method.
      */
     @FXML
     private void handleSignIn(ActionEvent event) {
+        long started = System.nanoTime();
+        Node button = (Node) event.getSource();
+        Stage stage = (Stage) button.getScene().getWindow();
+        //get username, address and port
+        username = textLogin.getText();
+        String serverAddress = textAddress.getText();
+        int serverPort;
         try {
-            //get username, address and port
-            username = textLogin.getText();
-            String serverAddress = textAddress.getText();
-            int serverPort = Integer.parseInt(textPort.getText());
-
-            // initialise the client connection to the server
-            if (client == null) {
-                Socket socket = new Socket(serverAddress, serverPort);
-                textAddress.setDisable(true);
-                textPort.setDisable(true); //disables text fields for address and port while connection set up
-                client = new Client(socket, this); //init client with socket containing server info and this interaction controller
-                ClientService.setCurrentClient(client); //sets the client service client instance to the newly created client
-                client.receiver(); //start client receiving messages from server
-                client.startVoip(); //start VoIP
-            }
-            client.sendUserName(username);
-        } catch (Exception e) {
-            // System.out.println("Server is offline : " + e.getMessage());
-            // e.printStackTrace();
-            Platform.runLater(() -> showErrorDialog("Server not available of given address and port"));
+            serverPort = Integer.parseInt(textPort.getText().trim());
+        } catch (NumberFormatException e) {
+            showErrorDialog("Server not available of given address and port");
+            return;
         }
 
-        if (client != null) {
-            while (!client.checkedUsername) {
-                try {
-                    Thread.sleep(500); //sleep client thread to avoid race conditions on usernames
-                } catch (InterruptedException e) {
-                    // e.printStackTrace();
-                }
+        button.setDisable(true); //one login at a time
+        textAddress.setDisable(true);
+        textPort.setDisable(true); //disables text fields for address and port while connection set up
+        CompletableFuture<Client> connected = client != null && !client.isAbandoned()
+                ? CompletableFuture.completedFuture(client) //retrying another name
+                : Client.connect(serverAddress, serverPort, this);
+        connected.thenCompose(newClient -> {
+            client = newClient;
+            ClientService.setCurrentClient(newClient); //sets the client service client instance to the newly created client
+            return newClient.logIn(username);
+        }).orTimeout(Client.LOGIN_TIMEOUT, TimeUnit.MILLISECONDS).whenComplete((accepted, error) -> Platform.runLater(() -> {
+            button.setDisable(false);
+            if (error != null) {
+                connected.thenAccept(Client::abandon); //now, or when a slow connect completes; the next attempt starts afresh
+                client = null;
+                textAddress.setDisable(false);
+                textPort.setDisable(false);
+                boolean timedOut = error instanceof TimeoutException || error.getCause() instanceof TimeoutException;
+                showErrorDialog(timedOut ? "The server did not answer in time"
+                        : "Server not available of given address and port");
+            } else if (!accepted) {
+                showErrorDialog("Username is taken. Please try a different username."); //error message if username taken
+            } else {
+                showMainWindow(stage, started);
             }
-            client.checkedUsername = false;
-            if (client.usernameOK) { //if client username allowed, start main GUI
-                try {
-
-                    FXMLLoader loader = new FXMLLoader(getClass().getResource("/com/project4/GUI_Main.fxml"));
-                    loader.setController(this);
-                    Stage stage = (Stage) ((Node) event.getSource()).getScene().getWindow();
-                    stage.setScene(new Scene(loader.load()));
-                    stage.setTitle(username); //starts main GUI
-
-                    stage.setOnCloseRequest(e -> {
-                        if (client != null) {
-                            client.disconnect();
-                        }
-                    });
-
-                    stage.show();
-
-                    flushMessageQueue(); //flush global message queue
-                } catch (Exception e) {
-                    System.out.println("Error occurred loading Main GUI: " + e.getMessage());
+        }));
+    }
+
+    /**
+     * Replaces the login screen with the main window and reports how long it
+     * took to become usable, from pressing sign in and from launch.
+     * 
+     * @param stage   The login window
+     * @param started {@link System#nanoTime()} when sign in was pressed
+     */
+    private void showMainWindow(Stage stage, long started) {
+        try {
+            FXMLLoader loader = new FXMLLoader(getClass().getResource("/com/project4/GUI_Main.fxml"));
+            loader.setController(this);
+            stage.setScene(new Scene(loader.load()));
+            stage.setTitle(username); //starts main GUI
+
+            stage.setOnCloseRequest(e -> {
+                voiceNotePlayer.close();
+                if (client != null) {
+                    client.disconnect();
                 }
-            }
-        }
+            });
+
+            stage.show();
+            Platform.runLater(() -> System.out.println("Main window ready " //after the window's first layout and paint
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) + " ms after sign in, "
+                    + ClientApplication.millisSinceLaunch() + " ms after launch"));
 
+        } catch (Exception e) {
+            System.out.println("Error occurred loading Main GUI: " + e.getMessage());
+        }
     }
 
     /**
@@ -197,7 +264,8 @@ public class InteractController {
      * 
      * This method sends a message to the server. If the message is a whisper, it
      * sends the message to the specified user. If the message is not a whisper, it
-     * sends the message to the server.
+     * sends the message to the server, or to the current room. "/join <room>" and
+     * "/leave" switch between a room and global chat.
      * 
      * @param event The action event that triggered the method.
      * @throws IOException
@@ -223,7 +291,13 @@ public class InteractController {
             }
         } else if (!message.isEmpty() && client != null) { //non-whisper send
             fieldMessage.clear();
-            client.sendMessage(message);
+            if (message.startsWith("/join ")) {
+                client.joinRoom(message.substring("/join ".length()).trim());
+            } else if (message.equals("/leave")) {
+                client.leaveRoom();
+            } else {
+                client.sendChat(message); //to the current room, if any
+            }
         } else if (message.isEmpty()) { //empty message error
             showErrorDialog("Message cannot be empty.");
         } else {
@@ -259,12 +333,13 @@ public class InteractController {
     }
 
     /**
-     * Handles a conference call by calling on the client class.
+     * Handles a conference call by calling on the client class: starts a
+     * conference with the selected user, or invites them to the current one.
      * @param event The event triggering the conference call connect.
      */
     @FXML
     void handleConference(ActionEvent event) {
-        client.conference();
+        client.conference(getSelectedUser());
     }
 
     /**
@@ -289,39 +364,101 @@ public class InteractController {
         System.out.println("User list updated");
     }
 
+    /**
+     * Adds and removes users in the user list view without rebuilding it.
+     * 
+     * @param joined Users who came online.
+     * @param left   Users who went offline.
+     */
+    public void applyPresenceDelta(List<String> joined, List<String> left) {
+        if (joined.isEmpty() && left.isEmpty()) {
+            return;
+        }
+        Platform.runLater(() -> {
+            List<String> items = userListView.getItems();
+            for (String user : left) {
+                if (!items.remove(user)) {
+                    items.remove("*" + user); //user was marked as having sent a whisper
+                }
+            }
+            items.addAll(joined);
+        });
+    }
+
     /**
      * Appends a message to the global area.
      * 
-     * This method appends the provided message to the global area on the UI. If the
-     * global area is null, the message is queued for later display.
+     * This method queues the provided message; everything queued is added to the
+     * global area together on the next frame pulse, so a burst of messages costs
+     * one view update rather than one per message.
      * 
      * @param message The message to be appended.
      */
     public void appendMessage(String message) {
+        messageQueue.add(message);
+    }
+
+    /**
+     * Adds all queued messages to the global area. Runs on the FX thread once per pulse.
+     */
+    private void flushMessageQueue() {
+        if (messageQueue.isEmpty()) {
+            return;
+        }
+        List<String> batch = new ArrayList<>();
+        for (String message = messageQueue.poll(); message != null; message = messageQueue.poll()) {
+            batch.add(message);
+        }
+        globalMessages.appendAll(batch); //oldest lines drop out once the view is full
+        globalListView.scrollTo(globalMessages.size() - 1);
+    }
+
+    /**
+     * Inserts older messages at the top of the global area.
+     * 
+     * @param messages The messages, oldest first.
+     */
+    public void prependMessages(List<String> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
         Platform.runLater(() -> {
-            if (globalArea != null) {
-                globalArea.appendText(message + "\n"); //actual message append
-            } else {
-                System.out.println("globalArea is null, queuing message.");
-                messageQueue.add(message); //queues message if global area is null
+            globalMessages.prependAll(messages);
+            if (globalListView != null) {
+                globalListView.scrollTo(0);
             }
         });
     }
 
+    /**
+     * Requests the page of global messages before the oldest one shown.
+     * 
+     * @param event The action event triggered by the load older button.
+     */
+    @FXML
+    void handleLoadOlder(ActionEvent event) {
+        client.requestOlderMessages();
+    }
+
     /**
      * Appends a whisper message to the whisper area.
      * 
-     * This method appends the provided whisper message to the whisper area on the
-     * UI. If the whisper area is null, the whisper message is not appended.
+     * This method shows the whisper messages of the shown conversation that
+     * arrived since it was last updated, which includes the provided message.
+     * If the whisper area is null, nothing is appended.
      * 
-     * @param message The whisper message to be appended.
+     * @param message The whisper message to be appended, already added with
+     *                addWhisperMessage.
      */
     public void appendWhisperMessage(String message) {
         Platform.runLater(() -> {
-            if (textWhisper != null) {
-                textWhisper.appendText(message + "\n"); //actual append
-            } else { //if no whisper message, do not append anything and print error
-                System.out.println("textWhisper is null, cannot append whisper message.");
+            if (whisperListView == null) { //if no whisper area, do not append anything and print error
+                System.out.println("whisperListView is null, cannot append whisper message.");
+            } else if (shownWhisperee != null) {
+                long next = shownFirst + whisperListView.getItems().size();
+                List<String> newer = whisperHistory.read(shownWhisperee, next, whisperHistory.size(shownWhisperee));
+                whisperListView.getItems().addAll(newer); //never shows a message twice
+                whisperListView.scrollTo(whisperListView.getItems().size() - 1);
             }
         });
     }
@@ -345,15 +482,14 @@ public class InteractController {
     }
 
     /**
-     * Flushes the message queue by appending messages to the global area.
+     * Shows the live statistics of the current call below the call area.
      * 
-     * This method is used to display messages in the global area on the GUI.
+     * @param stats One line of call statistics, or an empty string when no call is active
      */
-    private void flushMessageQueue() {
+    public void updateCallStats(String stats) {
         Platform.runLater(() -> {
-            if (globalArea != null) {
-                messageQueue.forEach(msg -> globalArea.appendText(msg + "\n")); //append each message to global area
-                messageQueue.clear();
+            if (callStatsLabel != null) {
+                callStatsLabel.setText(stats);
             }
         });
     }
@@ -365,7 +501,49 @@ public class InteractController {
      * checks if the global area is null and prints a message to the console.
      */
     public void initialize() {
-        System.out.println("InteractController initialized. globalArea null? " + (globalArea == null));
+        System.out.println("InteractController initialized. globalListView null? " + (globalListView == null));
+        if (globalListView != null) {
+            globalListView.setItems(globalMessages);
+            wrapCells(globalListView);
+            if (messagePump == null) {
+                messagePump = new AnimationTimer() {
+                    @Override
+                    public void handle(long now) {
+                        flushMessageQueue();
+                    }
+                };
+                messagePump.start();
+            }
+        }
+        if (whisperListView != null) {
+            wrapCells(whisperListView);
+            whisperListView.skinProperty().addListener((observable, oldSkin, skin) -> watchWhisperScroll());
+        }
+        if (vnListView != null) {
+            vnListView.setOnMouseClicked(event -> {
+                String selectedMessage = vnListView.getSelectionModel().getSelectedItem();
+                if (selectedMessage != null) { //play the selected voice note
+                    playAudioFile(voiceNotes.get(selectedMessage));
+                }
+            });
+        }
+    }
+
+    /**
+     * Makes a list view wrap long lines to its width instead of scrolling sideways.
+     * 
+     * @param listView The list view.
+     */
+    private static void wrapCells(ListView<String> listView) {
+        listView.setCellFactory(list -> new ListCell<String>() {
+            @Override
+            protected void updateItem(String item, boolean empty) {
+                super.updateItem(item, empty);
+                setText(empty ? null : item);
+                setWrapText(true);
+                setPrefWidth(0);
+            }
+        });
     }
 
     /**
@@ -403,6 +581,25 @@ public class InteractController {
         });
     }
 
+    /**
+     * Shows an invite to a conference, joining it if the user accepts.
+     * 
+     * @param inviter Username of the member who sent the invite.
+     * @param id      The conference.
+     */
+    public void showConferenceInvite(String inviter, int id) {
+        Platform.runLater(() -> {
+            Alert alert = new Alert(AlertType.CONFIRMATION);
+            alert.setContentText("Join conference with " + inviter + "?");
+            alert.setTitle("Conference Invite");
+            alert.setHeaderText(null);
+            alert.getButtonTypes().setAll(ButtonType.YES, ButtonType.NO);
+            if (alert.showAndWait().get() == ButtonType.YES) {
+                client.joinConference(id);
+            }
+        });
+    }
+
     /**
      * Handles the response to an incoming call.
      * 
@@ -422,7 +619,7 @@ public class InteractController {
      * @param whisperee Username of the whisperee.
      */
     public void addWhisperee(String whisperee) {
-        whisperMessages.put(whisperee, new ArrayList<String>());
+        whisperHistory.open(whisperee);
     }
 
     /**
@@ -431,7 +628,7 @@ public class InteractController {
      * @param whisperee Username of the whisperee.
      */
     public void removeWhisperee(String whisperee) {
-        whisperMessages.remove(whisperee); //remove user
+        whisperHistory.remove(whisperee); //remove user and their spilled history
     }
 
     /**
@@ -442,9 +639,7 @@ public class InteractController {
      * @param message   The message to be added
      */
     public void addWhisperMessage(String whisperee, String message) {
-        ArrayList<String> messages = whisperMessages.get(whisperee); //gets whispers of whisperee
-        messages.add(message);
-        // whisperMessages.put(whisperee, messages);
+        whisperHistory.add(whisperee, message); //older whispers spill to disk
     }
 
     /**
@@ -480,67 +675,45 @@ public class InteractController {
      * 
      * This method toggles the recording of a voice note. If the recording is
      * started, the method creates a new audio file and starts recording audio data
-     * from the microphone. If the recording is stopped, the method stops the
-     * recording and sends the voice note file to the selected user.
+     * from the microphone, uploading it to the server as it is captured. If the
+     * recording is stopped, the method stops the recording and has the server
+     * deliver the voice note to the selected user.
      */
     public void toggleRecording() {
         String selectedUser = userListView.getSelectionModel().getSelectedItem();
         if (!bRecord) { //if not recording
             // Start recording
             bRecord = true;
-            String voiceNoteFileName = username + "_" + System.currentTimeMillis() + ".wav";
+            String voiceNoteFileName = System.currentTimeMillis() + VoiceNoteCodec.EXTENSION; //the server puts the sender's name in front
             audioFile = new File("./voiceNotes/" + voiceNoteFileName); //filename format for voice note
             if (!audioFile.getParentFile().exists()) {
                 audioFile.getParentFile().mkdirs(); // Ensure directory exists, if not make one
             }
     
-            AudioFormat format = new AudioFormat(8000, 16, 2, true, true); //specific audio format
-            DataLine.Info info = new DataLine.Info(TargetDataLine.class, format); //append format information
+            AudioFormat format = VoiceNoteCodec.PCM; //8 kHz mono, compressed as it is written
     
             try {
                 if (line != null) {
                     line.close(); // Close previous line if open
                     line = null;
                 }
-                line = (TargetDataLine) AudioSystem.getLine(info);
-                line.open(format); //open audio line with format specified
-                line.start(); //start recording
-    
-                Thread recordingThread = new Thread(() -> { //threaded recording 
-                    try (AudioInputStream stream = new AudioInputStream(line)) { //try for audio input
-                        AudioSystem.write(stream, AudioFileFormat.Type.WAVE, audioFile); //write audio stream to audio file 
-                        // Optional GUI update or further handling here
-                    } catch (IOException e) {
-                        System.out.println("I/O exception: " + e.getMessage());
-                    } finally {
-                        if (line != null) { //finally, stop record
-                            line.stop();
-                            line.close();
-                            line = null;
-                        }
-                    }
-                });
-                recordingThread.start(); //start recording thread
+                line = AudioDevices.openSource(format); //open audio input with format specified and start recording
+                recorder = new VoiceNoteRecorder(line, audioFile, client); //records and uploads at once
+                recorder.start();
                 updateRecordButtonLabel("Stop Recording"); //update button on GUI to allow for stopping recording
-            } catch (LineUnavailableException e) { //if no audio line being recorded, allow for starting of recording
+            } catch (IOException e) { //if no audio input available, allow for starting of recording
                 e.printStackTrace();
                 updateRecordButtonLabel("Start Recording");
             }
         } else {
             // Stop recording
             bRecord = false;
-            if (line != null) {
-                line.stop();
-                line.close();
-                line = null;
-            }
+            line = null;
             updateRecordButtonLabel("Start Recording");
-            if (selectedUser != null && !selectedUser.isEmpty()) {
-                // Send the voice note file
-                client.sendVoiceNoteFile(audioFile, selectedUser);
-            } else {
-                // Handle case when no user is selected
-                // e.g., show error message to user
+            if (recorder != null) {
+                // Deliver the voice note, already uploaded but for its last moments, or discard it if no user is selected
+                recorder.stop(selectedUser != null && !selectedUser.isEmpty() ? selectedUser : null);
+                recorder = null;
             }
         }
     }
@@ -566,29 +739,25 @@ public class InteractController {
     public void addVoiceNoteToListView(File audioFile) { //add a voice note to the list
         System.out.println("Adding voice note to list view");
         Platform.runLater(() -> {
-            // Add entry to the ListView with an event handler for playback
-            vnListView.getItems().add(audioFile.getName()); //add audio file name
-            vnListView.setOnMouseClicked(event -> {
-                String selectedMessage = vnListView.getSelectionModel().getSelectedItem();
-                if (selectedMessage != null) { //play selected message if found
-                    playAudioFile(audioFile);
-                }
-            });
+            // Add an entry to the ListView; clicking it plays the file
+            if (voiceNotes.put(audioFile.getName(), audioFile) == null) {
+                vnListView.getItems().add(audioFile.getName()); //add audio file name
+            }
         });
     }
 
     /**
      * Plays an audio file.
      * 
-     * This method plays the provided audio file using the JavaFX MediaPlayer class.
+     * This method plays the provided audio file using the voice note player,
+     * which keeps recently played notes ready so they play again at once.
      * 
      * @param audioFile The audio file to be played.
      */
     private void playAudioFile(File audioFile) {
-        String mediaPath = audioFile.toURI().toString(); //get path to file as string
-        Media media = new Media(mediaPath); //media (audio) to play from path
-        MediaPlayer mediaPlayer = new MediaPlayer(media); //init media player with audio
-        mediaPlayer.play(); //play audio with media player
+        if (audioFile != null) {
+            voiceNotePlayer.play(audioFile);
+        }
     }
 
     /**
@@ -1,7 +1,6 @@
 package com.project4;
 
 import java.io.IOException;
-import java.net.ServerSocket;
 
 import javafx.application.Platform;
 import javafx.fxml.FXML;
@@ -52,7 +51,7 @@ public class InteractControllerServer {
     private void startServer() {
         try {
             int port = Integer.parseInt(serverPort.getText().trim()); // Get port number from TextArea
-            server = new Server(new ServerSocket(port), serverListView); //create Server object
+            server = new Server(SocketOptions.bind(port), serverListView); //create Server object
             new Thread(() -> {
                 try { //try start server socket; if not possible at the moment, display error
                     server.startServerSocket(userListViewServer, serverListView);
@@ -87,12 +86,12 @@ public class InteractControllerServer {
     /**
      * Stops the server.
      * 
-     * Calls the stop method in the Server class to properly close the ServerSocket and any other resources.
+     * Drains the server: stops accepting, tells clients to reconnect and saves who was online for the next start.
      * Logs a message to the server UI indicating that the server has stopped.
      */
     public void stopServer() {
         if (server != null) {
-            server.stop(); // Implement this method in the Server class to properly close the ServerSocket and any other resources.
+            new Thread(Server::drain, "drain").start(); // waits for clients to leave, so not on the UI thread
             logToUi("Server stopped.");
         }
     }
@@ -0,0 +1,126 @@
+package com.project4;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread-safe histogram of latencies in nanoseconds with roughly 3% precision.
+ * Values are counted in log-linear buckets (16 buckets per power of two, HDR
+ * style), so recording is a couple of shifts and one atomic increment and the
+ * memory used does not depend on the number of values recorded.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKETS = 16; //buckets per power of two
+	private static final int LINEAR = 2 * SUB_BUCKETS; //values below this get their own bucket
+	private static final int BUCKETS = LINEAR + (63 - 5) * SUB_BUCKETS; //enough for any positive long
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS); //values counted per bucket
+	private final LongAdder total = new LongAdder(); //number of values recorded
+	private final LongAdder sum = new LongAdder(); //sum of the values recorded
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0); //largest value recorded
+
+	/**
+	 * Records one value.
+	 *
+	 * @param nanos The latency in nanoseconds; negative values count as 0
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		counts.incrementAndGet(bucketOf(nanos));
+		total.increment();
+		sum.add(nanos);
+		max.accumulate(nanos);
+	}
+
+	/**
+	 * @param value A non-negative value
+	 * @return The bucket counting the value
+	 */
+	static int bucketOf(long value) {
+		if (value < LINEAR) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value); //at least 5
+		int shift = exponent - 4; //keeps the top 5 bits, 16..31
+		return LINEAR + (exponent - 5) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+	}
+
+	/**
+	 * @param bucket A bucket index
+	 * @return The largest value counted by the bucket
+	 */
+	static long highestValueIn(int bucket) {
+		if (bucket < LINEAR) {
+			return bucket;
+		}
+		int exponent = (bucket - LINEAR) / SUB_BUCKETS + 5;
+		int shift = exponent - 4;
+		long top = (bucket - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+		return ((top + 1) << shift) - 1;
+	}
+
+	/**
+	 * Gets the value below which the given fraction of the recorded values fall.
+	 *
+	 * @param percentile Percentile between 0 and 100
+	 * @return The percentile in nanoseconds, or 0 if nothing was recorded
+	 */
+	public long percentile(double percentile) {
+		long count = getCount();
+		if (count == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(highestValueIn(i), getMax());
+			}
+		}
+		return getMax();
+	}
+
+	/**
+	 * @return Number of values recorded
+	 */
+	public long getCount() {
+		return total.sum();
+	}
+
+	/**
+	 * @return Sum of the values recorded, in nanoseconds
+	 */
+	public long getSum() {
+		return sum.sum();
+	}
+
+	/**
+	 * @return Largest value recorded, in nanoseconds
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @return Mean of the values recorded, in nanoseconds
+	 */
+	public double getMean() {
+		long count = getCount();
+		return count == 0 ? 0 : (double) getSum() / count;
+	}
+
+	/**
+	 * Summarises the histogram in milliseconds.
+	 *
+	 * @return A line such as "n=10 p50=1.20ms p99=3.10ms p999=3.10ms max=3.10ms"
+	 */
+	public String summary() {
+		return String.format("n=%d p50=%.2fms p99=%.2fms p999=%.2fms max=%.2fms", getCount(),
+				percentile(50) / 1e6, percentile(99) / 1e6, percentile(99.9) / 1e6, getMax() / 1e6);
+	}
+}
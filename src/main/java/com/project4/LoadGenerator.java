@@ -0,0 +1,519 @@
+package com.project4;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Headless load generator that drives a running Server with scripted clients
+ * speaking the real "##" protocol. Clients log in at a configurable rate and
+ * then send global chat, whispers, call set-ups and voice notes at the
+ * configured rates, optionally disconnecting and reconnecting to cause join
+ * and leave storms. Every message carries its send time, so the receiving
+ * client can record end-to-end delivery latency.
+ * <p>
+ * Settings are read through {@link Config} (e.g. -Dload.clients=1000):
+ * load.host, load.port, load.clients, load.rampPerSecond, load.durationSeconds,
+ * load.chatPerSecond, load.whisperPerSecond, load.callsPerSecond,
+ * load.voiceNotesPerSecond, load.voiceNoteBytes, load.churnPerSecond,
+ * load.rooms, load.bulk and load.reportSeconds. Rates are totals across all
+ * clients. With load.rooms above 0, each client joins one of that many rooms
+ * and chat goes to the client's room instead of everyone. With load.bulk
+ * (default true), voice notes travel over {@link BulkServer} connections
+ * instead of the control connection.
+ */
+public class LoadGenerator {
+
+	private static final String MARK = "LG "; //prefix of timestamped message bodies
+
+	private final String host = Config.get("load.host", "localhost");
+	private final int port = Config.getInt("load.port", 5000);
+	private final int clientCount = Config.getInt("load.clients", 100);
+	private final int rampPerSecond = Config.getInt("load.rampPerSecond", 50);
+	private final int durationSeconds = Config.getInt("load.durationSeconds", 60);
+	private final double chatPerSecond = Config.getDouble("load.chatPerSecond", 10);
+	private final double whisperPerSecond = Config.getDouble("load.whisperPerSecond", 50);
+	private final double callsPerSecond = Config.getDouble("load.callsPerSecond", 5);
+	private final double voiceNotesPerSecond = Config.getDouble("load.voiceNotesPerSecond", 1);
+	private final int voiceNoteBytes = Config.getInt("load.voiceNoteBytes", 64000);
+	private final double churnPerSecond = Config.getDouble("load.churnPerSecond", 0);
+	private final int roomCount = Config.getInt("load.rooms", 0); //0 sends chat to everyone
+	private final boolean useBulk = Config.getBoolean("load.bulk", true); //voice notes over separate connections
+	private final int reportSeconds = Config.getInt("load.reportSeconds", 5);
+
+	private final AtomicReferenceArray<SimClient> slots = new AtomicReferenceArray<>(clientCount); //logged-in client per slot
+	private final ExecutorService workers = Executors.newFixedThreadPool(16); //logins and scripted actions
+	private final AtomicInteger generation = new AtomicInteger(); //makes reconnect usernames unique
+	private volatile boolean running = true;
+
+	private final LatencyHistogram connectSetup = new LatencyHistogram(); //connect until ##USERNAMEOK
+	private final LatencyHistogram chatLatency = new LatencyHistogram(); //chat send until each delivery
+	private final LatencyHistogram whisperLatency = new LatencyHistogram(); //whisper send until delivery
+	private final LatencyHistogram callSetup = new LatencyHistogram(); //##CALLING until ##ACCEPTED
+	private final LatencyHistogram voiceNoteLatency = new LatencyHistogram(); //upload start until fully received
+	private final Map<String, LongAdder> sent = new ConcurrentHashMap<>(); //messages sent per type
+	private final Map<String, LongAdder> received = new ConcurrentHashMap<>(); //messages received per type
+	private final LongAdder errors = new LongAdder(); //failed logins and dropped connections
+
+	/**
+	 * Runs the load test with the configured settings.
+	 *
+	 * @param args Unused; use -D settings
+	 */
+	public static void main(String[] args) {
+		new LoadGenerator().run();
+		System.exit(0);
+	}
+
+	/**
+	 * Ramps up the clients, drives traffic for the configured duration and prints the results.
+	 */
+	public void run() {
+		System.out.println("Load test: " + clientCount + " clients against " + host + ":" + port + " for "
+				+ durationSeconds + "s");
+		long start = System.nanoTime();
+		Thread ramp = new Thread(this::rampUp);
+		ramp.start();
+		Thread driver = new Thread(this::drive);
+		driver.start();
+
+		long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+		long nextReport = start + TimeUnit.SECONDS.toNanos(reportSeconds);
+		long lastDeliveries = 0;
+		while (System.nanoTime() < end) {
+			sleep(Math.min(end, nextReport) - System.nanoTime());
+			if (System.nanoTime() >= nextReport) {
+				long deliveries = total(received);
+				System.out.printf("t=%ds online=%d sent=%d delivered=%d (%.0f msg/s) errors=%d%n",
+						TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start), online(), total(sent), deliveries,
+						(deliveries - lastDeliveries) / (double) reportSeconds, errors.sum());
+				lastDeliveries = deliveries;
+				nextReport += TimeUnit.SECONDS.toNanos(reportSeconds);
+			}
+		}
+		running = false;
+		sleep(TimeUnit.SECONDS.toNanos(2)); //let in-flight messages arrive
+		report(System.nanoTime() - start);
+		for (int i = 0; i < clientCount; i++) {
+			SimClient client = slots.getAndSet(i, null);
+			if (client != null) {
+				client.disconnect();
+			}
+		}
+		workers.shutdownNow();
+	}
+
+	/**
+	 * Logs in one client per slot at the configured ramp rate.
+	 */
+	private void rampUp() {
+		long interval = TimeUnit.SECONDS.toNanos(1) / Math.max(1, rampPerSecond);
+		long next = System.nanoTime();
+		for (int i = 0; i < clientCount && running; i++) {
+			int slot = i;
+			workers.execute(() -> login(slot));
+			next += interval;
+			sleep(next - System.nanoTime());
+		}
+	}
+
+	/**
+	 * Connects a new client into the given slot.
+	 *
+	 * @param slot The slot to fill
+	 */
+	private void login(int slot) {
+		String username = "lg" + slot + "_" + generation.incrementAndGet();
+		long start = System.nanoTime();
+		try {
+			SimClient client = new SimClient(username);
+			client.send(username);
+			if (client.awaitLogin(10_000)) {
+				if (useBulk) {
+					client.send("##BULK");
+				}
+				if (roomCount > 0) {
+					client.room = "room" + (slot % roomCount);
+					client.send("##JOIN," + client.room);
+				}
+				connectSetup.record(System.nanoTime() - start);
+				slots.set(slot, client);
+			} else {
+				errors.increment();
+				client.disconnect();
+			}
+		} catch (IOException e) {
+			errors.increment();
+		}
+	}
+
+	/**
+	 * Issues scripted actions at the configured rates until the test ends.
+	 * Runs every 10 ms and carries fractional actions over to the next tick.
+	 */
+	private void drive() {
+		double chat = 0, whisper = 0, call = 0, voiceNote = 0, churn = 0;
+		while (running) {
+			sleep(TimeUnit.MILLISECONDS.toNanos(10));
+			chat += chatPerSecond / 100;
+			whisper += whisperPerSecond / 100;
+			call += callsPerSecond / 100;
+			voiceNote += voiceNotesPerSecond / 100;
+			churn += churnPerSecond / 100;
+			for (; chat >= 1; chat--) {
+				act("chat", (from, to) -> from.send(from.room != null
+						? "##ROOM," + from.room + "," + MARK + System.nanoTime()
+						: MARK + System.nanoTime()));
+			}
+			for (; whisper >= 1; whisper--) {
+				act("whisper", (from, to) -> from.send("##WHISPER," + to.username + "," + MARK + System.nanoTime()));
+			}
+			for (; call >= 1; call--) {
+				act("call", (from, to) -> {
+					from.pendingCalls.put(to.username, System.nanoTime());
+					from.send("##CALLING," + to.username + ",4000");
+				});
+			}
+			for (; voiceNote >= 1; voiceNote--) {
+				act("voicenote", (from, to) -> from.sendVoiceNote(to.username));
+			}
+			for (; churn >= 1; churn--) {
+				int slot = ThreadLocalRandom.current().nextInt(clientCount);
+				SimClient client = slots.getAndSet(slot, null);
+				if (client != null) { //leave and come back under a new name
+					workers.execute(() -> {
+						client.disconnect();
+						login(slot);
+					});
+				}
+			}
+		}
+	}
+
+	/**
+	 * An action one simulated client performs towards another.
+	 */
+	private interface Action {
+		void perform(SimClient from, SimClient to) throws IOException;
+	}
+
+	/**
+	 * Runs an action between two random logged-in clients on the worker pool.
+	 *
+	 * @param type   Message type, for the counters
+	 * @param action The action to perform
+	 */
+	private void act(String type, Action action) {
+		SimClient from = randomClient();
+		SimClient to = randomClient();
+		if (from == null || to == null || from == to) {
+			return;
+		}
+		workers.execute(() -> {
+			try {
+				action.perform(from, to);
+				count(sent, type);
+			} catch (IOException e) {
+				errors.increment();
+			}
+		});
+	}
+
+	/**
+	 * @return A random logged-in client, or null if the chosen slot is empty
+	 */
+	private SimClient randomClient() {
+		return slots.get(ThreadLocalRandom.current().nextInt(clientCount));
+	}
+
+	/**
+	 * @return Number of logged-in clients
+	 */
+	private int online() {
+		int online = 0;
+		for (int i = 0; i < clientCount; i++) {
+			if (slots.get(i) != null) {
+				online++;
+			}
+		}
+		return online;
+	}
+
+	private static void count(Map<String, LongAdder> counters, String type) {
+		counters.computeIfAbsent(type, key -> new LongAdder()).increment();
+	}
+
+	private static long total(Map<String, LongAdder> counters) {
+		long total = 0;
+		for (LongAdder counter : counters.values()) {
+			total += counter.sum();
+		}
+		return total;
+	}
+
+	private static void sleep(long nanos) {
+		if (nanos > 0) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(nanos);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Prints throughput per message type and the latency percentiles.
+	 *
+	 * @param elapsed Length of the test in nanoseconds
+	 */
+	private void report(long elapsed) {
+		double seconds = elapsed / 1e9;
+		System.out.println("==== Load test results (" + String.format("%.1f", seconds) + "s) ====");
+		System.out.println("errors: " + errors.sum());
+		for (String type : new String[] { "chat", "whisper", "call", "voicenote" }) {
+			long out = sent.getOrDefault(type, new LongAdder()).sum();
+			long in = received.getOrDefault(type, new LongAdder()).sum();
+			System.out.printf("%-10s sent=%d (%.1f/s) delivered=%d (%.1f/s)%n", type, out, out / seconds, in,
+					in / seconds);
+		}
+		System.out.println("connection setup:   " + connectSetup.summary());
+		System.out.println("chat delivery:      " + chatLatency.summary());
+		System.out.println("whisper delivery:   " + whisperLatency.summary());
+		System.out.println("call setup:         " + callSetup.summary());
+		System.out.println("voice note delivery: " + voiceNoteLatency.summary());
+	}
+
+	/**
+	 * @param body Message body starting with the timestamp mark
+	 * @return Nanoseconds since the body was sent, or -1 if it carries no timestamp
+	 */
+	private static long age(String body) {
+		if (!body.startsWith(MARK)) {
+			return -1;
+		}
+		try {
+			return System.nanoTime() - Long.parseLong(body.substring(MARK.length()).trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * One scripted client connection with its own reader thread.
+	 */
+	private class SimClient {
+		private final String username;
+		private final Socket socket;
+		private final InputStream in;
+		private final OutputStream out;
+		private final Map<String, Long> pendingCalls = new ConcurrentHashMap<>(); //callee to call start time
+		private volatile boolean loggedIn = false;
+		private volatile String room = null; //room chat is sent to, if rooms are used
+		private volatile BulkClient bulk = null; //voice note transfers, once the server has issued a token
+		private final Object loginLock = new Object();
+		private int numbered = 0; //numbered lines received, acknowledged every 32
+
+		SimClient(String username) throws IOException {
+			this.username = username;
+			this.socket = new Socket(host, port);
+			this.in = new BufferedInputStream(socket.getInputStream());
+			this.out = new BufferedOutputStream(socket.getOutputStream());
+			Thread reader = new Thread(this::read, "reader-" + username);
+			reader.setDaemon(true);
+			reader.start();
+		}
+
+		/**
+		 * Sends one protocol line.
+		 */
+		synchronized void send(String line) throws IOException {
+			out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+			out.flush();
+		}
+
+		/**
+		 * Uploads a voice note over a bulk connection, or with the older
+		 * "##VOICENOTE" command without one: the header line, then the bytes.
+		 */
+		void sendVoiceNote(String recipient) throws IOException {
+			String name = "lg_" + username + "_" + System.nanoTime() + ".wav"; //the send time travels in the name
+			BulkClient transfers = bulk;
+			if (transfers != null) {
+				BulkClient.Upload upload = transfers.upload(name);
+				upload.write(0, new byte[voiceNoteBytes], voiceNoteBytes);
+				upload.finish(voiceNoteBytes, recipient).exceptionally(e -> {
+					errors.increment();
+					return null;
+				});
+				return;
+			}
+			synchronized (this) {
+				send("##VOICENOTE," + recipient + "," + name + "," + voiceNoteBytes);
+				out.write(new byte[voiceNoteBytes]);
+				out.flush();
+			}
+		}
+
+		boolean awaitLogin(long timeoutMillis) {
+			long deadline = System.currentTimeMillis() + timeoutMillis;
+			synchronized (loginLock) {
+				while (!loggedIn && socket.isConnected() && !socket.isClosed()) {
+					long wait = deadline - System.currentTimeMillis();
+					if (wait <= 0) {
+						return false;
+					}
+					try {
+						loginLock.wait(wait);
+					} catch (InterruptedException e) {
+						return false;
+					}
+				}
+			}
+			return loggedIn;
+		}
+
+		void disconnect() {
+			try {
+				send("##DISCONNECT");
+			} catch (IOException e) {
+				// already gone
+			}
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// ignore
+			}
+			if (bulk != null) {
+				bulk.close();
+			}
+		}
+
+		/**
+		 * Reads and scores server messages until the connection closes.
+		 */
+		private void read() {
+			try {
+				String msg;
+				while ((msg = readLine()) != null) {
+					handle(msg);
+				}
+			} catch (IOException e) {
+				if (running && !socket.isClosed()) {
+					errors.increment();
+				}
+			} finally {
+				synchronized (loginLock) {
+					loginLock.notifyAll();
+				}
+			}
+		}
+
+		private void handle(String msg) throws IOException {
+			if (msg.startsWith("##SEQ,")) { //whispers and room messages are numbered for replay
+				String[] parts = msg.split(",", 3);
+				if (++numbered % 32 == 0) {
+					send("##ACK," + parts[1]);
+				}
+				msg = parts[2];
+			}
+			if (msg.equals("##USERNAMEOK")) {
+				synchronized (loginLock) {
+					loggedIn = true;
+					loginLock.notifyAll();
+				}
+			} else if (msg.startsWith("##RECONNECT")) {
+				disconnect(); //leave promptly so the server can drain
+			} else if (msg.equals("##PING")) {
+				send("##PONG");
+			} else if (msg.startsWith("##WHISPERFROM")) {
+				String[] parts = msg.split(",", 3);
+				if (parts.length == 3 && age(parts[2]) >= 0) {
+					whisperLatency.record(age(parts[2]));
+					count(received, "whisper");
+				}
+			} else if (msg.startsWith("##CALLING")) {
+				String[] parts = msg.split(",");
+				send("##ACCEPTED," + parts[1] + ",4000"); //always pick up
+			} else if (msg.startsWith("##ACCEPTED")) {
+				String callee = msg.split(",")[1];
+				Long start = pendingCalls.remove(callee);
+				if (start != null) {
+					callSetup.record(System.nanoTime() - start);
+					count(received, "call");
+					send("##ENDCALL," + callee);
+				}
+			} else if (msg.startsWith("##BULK,")) {
+				String[] parts = msg.split(",");
+				bulk = new BulkClient(host, Integer.parseInt(parts[1]), parts[2]);
+			} else if (msg.startsWith("##VOICENOTEREADY,")) {
+				String name = msg.split(",")[1];
+				BulkClient transfers = bulk;
+				if (transfers != null) {
+					transfers.download(name, OutputStream.nullOutputStream()).whenComplete((size, e) -> {
+						if (e == null) {
+							noteReceived(name);
+						} else {
+							errors.increment();
+						}
+					});
+				}
+			} else if (msg.startsWith("##RECEIVEVOICENOTE")) {
+				String[] parts = msg.split(",", 4);
+				long size = Long.parseLong(parts[3].trim());
+				in.skipNBytes(size); //the file follows the header on the same stream
+				noteReceived(parts[2]);
+			} else if (msg.startsWith("##CHAT,") || msg.startsWith("##ROOMCHAT,")) {
+				String[] parts = msg.split(",", 4); //##CHAT,<seq>,<sender>,<text> or ##ROOMCHAT,<room>,<sender>,<text>
+				if (parts.length == 4 && !parts[2].equals(username) && age(parts[3]) >= 0) {
+					chatLatency.record(age(parts[3]));
+					count(received, "chat");
+				}
+			}
+		}
+
+		/**
+		 * Scores a received voice note by the send time in its name.
+		 */
+		private void noteReceived(String fileName) {
+			String[] name = fileName.split("_");
+			try {
+				long sentAt = Long.parseLong(name[name.length - 1].replace(".wav", ""));
+				voiceNoteLatency.record(System.nanoTime() - sentAt);
+				count(received, "voicenote");
+			} catch (NumberFormatException e) {
+				// not one of ours
+			}
+		}
+
+		/**
+		 * Reads one line straight from the byte stream, so raw voice note data can follow it.
+		 *
+		 * @return The line, or null at the end of the stream
+		 */
+		private String readLine() throws IOException {
+			ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+			int b;
+			while ((b = in.read()) != -1) {
+				if (b == '\n') {
+					return line.toString(StandardCharsets.UTF_8).replace("\r", "");
+				}
+				line.write(b);
+			}
+			return line.size() > 0 ? line.toString(StandardCharsets.UTF_8) : null;
+		}
+	}
+}
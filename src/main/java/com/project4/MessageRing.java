@@ -0,0 +1,98 @@
+package com.project4;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+import javafx.collections.ObservableListBase;
+
+/**
+ * Fixed-capacity list of chat lines backing a ListView.
+ * Lines are kept in a ring, so adding a batch and evicting the oldest lines
+ * costs only the lines involved, never a shift of the whole list, and the
+ * view is told about each batch with a single change event.
+ * Must only be used on the FX application thread.
+ */
+public class MessageRing extends ObservableListBase<String> {
+
+	private final String[] ring;
+	private int start = 0; //ring index of the first line
+	private int size = 0;
+
+	/**
+	 * Creates an empty ring.
+	 *
+	 * @param capacity Maximum number of lines kept
+	 */
+	public MessageRing(int capacity) {
+		this.ring = new String[Math.max(1, capacity)];
+	}
+
+	@Override
+	public String get(int index) {
+		Objects.checkIndex(index, size);
+		return ring[(start + index) % ring.length];
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Appends lines, evicting the oldest ones when the ring is full.
+	 *
+	 * @param lines The lines, oldest first
+	 */
+	public void appendAll(List<String> lines) {
+		if (lines.isEmpty()) {
+			return;
+		}
+		List<String> kept = lines.size() > ring.length ? lines.subList(lines.size() - ring.length, lines.size()) : lines;
+		beginChange();
+		int evict = Math.max(0, size + kept.size() - ring.length);
+		if (evict > 0) {
+			nextRemove(0, new ArrayList<>(subList(0, evict)));
+			for (int i = 0; i < evict; i++) {
+				ring[(start + i) % ring.length] = null;
+			}
+			start = (start + evict) % ring.length;
+			size -= evict;
+		}
+		int from = size;
+		for (String line : kept) {
+			ring[(start + size) % ring.length] = line;
+			size++;
+		}
+		nextAdd(from, size);
+		endChange();
+	}
+
+	/**
+	 * Inserts older lines at the front, evicting the newest ones when the ring is full.
+	 *
+	 * @param lines The lines, oldest first
+	 */
+	public void prependAll(List<String> lines) {
+		if (lines.isEmpty()) {
+			return;
+		}
+		List<String> kept = lines.size() > ring.length ? lines.subList(lines.size() - ring.length, lines.size()) : lines;
+		beginChange();
+		int evict = Math.max(0, size + kept.size() - ring.length);
+		if (evict > 0) {
+			nextRemove(size - evict, new ArrayList<>(subList(size - evict, size)));
+			for (int i = size - evict; i < size; i++) {
+				ring[(start + i) % ring.length] = null;
+			}
+			size -= evict;
+		}
+		start = Math.floorMod(start - kept.size(), ring.length);
+		for (int i = 0; i < kept.size(); i++) {
+			ring[(start + i) % ring.length] = kept.get(i);
+		}
+		size += kept.size();
+		nextAdd(0, kept.size());
+		endChange();
+	}
+}
@@ -0,0 +1,130 @@
+package com.project4;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Process-wide registry of server metrics.
+ * Counters are striped (LongAdder) so hot paths on many threads do not contend,
+ * gauges are sampled only when the metrics are read, and latencies go into
+ * {@link LatencyHistogram}s. Names follow the Prometheus text format and may
+ * carry labels, e.g. {@code voip_messages_total{command="WHISPER"}}.
+ * The metrics are published by {@link MetricsExporter}.
+ */
+public class Metrics {
+
+	private static final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+	private static final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+	private static final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+	private Metrics() {
+	}
+
+	/**
+	 * Gets or creates a counter. Keep the returned counter in a field on hot paths.
+	 *
+	 * @param name Metric name, optionally with labels
+	 * @return The counter
+	 */
+	public static LongAdder counter(String name) {
+		LongAdder counter = counters.get(name);
+		return counter != null ? counter : counters.computeIfAbsent(name, key -> new LongAdder());
+	}
+
+	/**
+	 * Registers a gauge, replacing any gauge with the same name.
+	 *
+	 * @param name  Metric name, optionally with labels
+	 * @param value Supplies the current value when the metrics are read
+	 */
+	public static void gauge(String name, LongSupplier value) {
+		gauges.put(name, value);
+	}
+
+	/**
+	 * Gets or creates a latency histogram.
+	 *
+	 * @param name Metric name, optionally with labels
+	 * @return The histogram
+	 */
+	public static LatencyHistogram histogram(String name) {
+		LatencyHistogram histogram = histograms.get(name);
+		return histogram != null ? histogram : histograms.computeIfAbsent(name, key -> new LatencyHistogram());
+	}
+
+	/**
+	 * Takes a snapshot of every metric as plain numbers. Histograms are expanded
+	 * into count, sum and p50/p99/p999 entries, in seconds.
+	 *
+	 * @return Metric names mapped to their current values, sorted by name
+	 */
+	public static Map<String, Number> snapshot() {
+		Map<String, Number> values = new TreeMap<>();
+		counters.forEach((name, counter) -> values.put(name, counter.sum()));
+		gauges.forEach((name, gauge) -> values.put(name, gauge.getAsLong()));
+		histograms.forEach((name, histogram) -> {
+			values.put(withSuffix(name, "_count"), histogram.getCount());
+			values.put(withSuffix(name, "_sum"), histogram.getSum() / 1e9);
+			values.put(withLabel(name, "quantile", "0.5"), histogram.percentile(50) / 1e9);
+			values.put(withLabel(name, "quantile", "0.99"), histogram.percentile(99) / 1e9);
+			values.put(withLabel(name, "quantile", "0.999"), histogram.percentile(99.9) / 1e9);
+		});
+		return values;
+	}
+
+	/**
+	 * Renders all metrics in the Prometheus plain-text exposition format.
+	 *
+	 * @return A TYPE line per metric family followed by its "name value" lines
+	 */
+	public static String render() {
+		Map<String, String> types = new TreeMap<>(); //family name to metric type
+		Map<String, Map<String, Number>> families = new TreeMap<>(); //family name to its samples
+		counters.forEach((name, counter) -> {
+			types.put(baseName(name), "counter");
+			families.computeIfAbsent(baseName(name), key -> new TreeMap<>()).put(name, counter.sum());
+		});
+		gauges.forEach((name, gauge) -> {
+			types.put(baseName(name), "gauge");
+			families.computeIfAbsent(baseName(name), key -> new TreeMap<>()).put(name, gauge.getAsLong());
+		});
+		histograms.forEach((name, histogram) -> {
+			types.put(baseName(name), "summary");
+			Map<String, Number> samples = families.computeIfAbsent(baseName(name), key -> new TreeMap<>());
+			samples.put(withLabel(name, "quantile", "0.5"), histogram.percentile(50) / 1e9);
+			samples.put(withLabel(name, "quantile", "0.99"), histogram.percentile(99) / 1e9);
+			samples.put(withLabel(name, "quantile", "0.999"), histogram.percentile(99.9) / 1e9);
+			samples.put(withSuffix(name, "_sum"), histogram.getSum() / 1e9);
+			samples.put(withSuffix(name, "_count"), histogram.getCount());
+		});
+		StringBuilder text = new StringBuilder();
+		families.forEach((family, samples) -> {
+			text.append("# TYPE ").append(family).append(' ').append(types.get(family)).append('\n');
+			samples.forEach((name, value) -> text.append(name).append(' ').append(value).append('\n'));
+		});
+		return text.toString();
+	}
+
+	/**
+	 * @param name Metric name, optionally with labels
+	 * @return The name without labels
+	 */
+	static String baseName(String name) {
+		int brace = name.indexOf('{');
+		return brace < 0 ? name : name.substring(0, brace);
+	}
+
+	private static String withSuffix(String name, String suffix) {
+		int brace = name.indexOf('{');
+		return brace < 0 ? name + suffix : name.substring(0, brace) + suffix + name.substring(brace);
+	}
+
+	private static String withLabel(String name, String label, String value) {
+		String pair = label + "=\"" + value + "\"";
+		int brace = name.indexOf('{');
+		return brace < 0 ? name + "{" + pair + "}" : name.substring(0, name.length() - 1) + "," + pair + "}";
+	}
+}
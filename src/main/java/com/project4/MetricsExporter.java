@@ -0,0 +1,144 @@
+package com.project4;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Publishes {@link Metrics} over a plain-text HTTP scrape endpoint and as a JMX MBean.
+ * <ul>
+ * <li>{@code voip.metrics.port}: local port serving {@code /metrics}
+ * (default 9400, 0 disables the endpoint)</li>
+ * <li>{@code voip.metrics.jmx}: register the {@code com.project4:type=Metrics}
+ * MBean (default true)</li>
+ * </ul>
+ */
+public class MetricsExporter {
+
+	private static HttpServer httpServer; //the scrape endpoint, if started
+	private static boolean started = false;
+
+	private MetricsExporter() {
+	}
+
+	/**
+	 * Starts the configured exporters. Does nothing if they are already running.
+	 */
+	public static synchronized void start() {
+		if (started) {
+			return;
+		}
+		started = true;
+		int port = Config.getInt("voip.metrics.port", 9400);
+		if (port > 0) {
+			try {
+				httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+				httpServer.createContext("/metrics", exchange -> {
+					byte[] body = Metrics.render().getBytes(StandardCharsets.UTF_8);
+					exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+					exchange.sendResponseHeaders(200, body.length);
+					try (OutputStream out = exchange.getResponseBody()) {
+						out.write(body);
+					}
+				});
+				httpServer.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+					Thread thread = new Thread(runnable, "metrics-http");
+					thread.setDaemon(true);
+					return thread;
+				}));
+				httpServer.start();
+				System.out.println("Metrics available at http://localhost:" + port + "/metrics");
+			} catch (IOException e) {
+				System.out.println("Could not start metrics endpoint: " + e.getMessage());
+			}
+		}
+		if (Config.getBoolean("voip.metrics.jmx", true)) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(),
+						new ObjectName("com.project4:type=Metrics"));
+			} catch (Exception e) {
+				System.out.println("Could not register metrics MBean: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Stops the scrape endpoint.
+	 */
+	public static synchronized void stop() {
+		if (httpServer != null) {
+			httpServer.stop(0);
+			httpServer = null;
+		}
+	}
+
+	/**
+	 * Read-only MBean with one attribute per metric value.
+	 */
+	private static class MetricsMBean implements DynamicMBean {
+
+		@Override
+		public Object getAttribute(String attribute) throws AttributeNotFoundException {
+			Number value = Metrics.snapshot().get(attribute);
+			if (value == null) {
+				throw new AttributeNotFoundException(attribute);
+			}
+			return value.doubleValue();
+		}
+
+		@Override
+		public AttributeList getAttributes(String[] attributes) {
+			Map<String, Number> snapshot = Metrics.snapshot();
+			AttributeList list = new AttributeList();
+			for (String attribute : attributes) {
+				Number value = snapshot.get(attribute);
+				if (value != null) {
+					list.add(new Attribute(attribute, value.doubleValue()));
+				}
+			}
+			return list;
+		}
+
+		@Override
+		public MBeanInfo getMBeanInfo() {
+			List<MBeanAttributeInfo> attributes = new ArrayList<>();
+			for (String name : Metrics.snapshot().keySet()) {
+				attributes.add(new MBeanAttributeInfo(name, "double", name, true, false, false));
+			}
+			return new MBeanInfo(getClass().getName(), "VoIP server metrics",
+					attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+		}
+
+		@Override
+		public void setAttribute(Attribute attribute) {
+			throw new UnsupportedOperationException("Metrics are read-only");
+		}
+
+		@Override
+		public AttributeList setAttributes(AttributeList attributes) {
+			return new AttributeList();
+		}
+
+		@Override
+		public Object invoke(String actionName, Object[] params, String[] signature) {
+			throw new UnsupportedOperationException("Metrics have no operations");
+		}
+	}
+}
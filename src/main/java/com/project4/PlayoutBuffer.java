@@ -0,0 +1,129 @@
+package com.project4;
+
+/**
+ * Short jitter buffer holding the PCM received from a single sender.
+ * Received bytes are appended to a ring; once enough audio has been buffered
+ * playback starts and whole frames are taken off the front. If the sender
+ * outruns playback the oldest audio is dropped so delay stays bounded.
+ */
+public class PlayoutBuffer {
+
+	private final byte[] ring; //circular storage for buffered PCM
+	private final int frameBytes; //size of one output frame in bytes
+	private final int startBytes; //bytes that must be buffered before playback (re)starts
+	private int head = 0; //read position in ring
+	private int size = 0; //number of buffered bytes
+	private boolean playing = false; //true once the prebuffer target was reached
+	private volatile long lastHeard; //time of the last received packet, in nanoseconds
+	private long underruns = 0; //times playback ran dry
+	private long droppedBytes = 0; //bytes discarded because the buffer was full
+
+	/**
+	 * Creates a playout buffer.
+	 *
+	 * @param frameBytes  Size of one frame in bytes
+	 * @param startFrames Frames to buffer before playback starts
+	 * @param maxFrames   Maximum frames held before the oldest audio is dropped
+	 */
+	public PlayoutBuffer(int frameBytes, int startFrames, int maxFrames) {
+		if (frameBytes <= 0 || frameBytes % 2 != 0) {
+			throw new IllegalArgumentException("Frame size must be a positive, even number of bytes");
+		}
+		if (startFrames < 1 || maxFrames < startFrames) {
+			throw new IllegalArgumentException("Invalid playout buffer depth");
+		}
+		this.frameBytes = frameBytes;
+		this.startBytes = startFrames * frameBytes;
+		this.ring = new byte[maxFrames * frameBytes];
+		this.lastHeard = System.nanoTime();
+	}
+
+	/**
+	 * Appends received audio, dropping the oldest audio if the buffer overflows.
+	 *
+	 * @param data   Buffer holding the audio
+	 * @param offset Offset of the first byte
+	 * @param length Number of bytes to append
+	 */
+	public synchronized void write(byte[] data, int offset, int length) {
+		lastHeard = System.nanoTime();
+		if (length > ring.length) { //only the newest audio fits
+			offset += length - ring.length;
+			droppedBytes += length - ring.length;
+			length = ring.length;
+		}
+		int overflow = size + length - ring.length;
+		if (overflow > 0) { //make room by discarding the oldest bytes
+			overflow += overflow & 1; //keep samples aligned
+			head = (head + overflow) % ring.length;
+			size -= overflow;
+			droppedBytes += overflow;
+		}
+		int tail = (head + size) % ring.length;
+		int first = Math.min(length, ring.length - tail);
+		System.arraycopy(data, offset, ring, tail, first);
+		System.arraycopy(data, offset + first, ring, 0, length - first);
+		size += length;
+	}
+
+	/**
+	 * Adds the next frame to the mix accumulator.
+	 *
+	 * @param mix Accumulator with one entry per sample of the output frame
+	 * @return true if a frame was mixed in, false if the buffer is prebuffering or ran dry
+	 */
+	public synchronized boolean mixInto(int[] mix) {
+		if (!playing) {
+			if (size < startBytes) {
+				return false; //still filling up
+			}
+			playing = true;
+		}
+		if (size < frameBytes) {
+			playing = false; //ran dry; rebuffer before playing again
+			underruns++;
+			return false;
+		}
+		int pos = head;
+		for (int i = 0; i < mix.length; i++) {
+			int lo = ring[pos] & 0xff;
+			int hi = ring[pos + 1]; //16-bit little-endian signed samples
+			mix[i] += (hi << 8) | lo;
+			pos += 2;
+			if (pos == ring.length) {
+				pos = 0;
+			}
+		}
+		head = pos;
+		size -= frameBytes;
+		return true;
+	}
+
+	/**
+	 * @return Number of whole frames currently buffered
+	 */
+	public synchronized int depthFrames() {
+		return size / frameBytes;
+	}
+
+	/**
+	 * @return Times playback ran out of audio from this sender
+	 */
+	public synchronized long getUnderruns() {
+		return underruns;
+	}
+
+	/**
+	 * @return Bytes discarded to keep the delay bounded
+	 */
+	public synchronized long getDroppedBytes() {
+		return droppedBytes;
+	}
+
+	/**
+	 * @return Time the last packet from this sender arrived, from System.nanoTime()
+	 */
+	public long getLastHeard() {
+		return lastHeard;
+	}
+}
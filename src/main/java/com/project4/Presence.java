@@ -0,0 +1,171 @@
+package com.project4;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Tracks who is online and tells clients about changes in batches.
+ * <p>
+ * A client that logs in gets one snapshot line,
+ * {@code ##PRESENCE,<version>,<user>,<user>,...}. Joins and leaves are then
+ * collected and sent to everyone together every {@code voip.presence.batchMillis}
+ * (default 200) as one line, {@code ##PRESENCEDELTA,<version>,+<user>,-<user>,...}.
+ * A user who joins and leaves within the same batch is not announced at all,
+ * so a reconnect storm costs one line per client per batch instead of one
+ * line per client per event.
+ * <p>
+ * Rooms use the same scheme with their own line prefixes. All trackers share
+ * one timer thread.
+ */
+public class Presence {
+
+	private final Set<String> announced = new LinkedHashSet<>(); //users as last told to clients
+	private final Set<String> online = new LinkedHashSet<>(); //users online now
+	private final Set<String> changed = new LinkedHashSet<>(); //users whose state changed since the last delta
+	private long version = 0; //number of deltas sent
+	private String snapshot = null; //cached ##PRESENCE line for the announced users
+	private final Consumer<String> sender; //writes one line to every client
+	private final String snapshotPrefix; //start of the snapshot line, followed by the version
+	private final String deltaPrefix; //start of the delta line, followed by the version
+	private ScheduledFuture<?> task; //sends the deltas, scheduled on first use
+	private boolean closed = false;
+	private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "presence");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private final long batchMillis = Config.getLong("voip.presence.batchMillis", 200);
+	private final LongAdder deltasSent = Metrics.counter("voip_presence_deltas_total");
+	private final LongAdder changesSent = Metrics.counter("voip_presence_changes_total");
+
+	/**
+	 * Creates a presence tracker.
+	 *
+	 * @param sender Writes one line to every client that receives deltas
+	 */
+	public Presence(Consumer<String> sender) {
+		this("##PRESENCE,", "##PRESENCEDELTA,", sender);
+	}
+
+	/**
+	 * Creates a presence tracker with its own line prefixes.
+	 *
+	 * @param snapshotPrefix Start of the snapshot line, e.g. "##ROOMPRESENCE,lobby,"
+	 * @param deltaPrefix    Start of the delta line, e.g. "##ROOMPRESENCEDELTA,lobby,"
+	 * @param sender         Writes one line to every client that receives deltas
+	 */
+	public Presence(String snapshotPrefix, String deltaPrefix, Consumer<String> sender) {
+		this.snapshotPrefix = snapshotPrefix;
+		this.deltaPrefix = deltaPrefix;
+		this.sender = sender;
+	}
+
+	/**
+	 * Records a user coming online and returns the snapshot to send them. The
+	 * snapshot matches what everyone else has been told, so the next delta
+	 * brings the new user up to date together with everyone else. Callers that
+	 * register the user for deltas should do so while holding this object's lock,
+	 * so no delta is sent between the snapshot and the registration.
+	 *
+	 * @param username The user
+	 * @return The ##PRESENCE line for the user
+	 */
+	public synchronized String join(String username) {
+		online.add(username);
+		changed.add(username);
+		startTimer();
+		if (snapshot == null) { //built once per delta, not once per login
+			StringBuilder line = new StringBuilder(snapshotPrefix).append(version);
+			for (String user : announced) {
+				line.append(',').append(user);
+			}
+			snapshot = line.toString();
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Records users as online and already announced, without sending a delta.
+	 * Used after a restart for the users expected back, so their return costs
+	 * no presence traffic; those that do not return are removed with
+	 * {@link #leave(String)}.
+	 *
+	 * @param users The users
+	 */
+	public synchronized void preload(Collection<String> users) {
+		online.addAll(users);
+		announced.addAll(users);
+		snapshot = null;
+		startTimer();
+	}
+
+	/**
+	 * Records a user going offline.
+	 *
+	 * @param username The user
+	 */
+	public synchronized void leave(String username) {
+		if (online.remove(username)) {
+			changed.add(username);
+		}
+	}
+
+	/**
+	 * Sends the changes collected since the last delta, if any.
+	 */
+	public synchronized void flush() {
+		StringBuilder delta = new StringBuilder();
+		int count = 0;
+		for (String user : changed) {
+			boolean isOnline = online.contains(user);
+			if (isOnline != announced.contains(user)) {
+				delta.append(',').append(isOnline ? '+' : '-').append(user);
+				if (isOnline) {
+					announced.add(user);
+				} else {
+					announced.remove(user);
+				}
+				count++;
+			}
+		}
+		changed.clear();
+		if (count == 0) {
+			return;
+		}
+		version++;
+		snapshot = null;
+		sender.accept(deltaPrefix + version + delta);
+		deltasSent.increment();
+		changesSent.add(count);
+	}
+
+	/**
+	 * @return Number of users online
+	 */
+	public synchronized int size() {
+		return online.size();
+	}
+
+	/**
+	 * Stops sending deltas. Used when a room is removed.
+	 */
+	public synchronized void close() {
+		closed = true;
+		if (task != null) {
+			task.cancel(false);
+		}
+	}
+
+	private void startTimer() {
+		if (task == null && !closed) {
+			task = timer.scheduleWithFixedDelay(this::flush, batchMillis, batchMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package com.project4;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-connection token buckets, one per command.
+ * <p>
+ * Each bucket allows {@code voip.limit.<COMMAND>.rate} messages per second
+ * with bursts of up to {@code voip.limit.<COMMAND>.burst}. Plain chat is
+ * limited under the command name CHAT. Commands without a limit, and every
+ * command when {@code voip.limit.enabled} is false, are always allowed.
+ * VOICENOTE is not limited by default: its file data follows the header on
+ * the same stream, so dropping the header would corrupt the stream.
+ * <p>
+ * A bucket is one atomic timestamp (the time at which it will be full
+ * again), so checking a message is a single compare-and-set with no locking.
+ */
+public class RateLimiter {
+
+	private static final boolean ENABLED = Config.getBoolean("voip.limit.enabled", true);
+	private static final Map<String, double[]> LIMITS = new HashMap<>(); //command to {rate, burst}
+
+	static {
+		defaultLimit("CHAT", 10, 20);
+		defaultLimit("WHISPER", 10, 20);
+		defaultLimit("CALLING", 1, 5);
+		defaultLimit("ACCEPTED", 5, 10);
+		defaultLimit("DECLINED", 5, 10);
+		defaultLimit("ENDCALL", 5, 10);
+		defaultLimit("UNAVAILABLE", 5, 10);
+		defaultLimit("HISTORYBEFORE", 5, 10);
+		defaultLimit("HISTORYAT", 5, 10);
+		defaultLimit("JOIN", 5, 10);
+		defaultLimit("LEAVE", 5, 10);
+		defaultLimit("ROOM", 10, 20);
+		defaultLimit("VOICENOTE", 0, 0);
+		defaultLimit("VOICENOTECHUNK", 20, 40);
+		defaultLimit("VOICENOTEEND", 5, 10);
+		defaultLimit("BULK", 1, 5);
+		defaultLimit("CONFCREATE", 1, 5);
+		defaultLimit("CONFINVITE", 5, 10);
+		defaultLimit("CONFJOIN", 5, 10);
+		defaultLimit("CONFLEAVE", 5, 10);
+	}
+
+	private final Map<String, Bucket> buckets = new HashMap<>(); //filled in the constructor, read-only afterwards
+
+	/**
+	 * One token bucket, kept as the theoretical time at which it is full again
+	 * (the generic cell rate algorithm).
+	 */
+	private static class Bucket {
+		final long interval; //nanoseconds per token
+		final long tolerance; //how far the full time may run ahead of now
+		final AtomicLong fullAt = new AtomicLong(Long.MIN_VALUE);
+		volatile boolean notified = false; //the client has been told it is throttled
+
+		Bucket(double rate, double burst) {
+			interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+			tolerance = (long) (interval * Math.max(0, burst - 1));
+		}
+
+		long tryAcquire(long now) {
+			while (true) {
+				long full = fullAt.get();
+				long start = Math.max(full, now);
+				if (start - now > tolerance) {
+					return start - now - tolerance; //time until a token is free
+				}
+				if (fullAt.compareAndSet(full, start + interval)) {
+					return 0;
+				}
+			}
+		}
+	}
+
+	private static void defaultLimit(String command, double rate, double burst) {
+		double configuredRate = Config.getDouble("voip.limit." + command + ".rate", rate);
+		double configuredBurst = Config.getDouble("voip.limit." + command + ".burst", burst);
+		if (configuredRate > 0) {
+			LIMITS.put(command, new double[] { configuredRate, Math.max(1, configuredBurst) });
+		}
+	}
+
+	/**
+	 * Creates the buckets for one connection, all full.
+	 */
+	public RateLimiter() {
+		if (ENABLED) {
+			LIMITS.forEach((command, limit) -> buckets.put(command, new Bucket(limit[0], limit[1])));
+		}
+	}
+
+	/**
+	 * Takes a token for a message.
+	 *
+	 * @param command The message's command, e.g. CHAT or WHISPER
+	 * @return 0 if the message may be handled, otherwise nanoseconds until it would be
+	 */
+	public long tryAcquire(String command) {
+		Bucket bucket = buckets.get(command);
+		if (bucket == null) {
+			return 0;
+		}
+		long wait = bucket.tryAcquire(System.nanoTime());
+		if (wait == 0) {
+			bucket.notified = false;
+		}
+		return wait;
+	}
+
+	/**
+	 * Records that the client is being told about throttling, so it is told
+	 * once per burst of rejected messages rather than once per message.
+	 *
+	 * @param command The throttled command
+	 * @return Whether the client still needs to be told
+	 */
+	public boolean noticeDue(String command) {
+		Bucket bucket = buckets.get(command);
+		if (bucket == null || bucket.notified) {
+			return false;
+		}
+		bucket.notified = true;
+		return true;
+	}
+}
@@ -0,0 +1,111 @@
+package com.project4;
+
+/**
+ * Converts a stream of 16-bit samples between sample rates in an integer
+ * ratio, such as 8, 16 and 48 kHz, with a polyphase FIR filter.
+ * <p>
+ * The rate changes by up / down, the rates divided by their greatest common
+ * divisor. Conceptually the input is padded with up - 1 zeros per sample,
+ * low-pass filtered below the lower Nyquist frequency and every down-th
+ * sample kept; the polyphase form computes only the kept samples, each as one
+ * dot product of input samples with one of up sets of coefficients, which
+ * {@link Dsp} runs on vector kernels when available. The filter spans
+ * {@value #TAPS} samples at the lower of the two rates.
+ * <p>
+ * The filter carries its history from one call to the next, so a stream can
+ * be converted a frame at a time. It delays the signal by half its span.
+ * Not thread-safe.
+ */
+public class Resampler {
+
+	static final int TAPS = 32; //filter span, in samples at the lower rate; a multiple of the vector lanes
+
+	private final int up;
+	private final int down;
+	private final int taps; //coefficients per phase, input samples per output sample
+	private final float[][] phases; //coefficients of each phase, reversed to run forwards over the input
+	private final Dsp.Kernels kernels;
+	private float[] input; //history, then the samples of the current call
+	private long next = 0; //position of the next output sample in the padded input, from the current call's first sample
+
+	/**
+	 * @param fromRate Input sample rate
+	 * @param toRate   Output sample rate
+	 */
+	public Resampler(int fromRate, int toRate) {
+		this(fromRate, toRate, Dsp.KERNELS);
+	}
+
+	Resampler(int fromRate, int toRate, Dsp.Kernels kernels) {
+		if (fromRate <= 0 || toRate <= 0) {
+			throw new IllegalArgumentException("Sample rates must be positive: " + fromRate + " to " + toRate);
+		}
+		int divisor = gcd(fromRate, toRate);
+		this.up = toRate / divisor;
+		this.down = fromRate / divisor;
+		this.kernels = kernels;
+		this.taps = TAPS * ((down + up - 1) / up);
+		this.phases = design(up, down, taps);
+		this.input = new float[taps - 1];
+	}
+
+	/**
+	 * Windowed-sinc low-pass filter, split into its phases.
+	 */
+	private static float[][] design(int up, int down, int taps) {
+		int length = up * taps;
+		double cutoff = 0.45 / Math.max(up, down); //as a fraction of the padded rate; a little under Nyquist
+		double middle = (length - 1) / 2.0;
+		float[][] phases = new float[up][taps];
+		for (int n = 0; n < length; n++) {
+			double t = n - middle;
+			double sinc = t == 0 ? 1 : Math.sin(2 * Math.PI * cutoff * t) / (2 * Math.PI * cutoff * t);
+			double window = 0.42 - 0.5 * Math.cos(2 * Math.PI * n / (length - 1))
+					+ 0.08 * Math.cos(4 * Math.PI * n / (length - 1)); //Blackman
+			double h = 2 * cutoff * up * sinc * window; //times up, for the energy lost to the padding
+			phases[n % up][taps - 1 - n / up] = (float) h;
+		}
+		return phases;
+	}
+
+	private static int gcd(int a, int b) {
+		return b == 0 ? a : gcd(b, a % b);
+	}
+
+	/**
+	 * @param inputSamples Samples passed to one call of {@link #process}
+	 * @return The most samples that call can produce
+	 */
+	public int maxOutput(int inputSamples) {
+		return (int) (((long) inputSamples * up) / down) + 1;
+	}
+
+	/**
+	 * Converts the next part of the stream.
+	 *
+	 * @param in     Input samples
+	 * @param count  Number of input samples
+	 * @param out    Array receiving the output, at least {@link #maxOutput(int)} long
+	 * @return Number of output samples
+	 */
+	public int process(short[] in, int count, short[] out) {
+		if (input.length < taps - 1 + count) {
+			float[] larger = new float[taps - 1 + count];
+			System.arraycopy(input, 0, larger, 0, taps - 1);
+			input = larger;
+		}
+		for (int i = 0; i < count; i++) {
+			input[taps - 1 + i] = in[i];
+		}
+		int produced = 0;
+		long end = (long) count * up;
+		for (; next < end; next += down) {
+			int sample = (int) (next / up); //the newest input sample the output depends on
+			float value = kernels.dot(phases[(int) (next % up)], 0, input, sample, taps);
+			out[produced++] = (short) Dsp.saturate(Math.round(value));
+		}
+		next -= end;
+		System.arraycopy(input, count, input, 0, taps - 1); //the newest samples are the next call's history
+		return produced;
+	}
+}
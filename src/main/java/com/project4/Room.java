@@ -0,0 +1,279 @@
+package com.project4;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * A named chat room. Messages sent to a room only go to its members, so
+ * their cost grows with the room rather than with everyone online.
+ * <p>
+ * Clients join with {@code ##JOIN,<room>} and get the room's members as
+ * {@code ##ROOMPRESENCE,<room>,<version>,<user>,...}; changes follow in batches
+ * as {@code ##ROOMPRESENCEDELTA,<room>,<version>,+<user>,-<user>,...}.
+ * {@code ##ROOM,<room>,<text>} reaches the members as
+ * {@code ##ROOMCHAT,<room>,<sender>,<text>}, and {@code ##LEAVE,<room>} is
+ * answered with {@code ##LEFT,<room>}. A room exists while it has members.
+ * <p>
+ * In a {@link Cluster} a room also tracks its members on other nodes, so
+ * messages are forwarded only to nodes with members in the room.
+ */
+public class Room {
+
+	private static final int MAX_NAME_LENGTH = 64;
+	private static final Map<String, Room> rooms = new ConcurrentHashMap<>(); //room index by name
+	private static final LongAdder roomMessages = Metrics.counter("voip_room_messages_total");
+	private static final LongAdder roomRecipients = Metrics.counter("voip_room_recipients_total");
+	private static final LatencyHistogram fanOutTime = Metrics.histogram("voip_room_fanout_seconds");
+
+	static {
+		Metrics.gauge("voip_rooms", () -> rooms.size());
+	}
+
+	private final String name;
+	private final Set<ClientManager> members = new CopyOnWriteArraySet<>(); //members on this node
+	private final Map<String, Set<String>> remoteMembers = new HashMap<>(); //node id to its members, guarded by this
+	private final Presence presence; //members on every node, announced to the local ones
+	private boolean removed = false; //guarded by this; set once the room is out of the index
+
+	private Room(String name) {
+		this.name = name;
+		this.presence = new Presence("##ROOMPRESENCE," + name + ",", "##ROOMPRESENCEDELTA," + name + ",", this::sendToMembers);
+	}
+
+	/**
+	 * @param name A proposed room name
+	 * @return Whether it can be used as a room name
+	 */
+	public static boolean isValidName(String name) {
+		return name != null && !name.isBlank() && name.length() <= MAX_NAME_LENGTH && name.indexOf(',') < 0;
+	}
+
+	/**
+	 * Adds a client to a room, creating the room if needed, and sends the client
+	 * the room's members. Joining a room twice just resends the members.
+	 *
+	 * @param name   The room
+	 * @param client The client
+	 */
+	static void join(String name, ClientManager client) {
+		while (true) {
+			Room room = rooms.computeIfAbsent(name, Room::new);
+			synchronized (room) {
+				if (room.removed) {
+					continue; //emptied while we looked it up; create it again
+				}
+				synchronized (room.presence) { //no delta between the snapshot and becoming a member
+					client.send(room.presence.join(client.getUsername()));
+					room.members.add(client);
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Removes a client from a room.
+	 *
+	 * @param name   The room
+	 * @param client The client
+	 * @return Whether the client was a member
+	 */
+	static boolean leave(String name, ClientManager client) {
+		Room room = rooms.get(name);
+		if (room == null) {
+			return false;
+		}
+		synchronized (room) {
+			if (!room.members.remove(client)) {
+				return false;
+			}
+			room.presence.leave(client.getUsername());
+			room.removeIfEmpty();
+		}
+		return true;
+	}
+
+	/**
+	 * Moves a membership from a client's old connection to the connection that
+	 * resumed its session. The user stays a member throughout, so the others
+	 * are told nothing; the new connection gets the room's members.
+	 *
+	 * @param name The room
+	 * @param from The old connection
+	 * @param to   The new connection
+	 */
+	static void handOver(String name, ClientManager from, ClientManager to) {
+		Room room = rooms.get(name);
+		if (room == null) {
+			join(name, to);
+			return;
+		}
+		synchronized (room) {
+			if (room.removed || !room.members.remove(from)) {
+				join(name, to); //the room was emptied meanwhile
+				return;
+			}
+			synchronized (room.presence) {
+				to.send(room.presence.join(to.getUsername()));
+				room.members.add(to);
+			}
+		}
+	}
+
+	/**
+	 * Records a member on another node.
+	 *
+	 * @param name     The room
+	 * @param node     The member's node
+	 * @param username The member
+	 */
+	static void remoteJoined(String name, String node, String username) {
+		while (true) {
+			Room room = rooms.computeIfAbsent(name, Room::new);
+			synchronized (room) {
+				if (room.removed) {
+					continue;
+				}
+				room.remoteMembers.computeIfAbsent(node, n -> new HashSet<>()).add(username);
+				room.presence.join(username);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Records a member on another node leaving.
+	 *
+	 * @param name     The room
+	 * @param node     The member's node
+	 * @param username The member
+	 */
+	static void remoteLeft(String name, String node, String username) {
+		Room room = rooms.get(name);
+		if (room == null) {
+			return;
+		}
+		synchronized (room) {
+			Set<String> users = room.remoteMembers.get(node);
+			if (users == null || !users.remove(username)) {
+				return;
+			}
+			if (users.isEmpty()) {
+				room.remoteMembers.remove(node);
+			}
+			room.presence.leave(username);
+			room.removeIfEmpty();
+		}
+	}
+
+	/**
+	 * Forgets every member on a node that is no longer reachable.
+	 *
+	 * @param node The node
+	 */
+	static void nodeLost(String node) {
+		for (Room room : rooms.values()) {
+			synchronized (room) {
+				Set<String> users = room.remoteMembers.remove(node);
+				if (users != null) {
+					users.forEach(room.presence::leave);
+					room.removeIfEmpty();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param name The room
+	 * @return Ids of the other nodes with members in the room
+	 */
+	static Set<String> remoteNodes(String name) {
+		Room room = rooms.get(name);
+		if (room == null) {
+			return Set.of();
+		}
+		synchronized (room) {
+			return Set.copyOf(room.remoteMembers.keySet());
+		}
+	}
+
+	/**
+	 * Calls an action for every member on this node of every room.
+	 *
+	 * @param action Called with the room and the member's username
+	 */
+	static void forEachLocalMember(BiConsumer<String, String> action) {
+		for (Room room : rooms.values()) {
+			for (ClientManager member : room.members) {
+				action.accept(room.name, member.getUsername());
+			}
+		}
+	}
+
+	/**
+	 * @param name   The room
+	 * @param client A client
+	 * @return Whether the client is a member of the room
+	 */
+	static boolean isMember(String name, ClientManager client) {
+		Room room = rooms.get(name);
+		return room != null && room.members.contains(client);
+	}
+
+	/**
+	 * Sends a message to the room's members on this node.
+	 *
+	 * @param name   The room
+	 * @param sender Username of the sender, who may be on another node
+	 * @param text   The message
+	 */
+	static void chat(String name, String sender, String text) {
+		Room room = rooms.get(name);
+		if (room == null) {
+			return;
+		}
+		long start = System.nanoTime();
+		String line = "##ROOMCHAT," + name + "," + sender + "," + text;
+		byte[] encoded = ControlWriter.encode(line); //encoded once for every member
+		int sent = 0;
+		for (ClientManager member : room.members) {
+			if (member.sendReplayable(line, encoded)) { //numbered, so a member that reconnects gets it
+				sent++;
+			}
+		}
+		roomRecipients.add(sent);
+		roomMessages.increment();
+		fanOutTime.record(System.nanoTime() - start);
+	}
+
+	/**
+	 * Writes a line to the room's members on this node.
+	 *
+	 * @param line The line
+	 * @return Number of members written to
+	 */
+	private int sendToMembers(String line) {
+		byte[] encoded = ControlWriter.encode(line); //encoded once for every member
+		int sent = 0;
+		for (ClientManager member : members) {
+			if (member.sendEncoded(encoded, false)) {
+				sent++;
+			}
+		}
+		return sent;
+	}
+
+	private void removeIfEmpty() {
+		if (members.isEmpty() && remoteMembers.isEmpty()) {
+			removed = true;
+			rooms.remove(name, this);
+			presence.close();
+		}
+	}
+}
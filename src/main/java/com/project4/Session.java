@@ -0,0 +1,201 @@
+package com.project4;
+
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A logged-in user's session, which outlives a dropped connection so the
+ * client can resume it.
+ * <p>
+ * On login the client gets {@code ##SESSION,<token>}. Messages a client must
+ * not miss (whispers and room messages) are numbered per session and sent as
+ * {@code ##SEQ,<n>,<line>}; the client confirms them with {@code ##ACK,<n>}
+ * and the server keeps the unconfirmed ones, up to
+ * {@code voip.session.replayMessages} (default 1000). When a connection drops
+ * without {@code ##DISCONNECT}, the session is detached but the user stays
+ * online, in its rooms and in possession of its name, for
+ * {@code voip.session.lingerMillis} (default 30000), while messages for it are
+ * kept. A client that reconnects with {@code ##RESUME,<token>,<last seq>,<last chat seq>}
+ * in place of its username gets the session back, with everything after
+ * {@code <last seq>} replayed.
+ */
+public class Session {
+
+	static final int REPLAY_LIMIT = Config.getInt("voip.session.replayMessages", 1000);
+	private static final SecureRandom random = new SecureRandom();
+	private static final Map<String, Session> byToken = new ConcurrentHashMap<>();
+	private static final Map<String, Session> detached = new ConcurrentHashMap<>(); //by username
+	private static final LongAdder replayed = Metrics.counter("voip_replayed_lines_total");
+
+	static {
+		Metrics.gauge("voip_sessions", () -> byToken.size());
+		Metrics.gauge("voip_sessions_detached", () -> detached.size());
+	}
+
+	final String token;
+	final String username;
+	private final ArrayDeque<Object[]> unacked = new ArrayDeque<>(); //{seq, line} not yet confirmed, oldest first
+	private long lastSeq = 0; //number of the last numbered line
+	private ClientManager owner; //latest connection of the session
+	private boolean attached = true; //whether the owner's connection is open
+	private int detachments = 0; //times detached, to tell a stale expiry from a current one
+	private boolean closed = false;
+
+	private Session(String token, String username) {
+		this.token = token;
+		this.username = username;
+	}
+
+	/**
+	 * Starts a session for a user who just logged in.
+	 *
+	 * @param username The user
+	 * @param owner    The user's connection
+	 * @return The session
+	 */
+	static Session open(String username, ClientManager owner) {
+		byte[] bytes = new byte[16];
+		random.nextBytes(bytes);
+		Session session = new Session(HexFormat.of().formatHex(bytes), username);
+		session.owner = owner;
+		byToken.put(session.token, session);
+		return session;
+	}
+
+	/**
+	 * @param token A resumption token
+	 * @return The session, or null if it has ended
+	 */
+	static Session find(String token) {
+		return byToken.get(token);
+	}
+
+	/**
+	 * @param username A user
+	 * @return The user's detached session, or null if it is not waiting to be resumed
+	 */
+	static Session detachedFor(String username) {
+		return detached.get(username);
+	}
+
+	/**
+	 * @param line A protocol line
+	 * @return Whether the line is numbered and replayed after a reconnect
+	 */
+	static boolean isReplayable(String line) {
+		return line.startsWith("##WHISPERFROM,") || line.startsWith("##WHISPERTO,") || line.startsWith("##ROOMCHAT,");
+	}
+
+	/**
+	 * Numbers a line, keeps it until confirmed and sends it if the session is attached.
+	 *
+	 * @param line    The line
+	 * @param encoded The line encoded with {@link ControlWriter#encode(String)}
+	 * @return false if the session has ended
+	 */
+	synchronized boolean send(String line, byte[] encoded) {
+		if (closed) {
+			return false;
+		}
+		long seq = ++lastSeq;
+		unacked.addLast(new Object[] { seq, line });
+		if (unacked.size() > REPLAY_LIMIT) {
+			unacked.removeFirst(); //the client has been gone too long to get everything
+		}
+		if (attached) {
+			owner.sendEncoded(("##SEQ," + seq + ",").getBytes(), encoded, false);
+		}
+		return true;
+	}
+
+	/**
+	 * Drops the lines the client has confirmed.
+	 *
+	 * @param seq Number of the last line the client has
+	 */
+	synchronized void ack(long seq) {
+		while (!unacked.isEmpty() && (long) unacked.peekFirst()[0] <= seq) {
+			unacked.removeFirst();
+		}
+	}
+
+	/**
+	 * Attaches the session to a new connection and replays what the client
+	 * missed. Numbered lines sent meanwhile follow the replay.
+	 *
+	 * @param newOwner The new connection
+	 * @param seq      Number of the last line the client has
+	 * @param greeting Lines sent to the new connection before the replay
+	 * @return The previous connection, to be retired, or null if the session has ended
+	 */
+	synchronized ClientManager attach(ClientManager newOwner, long seq, String... greeting) {
+		if (closed) {
+			return null;
+		}
+		ack(seq);
+		for (String line : greeting) {
+			newOwner.send(line);
+		}
+		for (Object[] entry : unacked) {
+			newOwner.send("##SEQ," + entry[0] + "," + entry[1]);
+		}
+		replayed.add(unacked.size());
+		ClientManager previous = owner;
+		owner = newOwner;
+		attached = true;
+		detached.remove(username, this);
+		return previous;
+	}
+
+	/**
+	 * Detaches the session from a dropped connection.
+	 *
+	 * @param from The connection that dropped
+	 * @return Detachment number to pass to {@link #expire(int)}, or -1 if the session was not attached to it
+	 */
+	synchronized int detach(ClientManager from) {
+		if (owner != from || !attached || closed) {
+			return -1;
+		}
+		attached = false;
+		detached.put(username, this);
+		return ++detachments;
+	}
+
+	/**
+	 * Ends a detached session that was not resumed in time.
+	 *
+	 * @param detachment Number returned by {@link #detach(ClientManager)}
+	 * @return Whether the session ended; false if it was resumed meanwhile
+	 */
+	synchronized boolean expire(int detachment) {
+		if (attached || closed || detachment != detachments) {
+			return false;
+		}
+		close();
+		return true;
+	}
+
+	/**
+	 * @param connection A connection
+	 * @return Whether it is the session's latest connection
+	 */
+	synchronized boolean isOwner(ClientManager connection) {
+		return owner == connection;
+	}
+
+	/**
+	 * Ends the session; its token can no longer be used.
+	 */
+	synchronized void close() {
+		closed = true;
+		attached = false;
+		byToken.remove(token, this);
+		detached.remove(username, this);
+		unacked.clear();
+	}
+}
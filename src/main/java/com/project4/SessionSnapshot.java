@@ -0,0 +1,89 @@
+package com.project4;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Who was online when the server last shut down, so a restarted server can
+ * expect them back.
+ * <p>
+ * The file ({@code voip.snapshot.file}, default {@code sessions.snapshot} in
+ * the chat log directory) holds the time it was written followed by one line
+ * per user, {@code <username>,<room>,<room>,...}. It is written to a temporary
+ * file and moved into place, so a crash while writing leaves the previous
+ * snapshot intact. Snapshots older than {@code voip.snapshot.maxAgeMillis}
+ * (default 300000) are ignored.
+ */
+public class SessionSnapshot {
+
+	private static final File FILE = new File(Config.get("voip.snapshot.file",
+			Config.get("voip.chatlog.dir", "chatLog") + File.separator + "sessions.snapshot"));
+	private static final long MAX_AGE = Config.getLong("voip.snapshot.maxAgeMillis", 300000);
+
+	private SessionSnapshot() {
+	}
+
+	/**
+	 * Writes the snapshot.
+	 *
+	 * @param sessions Usernames online, each with the rooms it is in
+	 * @throws IOException If the file cannot be written
+	 */
+	public static void write(Map<String, List<String>> sessions) throws IOException {
+		File parent = FILE.getAbsoluteFile().getParentFile();
+		parent.mkdirs();
+		File temp = new File(parent, FILE.getName() + ".tmp");
+		try (BufferedWriter out = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8)) {
+			out.write(Long.toString(System.currentTimeMillis()));
+			out.newLine();
+			for (Map.Entry<String, List<String>> session : sessions.entrySet()) {
+				out.write(session.getKey());
+				for (String room : session.getValue()) {
+					out.write(',');
+					out.write(room);
+				}
+				out.newLine();
+			}
+		}
+		Files.move(temp.toPath(), FILE.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Reads and deletes the snapshot, so it is used by one start only.
+	 *
+	 * @return Usernames with their rooms, empty if there is no recent snapshot
+	 */
+	public static Map<String, List<String>> take() {
+		Map<String, List<String>> sessions = new LinkedHashMap<>();
+		if (!FILE.exists()) {
+			return sessions;
+		}
+		try (BufferedReader in = Files.newBufferedReader(FILE.toPath(), StandardCharsets.UTF_8)) {
+			String written = in.readLine();
+			if (written != null && System.currentTimeMillis() - Long.parseLong(written.trim()) <= MAX_AGE) {
+				String line;
+				while ((line = in.readLine()) != null) {
+					if (!line.isEmpty()) {
+						String[] parts = line.split(",");
+						sessions.put(parts[0], new ArrayList<>(Arrays.asList(parts).subList(1, parts.length)));
+					}
+				}
+			}
+		} catch (IOException | NumberFormatException e) {
+			System.out.println("Ignoring unreadable session snapshot: " + e.getMessage());
+			sessions.clear();
+		}
+		FILE.delete();
+		return sessions;
+	}
+}
@@ -0,0 +1,57 @@
+package com.project4;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Paces a byte stream, or several streams sharing one budget, to a steady
+ * rate, so bulk transfers leave room on the link for latency-sensitive
+ * traffic.
+ * <p>
+ * Like a {@link RateLimiter} bucket it is one timestamp, the time at which
+ * the budget is free again, but instead of refusing a write it makes the
+ * writer wait. Writes up to {@value #BURST_MILLIS} ms of budget ahead go
+ * through at once.
+ */
+public class Shaper {
+
+	static final long BURST_MILLIS = 50; //budget a writer may use ahead of time
+
+	private final long nanosPerKilobyte; //0 when unshaped
+	private final long tolerance;
+	private long freeAt = Long.MIN_VALUE; //System.nanoTime() at which all budget used so far is paid for
+
+	/**
+	 * @param bytesPerSecond Rate to pace to, or 0 for no limit
+	 */
+	public Shaper(long bytesPerSecond) {
+		nanosPerKilobyte = bytesPerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) * 1024 / bytesPerSecond : 0;
+		tolerance = TimeUnit.MILLISECONDS.toNanos(BURST_MILLIS);
+	}
+
+	/**
+	 * Waits until the budget allows writing some bytes, and uses it.
+	 *
+	 * @param bytes Bytes about to be written
+	 * @throws InterruptedIOException If interrupted while waiting
+	 */
+	public void acquire(int bytes) throws InterruptedIOException {
+		if (nanosPerKilobyte == 0) {
+			return;
+		}
+		long wait;
+		synchronized (this) {
+			long now = System.nanoTime();
+			freeAt = Math.max(freeAt, now - tolerance) + bytes * nanosPerKilobyte / 1024;
+			wait = freeAt - now;
+		}
+		if (wait > 0) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(wait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while shaping");
+			}
+		}
+	}
+}
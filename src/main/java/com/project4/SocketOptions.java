@@ -0,0 +1,62 @@
+package com.project4;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+
+/**
+ * Socket tuning for the control channel, read through {@link Config}.
+ * <ul>
+ * <li>{@code voip.net.tcpNoDelay}: disable Nagle's algorithm (default true;
+ * {@link ControlWriter} already coalesces small writes)</li>
+ * <li>{@code voip.net.keepAlive}: enable TCP keep-alive (default true)</li>
+ * <li>{@code voip.net.sendBuffer}, {@code voip.net.receiveBuffer}: socket buffer
+ * sizes in bytes (default 0, the operating system's choice)</li>
+ * <li>{@code voip.net.backlog}: pending connections the server socket queues
+ * (default 50)</li>
+ * </ul>
+ */
+public class SocketOptions {
+
+	private SocketOptions() {
+	}
+
+	/**
+	 * Applies the configured options to a connected socket.
+	 *
+	 * @param socket The socket
+	 * @throws SocketException If an option cannot be set
+	 */
+	public static void apply(Socket socket) throws SocketException {
+		socket.setTcpNoDelay(Config.getBoolean("voip.net.tcpNoDelay", true));
+		socket.setKeepAlive(Config.getBoolean("voip.net.keepAlive", true));
+		int sendBuffer = Config.getInt("voip.net.sendBuffer", 0);
+		if (sendBuffer > 0) {
+			socket.setSendBufferSize(sendBuffer);
+		}
+		int receiveBuffer = Config.getInt("voip.net.receiveBuffer", 0);
+		if (receiveBuffer > 0) {
+			socket.setReceiveBufferSize(receiveBuffer);
+		}
+	}
+
+	/**
+	 * Opens a server socket with the configured backlog and receive buffer size,
+	 * which accepted sockets inherit.
+	 *
+	 * @param port The port to listen on
+	 * @return The bound server socket
+	 * @throws IOException If the port cannot be bound
+	 */
+	public static ServerSocket bind(int port) throws IOException {
+		ServerSocket serverSocket = new ServerSocket();
+		int receiveBuffer = Config.getInt("voip.net.receiveBuffer", 0);
+		if (receiveBuffer > 0) {
+			serverSocket.setReceiveBufferSize(receiveBuffer); //must be set before binding to take effect
+		}
+		serverSocket.bind(new InetSocketAddress(port), Config.getInt("voip.net.backlog", 50));
+		return serverSocket;
+	}
+}
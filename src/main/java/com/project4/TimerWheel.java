@@ -0,0 +1,112 @@
+package com.project4;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timer wheel for large numbers of coarse timeouts, such as one
+ * liveness check per connection.
+ * <p>
+ * Scheduling appends to the slot the deadline falls into, and one thread
+ * visits a slot per tick, running the tasks that are due and keeping the
+ * ones a whole turn or more away. A task added to a slot the thread passed
+ * while it was being added is moved to the next one, so it never waits a
+ * whole turn. Both are constant time, unlike a priority queue, at the cost
+ * of firing up to one tick late. Tasks cannot be cancelled; a task whose
+ * work is no longer needed should simply return.
+ */
+public class TimerWheel {
+
+	private final long tickNanos;
+	private final Queue<Task>[] slots;
+	private final long start = System.nanoTime();
+	private final AtomicInteger size = new AtomicInteger(); //tasks scheduled and not yet run
+	private volatile long currentTick = 0; //tick the wheel's thread is on, set before it visits the slot
+
+	private static class Task {
+		final long deadline;
+		final Runnable action;
+
+		Task(long deadline, Runnable action) {
+			this.deadline = deadline;
+			this.action = action;
+		}
+	}
+
+	/**
+	 * Creates a wheel and starts its thread.
+	 *
+	 * @param name       Name of the thread and prefix of the task gauge
+	 * @param tickMillis Resolution of the wheel
+	 * @param slotCount  Slots in one turn of the wheel; a power of two
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public TimerWheel(String name, long tickMillis, int slotCount) {
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+		this.slots = new Queue[slotCount];
+		for (int i = 0; i < slotCount; i++) {
+			slots[i] = new ConcurrentLinkedQueue<>();
+		}
+		Metrics.gauge("voip_" + name + "_tasks", size::get);
+		Thread thread = new Thread(this::run, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Runs a task on the wheel's thread after a delay. Tasks should be short.
+	 *
+	 * @param delayNanos Delay in nanoseconds
+	 * @param action     The task
+	 */
+	public void schedule(long delayNanos, Runnable action) {
+		long deadline = System.nanoTime() + Math.max(0, delayNanos);
+		size.incrementAndGet();
+		Task task = new Task(deadline, action);
+		long tick = (deadline - start + tickNanos - 1) / tickNanos;
+		while (true) {
+			tick = Math.max(tick, currentTick + 1); //never a slot already passed
+			Queue<Task> slot = slots[(int) (tick & (slots.length - 1))];
+			slot.add(task);
+			if (currentTick < tick || !slot.remove(task)) {
+				return; //the wheel has yet to visit the slot, or took the task while visiting it
+			}
+			//the wheel visited the slot between reading currentTick and the add; try the next one
+		}
+	}
+
+	private void run() {
+		long tick = 0;
+		List<Task> later = new ArrayList<>();
+		while (true) {
+			long tickAt = start + tick * tickNanos;
+			long now = System.nanoTime();
+			if (tickAt > now) {
+				LockSupport.parkNanos(tickAt - now);
+				continue;
+			}
+			currentTick = tick;
+			Queue<Task> slot = slots[(int) (tick & (slots.length - 1))];
+			for (Task task = slot.poll(); task != null; task = slot.poll()) {
+				if (task.deadline - now > 0) {
+					later.add(task); //due on a later turn
+					continue;
+				}
+				size.decrementAndGet();
+				try {
+					task.action.run();
+				} catch (RuntimeException e) {
+					System.out.println("Timer task failed: " + e);
+				}
+			}
+			slot.addAll(later);
+			later.clear();
+			tick++;
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package com.project4;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link Dsp} kernels on the Vector API. Only loaded when the JVM has the
+ * {@code jdk.incubator.vector} module; see {@link Dsp}. The samples that do
+ * not fill a whole vector are left to the scalar kernels.
+ */
+class VectorKernels implements Dsp.Kernels {
+
+	private static final VectorSpecies<Short> SHORTS = ShortVector.SPECIES_PREFERRED;
+	private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+	private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+	private static final VectorSpecies<Short> WIDENED = VectorSpecies.of(short.class,
+			VectorShape.forBitSize(INTS.vectorBitSize() / 2)); //as many lanes as INTS and FLOATS
+	private static final int LEVEL_BLOCK = 1024; //samples summed in float lanes before adding to the double total
+
+	@Override
+	public void mix(short[] dst, short[] src, int count) {
+		int i = 0;
+		for (int bound = SHORTS.loopBound(count); i < bound; i += SHORTS.length()) {
+			ShortVector a = ShortVector.fromArray(SHORTS, dst, i);
+			ShortVector b = ShortVector.fromArray(SHORTS, src, i);
+			ShortVector sum = a.add(b);
+			//overflowed where both inputs have the same sign and the sum the other one
+			VectorMask<Short> overflow = a.lanewise(VectorOperators.XOR, sum)
+					.and(b.lanewise(VectorOperators.XOR, sum)).compare(VectorOperators.LT, (short) 0);
+			ShortVector limit = a.lanewise(VectorOperators.ASHR, 15).lanewise(VectorOperators.XOR, Short.MAX_VALUE);
+			sum.blend(limit, overflow).intoArray(dst, i);
+		}
+		Dsp.ScalarKernels.mix(dst, src, i, count);
+	}
+
+	@Override
+	public void gain(short[] samples, int count, int gain) {
+		int i = 0;
+		for (int bound = WIDENED.loopBound(count); i < bound; i += WIDENED.length()) {
+			IntVector wide = (IntVector) ShortVector.fromArray(WIDENED, samples, i)
+					.convertShape(VectorOperators.S2I, INTS, 0);
+			wide = wide.mul(gain).add(1 << (Dsp.GAIN_BITS - 1)).lanewise(VectorOperators.ASHR, Dsp.GAIN_BITS)
+					.max(Short.MIN_VALUE).min(Short.MAX_VALUE);
+			((ShortVector) wide.convertShape(VectorOperators.I2S, WIDENED, 0)).intoArray(samples, i);
+		}
+		Dsp.ScalarKernels.gain(samples, gain, i, count);
+	}
+
+	@Override
+	public double sumSquares(short[] samples, int count) {
+		double total = 0;
+		int i = 0;
+		int bound = WIDENED.loopBound(count);
+		while (i < bound) {
+			FloatVector sum = FloatVector.zero(FLOATS);
+			for (int blockEnd = Math.min(bound, i + LEVEL_BLOCK); i < blockEnd; i += WIDENED.length()) {
+				FloatVector v = (FloatVector) ShortVector.fromArray(WIDENED, samples, i)
+						.convertShape(VectorOperators.S2F, FLOATS, 0);
+				sum = v.fma(v, sum);
+			}
+			total += sum.reduceLanes(VectorOperators.ADD);
+		}
+		return total + Dsp.ScalarKernels.sumSquares(samples, i, count);
+	}
+
+	@Override
+	public int peak(short[] samples, int count) {
+		ShortVector max = ShortVector.zero(SHORTS);
+		ShortVector min = ShortVector.zero(SHORTS);
+		int i = 0;
+		for (int bound = SHORTS.loopBound(count); i < bound; i += SHORTS.length()) {
+			ShortVector v = ShortVector.fromArray(SHORTS, samples, i);
+			max = max.max(v);
+			min = min.min(v);
+		}
+		int peak = Math.max(max.reduceLanes(VectorOperators.MAX), -min.reduceLanes(VectorOperators.MIN));
+		return Math.max(peak, Dsp.ScalarKernels.peak(samples, i, count));
+	}
+
+	@Override
+	public float dot(float[] a, int aOffset, float[] b, int bOffset, int count) {
+		FloatVector sum = FloatVector.zero(FLOATS);
+		int i = 0;
+		for (int bound = FLOATS.loopBound(count); i < bound; i += FLOATS.length()) {
+			sum = FloatVector.fromArray(FLOATS, a, aOffset + i).fma(FloatVector.fromArray(FLOATS, b, bOffset + i), sum);
+		}
+		float total = sum.reduceLanes(VectorOperators.ADD);
+		for (; i < count; i++) {
+			total += a[aOffset + i] * b[bOffset + i];
+		}
+		return total;
+	}
+}
@@ -0,0 +1,290 @@
+package com.project4;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+
+/**
+ * Compact storage for voice notes: 8 kHz mono speech encoded as IMA ADPCM,
+ * four bits per sample, a quarter of 16-bit PCM and an eighth of the stereo
+ * WAV notes used to be recorded as.
+ * <p>
+ * A note file ({@value #EXTENSION}) is a {@value #HEADER_BYTES}-byte header,
+ * {@code "VNTE"}, version, sample rate, samples per block and sample count,
+ * followed by fixed-size blocks of {@value #SAMPLES_PER_BLOCK} samples (40 ms).
+ * Each block starts with the decoder state, so it can be decoded on its own,
+ * and block n is at {@code HEADER_BYTES + n * BLOCK_BYTES}: the block size is
+ * the seek index, and seeking never reads the blocks before. The sample count
+ * is written last, once recording ends, so a note can be written and uploaded
+ * as it is recorded.
+ */
+public class VoiceNoteCodec {
+
+	public static final String EXTENSION = ".vnote";
+	public static final AudioFormat PCM = new AudioFormat(8000, 16, 1, true, false); //what notes are recorded and played as
+	static final int HEADER_BYTES = 16;
+	static final int SAMPLES_PER_BLOCK = 320;
+	static final int BLOCK_BYTES = 4 + SAMPLES_PER_BLOCK / 2; //decoder state, then two samples per byte
+	private static final byte[] MAGIC = { 'V', 'N', 'T', 'E' };
+	private static final int VERSION = 1;
+
+	private static final int[] INDEX_STEP = { -1, -1, -1, -1, 2, 4, 6, 8 };
+	private static final int[] STEPS = { 7, 8, 9, 10, 11, 12, 13, 14, 16, 17, 19, 21, 23, 25, 28, 31, 34, 37, 41,
+			45, 50, 55, 60, 66, 73, 80, 88, 97, 107, 118, 130, 143, 157, 173, 190, 209, 230, 253, 279, 307, 337, 371,
+			408, 449, 494, 544, 598, 658, 724, 796, 876, 963, 1060, 1166, 1282, 1411, 1552, 1707, 1878, 2066, 2272,
+			2499, 2749, 3024, 3327, 3660, 4026, 4428, 4871, 5358, 5894, 6484, 7132, 7845, 8630, 9493, 10442, 11487,
+			12635, 13899, 15289, 16818, 18500, 20350, 22385, 24623, 27086, 29794, 32767 };
+
+	private VoiceNoteCodec() {
+	}
+
+	/**
+	 * @param sampleRate Samples per second
+	 * @param samples    Samples in the note, 0 while it is being recorded
+	 * @return The file header
+	 */
+	public static byte[] header(int sampleRate, long samples) {
+		return ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN).put(MAGIC).put((byte) VERSION)
+				.put((byte) 0).putShort((short) SAMPLES_PER_BLOCK).putInt(sampleRate).putInt((int) samples).array();
+	}
+
+	/**
+	 * @param sample A sample number
+	 * @return Position in the file of the block holding it
+	 */
+	public static long blockOffset(long sample) {
+		return HEADER_BYTES + sample / SAMPLES_PER_BLOCK * BLOCK_BYTES;
+	}
+
+	/**
+	 * Encodes 16-bit little-endian mono PCM as it arrives, a block at a time.
+	 */
+	public static class Encoder {
+
+		private final short[] pending = new short[SAMPLES_PER_BLOCK]; //samples of the block being filled
+		private int pendingCount = 0;
+		private long samples = 0; //samples encoded, excluding padding
+		private int predictor = 0; //decoder state, carried from block to block
+		private int index = 0;
+
+		/**
+		 * Adds audio.
+		 *
+		 * @param pcm    Buffer holding the audio
+		 * @param offset Offset of the first byte
+		 * @param length Number of bytes, a whole number of samples
+		 * @return The blocks completed by this audio, possibly none
+		 */
+		public byte[] encode(byte[] pcm, int offset, int length) {
+			int count = length / 2;
+			byte[] out = new byte[(pendingCount + count) / SAMPLES_PER_BLOCK * BLOCK_BYTES];
+			int written = 0;
+			for (int i = 0; i < count; i++) {
+				int at = offset + 2 * i;
+				pending[pendingCount++] = (short) ((pcm[at] & 0xff) | (pcm[at + 1] << 8));
+				if (pendingCount == SAMPLES_PER_BLOCK) {
+					encodeBlock(out, written);
+					written += BLOCK_BYTES;
+					pendingCount = 0;
+				}
+			}
+			samples += count;
+			return out;
+		}
+
+		/**
+		 * Ends the note, padding the last block with silence.
+		 *
+		 * @return The last block, or nothing if the audio filled whole blocks
+		 */
+		public byte[] finish() {
+			if (pendingCount == 0) {
+				return new byte[0];
+			}
+			Arrays.fill(pending, pendingCount, SAMPLES_PER_BLOCK, (short) 0);
+			byte[] out = new byte[BLOCK_BYTES];
+			encodeBlock(out, 0);
+			pendingCount = 0;
+			return out;
+		}
+
+		/**
+		 * @return Samples encoded so far, for the header
+		 */
+		public long samples() {
+			return samples;
+		}
+
+		private void encodeBlock(byte[] out, int at) {
+			out[at] = (byte) predictor;
+			out[at + 1] = (byte) (predictor >> 8);
+			out[at + 2] = (byte) index;
+			out[at + 3] = 0;
+			for (int i = 0; i < SAMPLES_PER_BLOCK; i += 2) {
+				int low = encodeSample(pending[i]);
+				int high = encodeSample(pending[i + 1]);
+				out[at + 4 + i / 2] = (byte) (low | (high << 4));
+			}
+		}
+
+		private int encodeSample(int sample) {
+			int step = STEPS[index];
+			int diff = sample - predictor;
+			int nibble = 0;
+			if (diff < 0) {
+				nibble = 8;
+				diff = -diff;
+			}
+			int delta = step >> 3;
+			if (diff >= step) {
+				nibble |= 4;
+				diff -= step;
+				delta += step;
+			}
+			step >>= 1;
+			if (diff >= step) {
+				nibble |= 2;
+				diff -= step;
+				delta += step;
+			}
+			step >>= 1;
+			if (diff >= step) {
+				nibble |= 1;
+				delta += step;
+			}
+			predictor = clamp(predictor + ((nibble & 8) != 0 ? -delta : delta), -32768, 32767);
+			index = clamp(index + INDEX_STEP[nibble & 7], 0, STEPS.length - 1);
+			return nibble;
+		}
+	}
+
+	/**
+	 * Decodes one block.
+	 *
+	 * @param block  Buffer holding the block
+	 * @param at     Offset of the block
+	 * @param pcm    Buffer receiving {@value #SAMPLES_PER_BLOCK} samples of 16-bit little-endian PCM
+	 * @param pcmAt  Offset of the first byte to fill
+	 */
+	static void decodeBlock(byte[] block, int at, byte[] pcm, int pcmAt) {
+		int predictor = (short) ((block[at] & 0xff) | (block[at + 1] << 8));
+		int index = clamp(block[at + 2], 0, STEPS.length - 1);
+		for (int i = 0; i < SAMPLES_PER_BLOCK; i++) {
+			int nibble = (block[at + 4 + i / 2] >> ((i & 1) * 4)) & 0x0f;
+			int step = STEPS[index];
+			int delta = step >> 3;
+			if ((nibble & 4) != 0) {
+				delta += step;
+			}
+			if ((nibble & 2) != 0) {
+				delta += step >> 1;
+			}
+			if ((nibble & 1) != 0) {
+				delta += step >> 2;
+			}
+			predictor = clamp(predictor + ((nibble & 8) != 0 ? -delta : delta), -32768, 32767);
+			index = clamp(index + INDEX_STEP[nibble & 7], 0, STEPS.length - 1);
+			pcm[pcmAt + 2 * i] = (byte) predictor;
+			pcm[pcmAt + 2 * i + 1] = (byte) (predictor >> 8);
+		}
+	}
+
+	private static int clamp(int value, int min, int max) {
+		return value < min ? min : value > max ? max : value;
+	}
+
+	/**
+	 * Opens a note for playback, decoding it block by block as it is read.
+	 *
+	 * @param file        The note
+	 * @param startMillis Position to start playing from
+	 * @return The note as 16-bit little-endian mono PCM
+	 * @throws IOException If the file cannot be read or is not a voice note
+	 */
+	public static AudioInputStream decode(File file, long startMillis) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			byte[] header = new byte[HEADER_BYTES];
+			in.readFully(header);
+			ByteBuffer fields = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+			for (byte b : MAGIC) {
+				if (fields.get() != b) {
+					throw new IOException("Not a voice note: " + file.getName());
+				}
+			}
+			if (fields.get() != VERSION | fields.get() != 0 | fields.getShort() != SAMPLES_PER_BLOCK) {
+				throw new IOException("Unsupported voice note: " + file.getName());
+			}
+			int sampleRate = fields.getInt();
+			long samples = fields.getInt() & 0xffffffffL;
+			if (samples == 0) { //still being recorded, or cut off; play the blocks there are
+				samples = Math.max(0, (in.length() - HEADER_BYTES) / BLOCK_BYTES * SAMPLES_PER_BLOCK);
+			}
+			long start = Math.min(samples, startMillis * sampleRate / 1000 / SAMPLES_PER_BLOCK * SAMPLES_PER_BLOCK);
+			in.seek(blockOffset(start));
+			AudioFormat format = new AudioFormat(sampleRate, 16, 1, true, false);
+			return new AudioInputStream(new BlockStream(in, samples - start), format, samples - start);
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * PCM decoded from the blocks of a note as it is read.
+	 */
+	private static class BlockStream extends InputStream {
+
+		private final RandomAccessFile in;
+		private final byte[] block = new byte[BLOCK_BYTES];
+		private final byte[] pcm = new byte[SAMPLES_PER_BLOCK * 2];
+		private int position = pcm.length; //next byte of pcm to hand out
+		private long remaining; //bytes of PCM left in the note
+
+		BlockStream(RandomAccessFile in, long samples) {
+			this.in = in;
+			this.remaining = samples * 2;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			if (position == pcm.length) {
+				try {
+					in.readFully(block);
+				} catch (EOFException e) {
+					remaining = 0;
+					return -1;
+				}
+				decodeBlock(block, 0, pcm, 0);
+				position = 0;
+			}
+			int n = (int) Math.min(Math.min(len, pcm.length - position), remaining);
+			System.arraycopy(pcm, position, b, off, n);
+			position += n;
+			remaining -= n;
+			return n;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
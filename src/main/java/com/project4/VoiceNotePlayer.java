@@ -0,0 +1,270 @@
+package com.project4;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+
+import javafx.application.Platform;
+import javafx.scene.media.Media;
+import javafx.scene.media.MediaPlayer;
+import javafx.util.Duration;
+
+/**
+ * Plays voice notes, keeping the most recently played ones ready.
+ * <p>
+ * Voice notes ({@link VoiceNoteCodec#EXTENSION}) are decoded while they play
+ * the first time and the decoded audio is kept, so playing them again starts
+ * at once, without reading the file. Other audio files get a
+ * {@link MediaPlayer} that is kept prepared and rewound for the next play.
+ * Up to {@code voip.voicenote.cacheEntries} notes (default 8) and
+ * {@code voip.voicenote.cacheBytes} of decoded audio (default 16 MiB) are
+ * kept; the least recently played are dropped first and their players
+ * disposed. A note whose file changed since it was cached is loaded again.
+ * <p>
+ * One note plays at a time: playing another stops the current one.
+ * {@link #play(File)} and {@link #close()} are called on the JavaFX thread.
+ */
+public class VoiceNotePlayer {
+
+	static final int CACHE_ENTRIES = Config.getInt("voip.voicenote.cacheEntries", 8);
+	static final long CACHE_BYTES = Config.getLong("voip.voicenote.cacheBytes", 16L << 20);
+
+	private final Map<String, Entry> cache = new LinkedHashMap<>(16, 0.75f, true); //by path, least recently played first
+	private long cachedBytes = 0; //decoded audio held by the cache
+	private final ExecutorService playback = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "voice-note-player");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private final AtomicInteger playing = new AtomicInteger(); //number of the latest play; earlier ones stop
+	private MediaPlayer mediaPlaying; //player of the file playing, if it is not a voice note
+	private AudioSink sink; //speakers, kept open between voice notes; used on the playback thread
+
+	/**
+	 * A prepared note: decoded audio or a media player, and the state of the
+	 * file it was prepared from.
+	 */
+	private static class Entry {
+		final long length;
+		final long modified;
+		byte[] pcm; //decoded voice note
+		AudioFormat format;
+		MediaPlayer player; //for other audio files
+
+		Entry(File file) {
+			this.length = file.length();
+			this.modified = file.lastModified();
+		}
+
+		boolean isCurrent(File file) {
+			return file.length() == length && file.lastModified() == modified;
+		}
+
+		long bytes() {
+			return pcm != null ? pcm.length : 0;
+		}
+
+		void dispose() {
+			pcm = null;
+			if (player != null) {
+				MediaPlayer disposed = player;
+				player = null;
+				Platform.runLater(disposed::dispose); //players belong to the FX thread
+			}
+		}
+	}
+
+	/**
+	 * Plays a note from the start, stopping the one playing.
+	 *
+	 * @param file The note
+	 */
+	public void play(File file) {
+		int number = playing.incrementAndGet();
+		if (mediaPlaying != null) {
+			mediaPlaying.stop();
+			mediaPlaying = null;
+		}
+		Entry entry = lookUp(file);
+		if (file.getName().endsWith(VoiceNoteCodec.EXTENSION)) {
+			playback.execute(() -> playVoiceNote(file, entry, number));
+			return;
+		}
+		if (entry.player == null) {
+			MediaPlayer player = new MediaPlayer(new Media(file.toURI().toString()));
+			player.setOnError(() -> forget(file, entry));
+			player.setOnEndOfMedia(player::stop); //rewound, ready for the next play
+			entry.player = player;
+		}
+		mediaPlaying = entry.player;
+		mediaPlaying.seek(Duration.ZERO);
+		mediaPlaying.play();
+	}
+
+	/**
+	 * Stops playback and disposes everything cached.
+	 */
+	public void close() {
+		playing.incrementAndGet();
+		mediaPlaying = null;
+		synchronized (cache) {
+			for (Entry entry : cache.values()) {
+				entry.dispose();
+			}
+			cache.clear();
+			cachedBytes = 0;
+		}
+		playback.execute(this::closeSink);
+		playback.shutdown();
+	}
+
+	/**
+	 * @param file A note
+	 * @return Its cache entry, new if it was not cached or its file changed
+	 */
+	private Entry lookUp(File file) {
+		String key = file.getAbsolutePath();
+		synchronized (cache) {
+			Entry entry = cache.get(key);
+			if (entry != null && entry.isCurrent(file)) {
+				return entry;
+			}
+			if (entry != null) {
+				remove(key);
+			}
+			entry = new Entry(file);
+			cache.put(key, entry);
+			trim();
+			return entry;
+		}
+	}
+
+	/**
+	 * Drops a note that could not be played, unless it was loaded again meanwhile.
+	 */
+	private void forget(File file, Entry entry) {
+		String key = file.getAbsolutePath();
+		synchronized (cache) {
+			if (cache.get(key) == entry) {
+				remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Keeps decoded audio of a note that played to the end.
+	 */
+	private void keep(Entry entry, byte[] pcm, AudioFormat format) {
+		synchronized (cache) {
+			if (!cache.containsValue(entry) || entry.pcm != null) {
+				return; //dropped meanwhile, or already kept by another play
+			}
+			entry.pcm = pcm;
+			entry.format = format;
+			cachedBytes += pcm.length;
+			trim();
+		}
+	}
+
+	private void remove(String key) {
+		Entry entry = cache.remove(key);
+		if (entry != null) {
+			cachedBytes -= entry.bytes();
+			entry.dispose();
+		}
+	}
+
+	/**
+	 * Drops the least recently played notes until the cache is within its limits.
+	 */
+	private void trim() {
+		Iterator<Map.Entry<String, Entry>> eldest = cache.entrySet().iterator();
+		while (eldest.hasNext() && (cache.size() > CACHE_ENTRIES || cachedBytes > CACHE_BYTES)) {
+			Entry entry = eldest.next().getValue();
+			eldest.remove();
+			cachedBytes -= entry.bytes();
+			entry.dispose();
+		}
+	}
+
+	/**
+	 * Plays a voice note from its decoded audio, or decodes it while playing
+	 * and keeps the result. Runs on the playback thread.
+	 */
+	private void playVoiceNote(File file, Entry entry, int number) {
+		byte[] pcm;
+		AudioFormat format;
+		synchronized (cache) {
+			pcm = entry.pcm;
+			format = entry.format;
+		}
+		try {
+			if (pcm != null) {
+				write(pcm, pcm.length, format, number);
+			} else {
+				try (AudioInputStream in = VoiceNoteCodec.decode(file, 0)) {
+					format = in.getFormat();
+					ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+					byte[] buffer = new byte[VoiceNoteCodec.SAMPLES_PER_BLOCK * 2];
+					int read;
+					while ((read = in.read(buffer, 0, buffer.length)) > 0) {
+						if (decoded != null && decoded.size() + read <= CACHE_BYTES) {
+							decoded.write(buffer, 0, read);
+						} else {
+							decoded = null; //too large to keep
+						}
+						if (!write(buffer, read, format, number)) {
+							return; //stopped before the end; the decoding is incomplete
+						}
+					}
+					if (decoded != null) {
+						keep(entry, decoded.toByteArray(), format);
+					}
+				}
+			}
+		} catch (IOException e) {
+			System.out.println("Error playing voice note: " + e.getMessage());
+			forget(file, entry);
+			closeSink();
+		}
+	}
+
+	/**
+	 * Writes audio to the speakers a block at a time, stopping if another play begins.
+	 *
+	 * @return false if stopped
+	 */
+	private boolean write(byte[] pcm, int length, AudioFormat format, int number) throws IOException {
+		if (sink != null && !sink.getFormat().matches(format)) {
+			closeSink();
+		}
+		if (sink == null) {
+			sink = AudioDevices.openSink(format);
+		}
+		int block = VoiceNoteCodec.SAMPLES_PER_BLOCK * 2;
+		for (int offset = 0; offset < length; offset += block) {
+			if (playing.get() != number) {
+				closeSink(); //discards the audio still queued in the speakers
+				return false;
+			}
+			sink.write(pcm, offset, Math.min(block, length - offset));
+		}
+		return true;
+	}
+
+	private void closeSink() {
+		if (sink != null) {
+			sink.close();
+			sink = null;
+		}
+	}
+}
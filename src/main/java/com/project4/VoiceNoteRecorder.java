@@ -0,0 +1,117 @@
+package com.project4;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Records a voice note and uploads it while it is recorded.
+ * <p>
+ * Captured audio is read in chunks of {@value #CHUNK_MILLIS} ms and encoded
+ * with {@link VoiceNoteCodec}; each encoded chunk is appended to the local
+ * file and sent to the server from the same buffer, so when recording stops
+ * only the last chunk and the final header are left to send. The header is
+ * written without a length first and rewritten at the end, locally and on
+ * the server.
+ */
+public class VoiceNoteRecorder {
+
+	static final int CHUNK_MILLIS = 200; //audio per upload chunk
+
+	private final AudioSource source;
+	private final File file;
+	private final Client client;
+	private volatile String recipient = null; //set when recording stops; empty to only keep the note locally
+
+	/**
+	 * Creates a recorder; call {@link #start()} to begin.
+	 *
+	 * @param source Audio source in {@link VoiceNoteCodec#PCM}
+	 * @param file   File the note is written to; its name is also the name on the server
+	 * @param client Connection the note is uploaded over, or null to only record locally
+	 */
+	public VoiceNoteRecorder(AudioSource source, File file, Client client) {
+		this.source = source;
+		this.file = file;
+		this.client = client;
+	}
+
+	/**
+	 * Starts recording and uploading on a thread of its own.
+	 */
+	public void start() {
+		Thread thread = new Thread(this::record, "voice-note");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops recording. The rest of the note is uploaded and delivered in the background.
+	 *
+	 * @param recipient User the note is sent to, or null to only keep it locally
+	 */
+	public void stop(String recipient) {
+		this.recipient = recipient != null ? recipient : "";
+		source.close(); //the pending read returns what it has, then -1
+	}
+
+	private void record() {
+		AudioFormat format = source.getFormat();
+		int sampleRate = (int) format.getSampleRate();
+		int chunkBytes = sampleRate * CHUNK_MILLIS / 1000 * format.getFrameSize();
+		VoiceNoteCodec.Encoder encoder = new VoiceNoteCodec.Encoder();
+		String name = file.getName();
+		Client.VoiceNoteUpload upload = client != null ? client.uploadVoiceNote(name) : null;
+		long written = 0; //encoded bytes after the header
+		try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+			out.setLength(0);
+			byte[] header = VoiceNoteCodec.header(sampleRate, 0);
+			out.write(header);
+			upload(upload, 0, header);
+			byte[] buffer = new byte[chunkBytes];
+			while (true) {
+				int filled = 0;
+				int read = 0;
+				while (filled < buffer.length && (read = source.read(buffer, filled, buffer.length - filled)) > 0) {
+					filled += read;
+				}
+				byte[] encoded = read < 0 ? concat(encoder.encode(buffer, 0, filled & ~1), encoder.finish())
+						: encoder.encode(buffer, 0, filled & ~1);
+				if (encoded.length > 0) {
+					out.write(encoded); //the local file and the upload share the encoded chunk
+					upload(upload, VoiceNoteCodec.HEADER_BYTES + written, encoded);
+					written += encoded.length;
+				}
+				if (read < 0) {
+					break; //stopped
+				}
+			}
+			header = VoiceNoteCodec.header(sampleRate, encoder.samples());
+			out.seek(0);
+			out.write(header);
+			upload(upload, 0, header);
+		} catch (IOException e) {
+			System.out.println("Error recording voice note: " + e.getMessage());
+		} finally {
+			source.close();
+		}
+		if (upload != null) {
+			upload.finish(VoiceNoteCodec.HEADER_BYTES + written, recipient != null ? recipient : "");
+		}
+	}
+
+	private static void upload(Client.VoiceNoteUpload upload, long offset, byte[] data) {
+		if (upload != null) {
+			upload.write(offset, data, data.length);
+		}
+	}
+
+	private static byte[] concat(byte[] first, byte[] second) {
+		byte[] both = new byte[first.length + second.length];
+		System.arraycopy(first, 0, both, 0, first.length);
+		System.arraycopy(second, 0, both, first.length, second.length);
+		return both;
+	}
+}
@@ -0,0 +1,212 @@
+package com.project4;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Whisper conversations of one client, with bounded memory use.
+ * <p>
+ * Only the newest messages of each conversation are kept in memory, in a
+ * ring buffer sized by {@code voip.whisper.memoryMessages} (default 500).
+ * Older messages spill to a temporary file. That file is indexed once every
+ * {@link #PAGE} messages, so a page of older messages is read with a single
+ * seek. Messages are numbered from 0 in the order they were added.
+ */
+public class WhisperHistory {
+
+	static final int PAGE = 50; //messages per page of older history
+
+	private final int capacity; //messages kept in memory per conversation
+	private final Map<String, Conversation> conversations = new ConcurrentHashMap<>(); //conversations by username
+
+	/**
+	 * One conversation: a ring buffer of the newest messages and a spill file for the rest.
+	 */
+	private class Conversation {
+		final String[] ring = new String[capacity];
+		long total = 0; //messages ever added
+		File spillFile; //older messages, one per line
+		OutputStream spillOut;
+		long spillSize = 0; //bytes written to the spill file
+		long[] pageOffsets = new long[16]; //offset of every PAGE-th spilled message
+
+		synchronized void add(String message) {
+			int slot = (int) (total % capacity);
+			if (total >= capacity) {
+				spill(ring[slot], total - capacity); //the slot's old message moves to disk
+			}
+			ring[slot] = message;
+			total++;
+		}
+
+		/**
+		 * @return Number of messages on disk; the rest are in the ring
+		 */
+		long spilled() {
+			return Math.max(0, total - capacity);
+		}
+
+		private void spill(String message, long index) {
+			try {
+				if (spillOut == null) {
+					spillFile = File.createTempFile("whisper-", ".log");
+					spillFile.deleteOnExit();
+					spillOut = new BufferedOutputStream(new FileOutputStream(spillFile));
+				}
+				if (index % PAGE == 0) {
+					int page = (int) (index / PAGE);
+					if (page == pageOffsets.length) {
+						pageOffsets = Arrays.copyOf(pageOffsets, page * 2);
+					}
+					pageOffsets[page] = spillSize;
+				}
+				byte[] line = (message + "\n").getBytes(StandardCharsets.UTF_8);
+				spillOut.write(line);
+				spillSize += line.length;
+			} catch (IOException e) {
+				System.out.println("Error spilling whisper history: " + e.getMessage());
+			}
+		}
+
+		synchronized List<String> read(long from, long to) {
+			List<String> messages = new ArrayList<>();
+			from = Math.max(0, from);
+			to = Math.min(to, total);
+			long spilled = spilled();
+			if (from < Math.min(to, spilled) && spillOut != null) {
+				try {
+					spillOut.flush();
+					try (RandomAccessFile file = new RandomAccessFile(spillFile, "r")) {
+						file.seek(pageOffsets[(int) (from / PAGE)]);
+						BufferedReader reader = new BufferedReader(
+								new InputStreamReader(Channels.newInputStream(file.getChannel()), StandardCharsets.UTF_8));
+						long index = from - from % PAGE;
+						for (; index < Math.min(to, spilled); index++) {
+							String line = reader.readLine();
+							if (line == null) {
+								break;
+							}
+							if (index >= from) {
+								messages.add(line);
+							}
+						}
+					}
+				} catch (IOException e) {
+					System.out.println("Error reading whisper history: " + e.getMessage());
+				}
+			}
+			for (long i = Math.max(from, spilled); i < to; i++) {
+				messages.add(ring[(int) (i % capacity)]);
+			}
+			return messages;
+		}
+
+		synchronized void delete() {
+			if (spillOut != null) {
+				try {
+					spillOut.close();
+				} catch (IOException e) {
+					// nothing left to save
+				}
+				spillFile.delete();
+				spillOut = null;
+			}
+		}
+	}
+
+	/**
+	 * Creates a history using the configured in-memory size.
+	 */
+	public WhisperHistory() {
+		this(Config.getInt("voip.whisper.memoryMessages", 500));
+	}
+
+	/**
+	 * Creates a history.
+	 *
+	 * @param capacity Messages kept in memory per conversation
+	 */
+	public WhisperHistory(int capacity) {
+		this.capacity = Math.max(1, capacity);
+	}
+
+	/**
+	 * Starts an empty conversation, if there is none with the user yet.
+	 *
+	 * @param whisperee Username of the other user
+	 */
+	public void open(String whisperee) {
+		conversations.computeIfAbsent(whisperee, key -> new Conversation());
+	}
+
+	/**
+	 * Forgets a conversation and deletes its spill file.
+	 *
+	 * @param whisperee Username of the other user
+	 */
+	public void remove(String whisperee) {
+		Conversation conversation = conversations.remove(whisperee);
+		if (conversation != null) {
+			conversation.delete();
+		}
+	}
+
+	/**
+	 * Adds a message to a conversation.
+	 *
+	 * @param whisperee Username of the other user
+	 * @param message   The message as displayed
+	 */
+	public void add(String whisperee, String message) {
+		conversations.computeIfAbsent(whisperee, key -> new Conversation()).add(message);
+	}
+
+	/**
+	 * @param whisperee Username of the other user
+	 * @return Number of messages in the conversation
+	 */
+	public long size(String whisperee) {
+		Conversation conversation = conversations.get(whisperee);
+		if (conversation == null) {
+			return 0;
+		}
+		synchronized (conversation) {
+			return conversation.total;
+		}
+	}
+
+	/**
+	 * Reads the messages numbered [from, to) of a conversation.
+	 *
+	 * @param whisperee Username of the other user
+	 * @param from      First message, inclusive
+	 * @param to        Last message, exclusive
+	 * @return The messages, oldest first
+	 */
+	public List<String> read(String whisperee, long from, long to) {
+		Conversation conversation = conversations.get(whisperee);
+		return conversation == null ? new ArrayList<>() : conversation.read(from, to);
+	}
+
+	/**
+	 * @param whisperee Username of the other user
+	 * @return The messages held in memory, oldest first
+	 */
+	public List<String> latest(String whisperee) {
+		long size = size(whisperee);
+		return read(whisperee, size - capacity, size);
+	}
+}